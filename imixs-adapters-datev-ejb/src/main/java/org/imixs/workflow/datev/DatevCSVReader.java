@@ -0,0 +1,351 @@
+package org.imixs.workflow.datev;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * The DatevCSVReader tokenizes the records of a DATEV csv file. The file is
+ * mapped into memory in regions of 64MB. The method next() only computes the
+ * bounds of the cells of the next record. A cell is decoded by the charset of
+ * the file when it is requested by getCell(). So skipped records and unused
+ * cells are never decoded.
+ *
+ * The cells are separated by ';'. A cell enclosed in double quotes may
+ * contain separators and line breaks. A double quote inside a quoted cell is
+ * escaped by a second double quote. Records are terminated by LF, CR LF or
+ * CR.
+ *
+ * The reader knows the byte offset of each record. So an import can be
+ * resumed by seeking to the offset of the last imported record.
+ *
+ * Only charsets encoding the separator, the double quote and the line breaks
+ * as a single ASCII byte (e.g. ISO-8859-1, Windows-1252 or UTF-8) are
+ * supported. Other charsets (e.g. UTF-16) are rejected.
+ *
+ * @author rsoika
+ */
+public class DatevCSVReader implements Closeable {
+
+	static final int MAP_SIZE = 64 * 1024 * 1024;
+	static final byte SEPARATOR = ';';
+	static final byte QUOTE = '"';
+
+	private static final byte QUOTED = 1;
+	private static final byte ESCAPED = 2;
+
+	private final FileInputStream in;
+	private final FileChannel channel;
+	private final long size;
+	private final int mapSize;
+	private final CharsetDecoder decoder;
+
+	// the mapped region of the file
+	private ByteBuffer buffer;
+	private ByteBuffer view;
+	private long bufferOffset = 0;
+	private int position = 0;
+
+	// bounds of the current record and its cells
+	private int recordStart = 0;
+	private int recordEnd = 0;
+	private int cellCount = 0;
+	private int[] cellStart = new int[256];
+	private int[] cellEnd = new int[256];
+	private byte[] cellFlags = new byte[256];
+	private CharBuffer chars = CharBuffer.allocate(1024);
+
+	/**
+	 * Opens a csv file
+	 *
+	 * @param file
+	 * @param encoding
+	 *            - charset name of the file
+	 * @throws IOException
+	 */
+	public DatevCSVReader(File file, String encoding) throws IOException {
+		this(file, encoding, MAP_SIZE);
+	}
+
+	/**
+	 * Opens a csv file mapped in regions of the given size
+	 *
+	 * @param file
+	 * @param encoding
+	 *            - charset name of the file
+	 * @param mapSize
+	 *            - size of a mapped region
+	 * @throws IOException
+	 *             - if the file can not be read or the charset is not
+	 *             supported
+	 */
+	public DatevCSVReader(File file, String encoding, int mapSize) throws IOException {
+		this.decoder = createDecoder(encoding);
+		if (!isSupported(decoder.charset()))
+			throw new UnsupportedEncodingException("charset " + encoding + " is not supported for DATEV files");
+		this.mapSize = mapSize;
+		this.in = new FileInputStream(file);
+		this.channel = in.getChannel();
+		this.size = channel.size();
+		map(0, 0);
+	}
+
+	/**
+	 * Reads the records of a string. This constructor is used to parse a
+	 * single line.
+	 *
+	 * @param data
+	 */
+	public DatevCSVReader(String data) {
+		this.decoder = createDecoder("UTF-8");
+		this.mapSize = 0;
+		this.in = null;
+		this.channel = null;
+		this.buffer = ByteBuffer.wrap(data.getBytes(decoder.charset()));
+		this.view = buffer.duplicate();
+		this.size = buffer.limit();
+	}
+
+	/**
+	 * Returns the byte offset of the next record
+	 */
+	public long getOffset() {
+		return bufferOffset + position;
+	}
+
+	/**
+	 * Sets the byte offset of the next record. The offset must be the start of
+	 * a record returned by getOffset().
+	 *
+	 * @param offset
+	 * @throws IOException
+	 */
+	public void seek(long offset) throws IOException {
+		if (offset < 0 || offset > size)
+			throw new IOException("invalid offset " + offset + " - file size is " + size);
+		if (channel == null) {
+			position = (int) offset;
+		} else {
+			map(offset, 0);
+		}
+		cellCount = 0;
+	}
+
+	/**
+	 * Reads the next record. The cells of the record are not decoded.
+	 *
+	 * @return false if the end of the file is reached
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		int result;
+		while ((result = tokenize()) < 0) {
+			// the record crosses the end of the mapped region
+			int length = buffer.limit() - recordStart;
+			map(bufferOffset + recordStart, recordStart == 0 ? length * 2 : length);
+		}
+		return result > 0;
+	}
+
+	/**
+	 * Reads the next record and returns it as a string. The line terminator is
+	 * not part of the result.
+	 *
+	 * @return record or null if the end of the file is reached
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		if (!next())
+			return null;
+		return getLine();
+	}
+
+	/**
+	 * Returns the current record as a string
+	 */
+	public String getLine() {
+		return decode(recordStart, recordEnd, false);
+	}
+
+	/**
+	 * Returns the number of cells of the current record
+	 */
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Returns true if the cell is empty
+	 *
+	 * @param index
+	 */
+	public boolean isEmpty(int index) {
+		return cellStart[index] == cellEnd[index];
+	}
+
+	/**
+	 * Decodes a cell of the current record. The quotes of a quoted cell are
+	 * removed.
+	 *
+	 * @param index
+	 * @return value of the cell
+	 */
+	public String getCell(int index) {
+		return decode(cellStart[index], cellEnd[index], (cellFlags[index] & ESCAPED) != 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null)
+			in.close();
+	}
+
+	/**
+	 * Computes the bounds of the cells of the next record.
+	 *
+	 * @return 1 if a record was read, 0 at the end of the file or -1 if the
+	 *         record is not complete within the mapped region
+	 */
+	private int tokenize() {
+		int limit = buffer.limit();
+		boolean eof = bufferOffset + limit >= size;
+		int p = position;
+		cellCount = 0;
+		recordStart = p;
+		if (p == limit && eof)
+			return 0;
+
+		int start = p;
+		byte flags = 0;
+		boolean inQuotes = false;
+		while (true) {
+			if (p == limit) {
+				if (!eof)
+					return -1;
+				// the end of the file terminates the record
+				addCell(start, p, flags);
+				recordEnd = p;
+				position = p;
+				return 1;
+			}
+			byte b = buffer.get(p);
+			if (inQuotes) {
+				if (b == QUOTE) {
+					if (p + 1 == limit && !eof)
+						return -1;
+					if (p + 1 < limit && buffer.get(p + 1) == QUOTE) {
+						flags |= ESCAPED;
+						p += 2;
+						continue;
+					}
+					inQuotes = false;
+				}
+				p++;
+			} else if (b == SEPARATOR) {
+				addCell(start, p, flags);
+				p++;
+				start = p;
+				flags = 0;
+			} else if (b == '\n' || b == '\r') {
+				if (b == '\r' && p + 1 == limit && !eof)
+					return -1;
+				addCell(start, p, flags);
+				recordEnd = p;
+				// CR LF
+				if (b == '\r' && p + 1 < limit && buffer.get(p + 1) == '\n')
+					p++;
+				position = p + 1;
+				return 1;
+			} else {
+				if (b == QUOTE && p == start) {
+					flags |= QUOTED;
+					inQuotes = true;
+				}
+				p++;
+			}
+		}
+	}
+
+	private void addCell(int start, int end, byte flags) {
+		if (cellCount == cellStart.length) {
+			cellStart = Arrays.copyOf(cellStart, cellCount * 2);
+			cellEnd = Arrays.copyOf(cellEnd, cellCount * 2);
+			cellFlags = Arrays.copyOf(cellFlags, cellCount * 2);
+		}
+		if ((flags & QUOTED) != 0) {
+			// remove the enclosing quotes
+			start++;
+			if (end > start && buffer.get(end - 1) == QUOTE)
+				end--;
+		}
+		cellStart[cellCount] = start;
+		cellEnd[cellCount] = end;
+		cellFlags[cellCount] = flags;
+		cellCount++;
+	}
+
+	/**
+	 * Decodes a part of the mapped region into the reused char buffer
+	 */
+	private String decode(int start, int end, boolean escaped) {
+		if (start == end)
+			return "";
+		int capacity = (int) ((end - start) * decoder.maxCharsPerByte()) + 1;
+		if (chars.capacity() < capacity)
+			chars = CharBuffer.allocate(capacity);
+		chars.clear();
+		view.clear();
+		view.position(start);
+		view.limit(end);
+		decoder.reset();
+		decoder.decode(view, chars, true);
+		decoder.flush(chars);
+
+		char[] data = chars.array();
+		int length = chars.position();
+		if (escaped) {
+			// replace each pair of double quotes by one
+			int j = 0;
+			for (int i = 0; i < length; i++) {
+				data[j++] = data[i];
+				if (data[i] == '"' && i + 1 < length && data[i + 1] == '"')
+					i++;
+			}
+			length = j;
+		}
+		return new String(data, 0, length);
+	}
+
+	private void map(long offset, int minSize) throws IOException {
+		long length = Math.min(Math.max(mapSize, minSize), size - offset);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		view = buffer.duplicate();
+		bufferOffset = offset;
+		position = 0;
+	}
+
+	/**
+	 * Tests if a charset encodes the separator, the double quote and the line
+	 * breaks as single ASCII bytes
+	 */
+	static boolean isSupported(Charset charset) {
+		if (!charset.canEncode())
+			return false;
+		byte[] bytes = ";\"\r\n".getBytes(charset);
+		return Arrays.equals(bytes, new byte[] { SEPARATOR, QUOTE, '\r', '\n' });
+	}
+
+	private static CharsetDecoder createDecoder(String encoding) {
+		return Charset.forName(encoding).newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
@@ -0,0 +1,244 @@
+package org.imixs.workflow.datev;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * The DatevImportTask holds the state of a running DATEV import shared by the
+ * reader (DatevService) and the DatevImportWorkers.
+ *
+ * The lines read from the csv file are partitioned by their primary key. Each
+ * partition has its own bounded queue processed by one worker. So all lines
+ * with the same primary key are processed in the order of the file, while
+ * lines with different keys are processed in parallel. If the queue of a
+ * worker is full, the reader waits.
+ *
+ * The workers count the imported and updated workitems in the task. The
+ * first exception of a worker is stored in the task. After an exception the
+ * workers skip all remaining lines.
+ *
+ * The reader can wait until all queued lines are imported (awaitIdle) before
+ * it stores a checkpoint.
+ *
+ * If a worker is not started by the container (e.g. the asynchronous thread
+ * pool is exhausted) its queue is not consumed. In this case the task fails
+ * after a timeout instead of blocking the reader.
+ *
+ * @author rsoika
+ */
+public class DatevImportTask {
+
+	// marks the end of a queue
+	static final Row END = new Row(-1, null);
+	// max time to wait for a worker in seconds
+	static final long TIMEOUT = 300;
+
+	private final String modelversion;
+	private final int processID;
+	private final int activityID;
+	private final DatevKeyIndex keyIndex;
+	private final List<BlockingQueue<Row>> queues = new ArrayList<BlockingQueue<Row>>();
+
+	private final AtomicInteger workitemsImported = new AtomicInteger();
+	private final AtomicInteger workitemsUpdated = new AtomicInteger();
+	private volatile Exception exception = null;
+	private volatile Row failedRow = null;
+	// lines queued but not yet imported
+	private int pendingRows = 0;
+
+	/**
+	 * Creates a new import task
+	 *
+	 * @param modelversion
+	 * @param processID
+	 * @param activityID
+	 * @param keyIndex
+	 *            - primary keys of the existing workitems
+	 * @param partitions
+	 *            - number of workers
+	 * @param queueSize
+	 *            - max number of lines waiting for a worker
+	 */
+	public DatevImportTask(String modelversion, int processID, int activityID, DatevKeyIndex keyIndex,
+			int partitions, int queueSize) {
+		this.modelversion = modelversion;
+		this.processID = processID;
+		this.activityID = activityID;
+		this.keyIndex = keyIndex;
+		for (int i = 0; i < partitions; i++) {
+			queues.add(new ArrayBlockingQueue<Row>(queueSize));
+		}
+	}
+
+	public String getModelversion() {
+		return modelversion;
+	}
+
+	public int getProcessID() {
+		return processID;
+	}
+
+	public int getActivityID() {
+		return activityID;
+	}
+
+	public DatevKeyIndex getKeyIndex() {
+		return keyIndex;
+	}
+
+	public int getPartitions() {
+		return queues.size();
+	}
+
+	/**
+	 * Returns the partition of a primary key
+	 */
+	public int getPartition(String key) {
+		return (key.hashCode() & 0x7fffffff) % queues.size();
+	}
+
+	/**
+	 * Adds a line to the queue of its partition. The method waits if the queue
+	 * is full.
+	 *
+	 * @param row
+	 * @throws InterruptedException
+	 */
+	public void put(Row row) throws InterruptedException {
+		synchronized (this) {
+			pendingRows++;
+		}
+		int partition = getPartition(row.getKey());
+		if (!queues.get(partition).offer(row, TIMEOUT, TimeUnit.SECONDS)) {
+			done();
+			fail(row, new TimeoutException("DATEV import worker " + partition + " not responding"));
+		}
+	}
+
+	/**
+	 * Marks a line taken by a worker as finished
+	 */
+	synchronized void done() {
+		pendingRows--;
+		if (pendingRows == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Waits until all queued lines are imported or skipped. If no line is
+	 * finished within the timeout, the task fails.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (pendingRows > 0 && !isFailed()) {
+			int rows = pendingRows;
+			wait(TimeUnit.SECONDS.toMillis(TIMEOUT));
+			if (pendingRows == rows) {
+				fail(null, new TimeoutException("DATEV import workers not responding"));
+			}
+		}
+	}
+
+	/**
+	 * Returns the next line of a partition or END if all lines were read. The
+	 * method waits if the queue is empty. If the task has failed, END is
+	 * returned after the queue is empty.
+	 *
+	 * @param partition
+	 * @return row
+	 * @throws InterruptedException
+	 */
+	public Row take(int partition) throws InterruptedException {
+		while (true) {
+			Row row = queues.get(partition).poll(TIMEOUT, TimeUnit.SECONDS);
+			if (row != null)
+				return row;
+			if (isFailed())
+				return END;
+		}
+	}
+
+	/**
+	 * Marks the end of all queues. A queue not consumed by a worker within
+	 * the timeout is skipped.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		for (BlockingQueue<Row> queue : queues) {
+			queue.offer(END, TIMEOUT, TimeUnit.SECONDS);
+		}
+	}
+
+	public int getWorkitemsImported() {
+		return workitemsImported.get();
+	}
+
+	public int getWorkitemsUpdated() {
+		return workitemsUpdated.get();
+	}
+
+	void countImported() {
+		workitemsImported.incrementAndGet();
+	}
+
+	void countUpdated() {
+		workitemsUpdated.incrementAndGet();
+	}
+
+	/**
+	 * Stores the first exception of a worker. The row is null if the
+	 * exception is not caused by a line.
+	 */
+	synchronized void fail(Row row, Exception e) {
+		if (exception == null) {
+			exception = e;
+			failedRow = row;
+		}
+	}
+
+	public boolean isFailed() {
+		return exception != null;
+	}
+
+	public Exception getException() {
+		return exception;
+	}
+
+	public Row getFailedRow() {
+		return failedRow;
+	}
+
+	/**
+	 * An entity read from a line of the csv file
+	 */
+	public static class Row {
+		private final int line;
+		private final ItemCollection entity;
+
+		public Row(int line, ItemCollection entity) {
+			this.line = line;
+			this.entity = entity;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		public ItemCollection getEntity() {
+			return entity;
+		}
+
+		public String getKey() {
+			return entity.getItemValueString("txtname");
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.imixs.workflow.datev;
+
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.annotation.security.DeclareRoles;
+import javax.annotation.security.RunAs;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.engine.WorkflowService;
+import org.imixs.workflow.exceptions.AccessDeniedException;
+import org.imixs.workflow.exceptions.ModelException;
+import org.imixs.workflow.exceptions.PluginException;
+import org.imixs.workflow.exceptions.ProcessingErrorException;
+import org.imixs.workflow.exceptions.QueryException;
+
+/**
+ * The DatevImportWorker imports the lines of a DatevImportTask. Each line is
+ * compared with the existing workitem and processed in a new transaction by
+ * the DatevService.
+ *
+ * The method run() is called asynchronously for each partition of the task.
+ * So several workers import the lines of a csv file in parallel. The number
+ * of workers is defined by the item '_datev_workers' of the DATEV
+ * configuration and limited to DatevService.MAX_WORKERS.
+ *
+ * @author rsoika
+ */
+@DeclareRoles({ "org.imixs.ACCESSLEVEL.MANAGERACCESS" })
+@Stateless
+@RunAs("org.imixs.ACCESSLEVEL.MANAGERACCESS")
+@LocalBean
+public class DatevImportWorker {
+
+	@EJB
+	WorkflowService workflowService;
+
+	@EJB
+	DatevService datevService;
+
+	private static Logger logger = Logger.getLogger(DatevImportWorker.class.getName());
+
+	/**
+	 * Imports all lines of a partition until the end of the queue is reached.
+	 * An exception is stored in the task. After an exception the remaining
+	 * lines are skipped.
+	 *
+	 * The method runs without a transaction, because each line is processed
+	 * in a new transaction by the DatevService.
+	 *
+	 * @param task
+	 * @param partition
+	 * @return number of imported lines
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Future<Integer> run(DatevImportTask task, int partition) {
+		int count = 0;
+		try {
+			DatevImportTask.Row row;
+			while ((row = task.take(partition)) != DatevImportTask.END) {
+				try {
+					if (!task.isFailed()) {
+						importEntity(task, row.getEntity());
+						count++;
+					}
+				} catch (Exception e) {
+					task.fail(row, e);
+				} finally {
+					task.done();
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warning("DATEV import worker " + partition + " interrupted");
+			Thread.currentThread().interrupt();
+		}
+		logger.fine("DATEV import worker " + partition + " finished: " + count + " lines");
+		return new AsyncResult<Integer>(count);
+	}
+
+	/**
+	 * Creates a new workitem for an entity or updates the existing workitem if
+	 * the entity has changed. If the key of the entity is not contained in the
+	 * key index, the workitem is searched by its key. So a workitem moved to a
+	 * model version not covered by the index is not imported twice.
+	 *
+	 * @param task
+	 * @param entity
+	 *            - entity read from the csv file
+	 * @throws AccessDeniedException
+	 * @throws ProcessingErrorException
+	 * @throws PluginException
+	 * @throws ModelException
+	 * @throws QueryException
+	 */
+	public void importEntity(DatevImportTask task, ItemCollection entity) throws AccessDeniedException,
+			ProcessingErrorException, PluginException, ModelException, QueryException {
+		DatevKeyIndex keyIndex = task.getKeyIndex();
+
+		// test if workitem already exits....
+		String sKey = entity.getItemValueString("txtName");
+		ItemCollection oldEntity = null;
+		DatevKeyIndex.Entry indexEntry = keyIndex.get(sKey);
+		if (indexEntry != null) {
+			// an unchanged entity is skipped without loading the workitem
+			if (indexEntry.getFingerprint().equals(DatevKeyIndex.fingerprint(entity))) {
+				return;
+			}
+			oldEntity = workflowService.getWorkItem(indexEntry.getUniqueID());
+		} else {
+			oldEntity = datevService.findWorkitemByName(sKey);
+		}
+		if (oldEntity == null) {
+			// create new workitem
+			entity.replaceItemValue(WorkflowService.MODELVERSION, task.getModelversion());
+			entity.replaceItemValue(WorkflowService.PROCESSID, task.getProcessID());
+			entity.replaceItemValue(WorkflowService.ACTIVITYID, task.getActivityID());
+			keyIndex.put(datevService.processSingleWorkitem(entity));
+			task.countImported();
+		} else {
+			// test if modified....
+			if (!datevService.isEqualEntity(oldEntity, entity)) {
+				logger.fine("update exsting DATV entity: " + oldEntity.getUniqueID());
+
+				// copy all datev entries from the import into the existing
+				// entity
+				oldEntity.replaceAllItems(entity.getAllItems());
+				oldEntity.replaceItemValue(WorkflowService.ACTIVITYID, task.getActivityID());
+				keyIndex.put(datevService.processSingleWorkitem(oldEntity));
+				task.countUpdated();
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.imixs.workflow.datev;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * The DatevKeyIndex maps the primary key (txtname) of all imported workitems
+ * to their $uniqueid and a fingerprint of their DATEV items. The index is
+ * built once before an import by the method DatevService.loadKeyIndex(). So
+ * the import can test the existence of a workitem and detect an unchanged
+ * line without a search query or loading the workitem. A key not contained
+ * in the index is searched by the method DatevService.findWorkitemByName()
+ * before a new workitem is created.
+ *
+ * The fingerprint is a SHA-1 hash over all items with the prefix '_datev_'
+ * sorted by their name.
+ *
+ * The index is updated concurrently by the DatevImportWorkers.
+ *
+ * @author rsoika
+ */
+public class DatevKeyIndex {
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Adds or replaces the entry of a workitem
+	 *
+	 * @param workitem
+	 */
+	public void put(ItemCollection workitem) {
+		String key = workitem.getItemValueString("txtname");
+		if (key.isEmpty())
+			return;
+		entries.put(key, new Entry(workitem.getUniqueID(), fingerprint(workitem)));
+	}
+
+	/**
+	 * Returns the entry for a primary key or null if no workitem with this key
+	 * is indexed.
+	 *
+	 * @param key
+	 * @return entry or null
+	 */
+	public Entry get(String key) {
+		return entries.get(key);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Computes the fingerprint of the DATEV items of an entity. An entity read
+	 * from a csv line and the workitem imported from this line have the same
+	 * fingerprint.
+	 *
+	 * @param entity
+	 * @return hex encoded fingerprint
+	 */
+	public static String fingerprint(ItemCollection entity) {
+		Map<String, List<Object>> items = new TreeMap<String, List<Object>>();
+		for (Map.Entry<String, List<Object>> item : entity.getAllItems().entrySet()) {
+			if (item.getKey().toLowerCase().startsWith("_datev_"))
+				items.put(item.getKey().toLowerCase(), item.getValue());
+		}
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder data = new StringBuilder();
+		for (Map.Entry<String, List<Object>> item : items.entrySet()) {
+			data.setLength(0);
+			data.append(item.getKey()).append('=');
+			for (Object value : item.getValue()) {
+				// a date is compared by its time
+				if (value instanceof Date)
+					data.append(((Date) value).getTime());
+				else
+					data.append(value);
+				data.append('\u0001');
+			}
+			data.append('\u0000');
+			digest.update(data.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest()) {
+			result.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * The $uniqueid and the fingerprint of an indexed workitem
+	 */
+	public static class Entry {
+		private final String uniqueID;
+		private final String fingerprint;
+
+		public Entry(String uniqueID, String fingerprint) {
+			this.uniqueID = uniqueID;
+			this.fingerprint = fingerprint;
+		}
+
+		public String getUniqueID() {
+			return uniqueID;
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+	}
+}
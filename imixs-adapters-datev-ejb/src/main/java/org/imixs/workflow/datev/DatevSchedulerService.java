@@ -41,6 +41,8 @@ import javax.ejb.Stateless;
 import javax.ejb.Timeout;
 import javax.ejb.Timer;
 import javax.ejb.TimerConfig;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 
 import org.imixs.workflow.ItemCollection;
 import org.imixs.workflow.WorkflowKernel;
@@ -337,9 +339,13 @@ public class DatevSchedulerService {
 	 * 
 	 * The method imports datev entities form a file.
 	 * 
+	 * The method runs without a transaction. Each workitem and each checkpoint
+	 * of the import is saved in its own transaction.
+	 * 
 	 * @param timer
 	 */
 	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 	public void processImport(javax.ejb.Timer timer) {
 		String sTimerID = null;
 		// get millis...
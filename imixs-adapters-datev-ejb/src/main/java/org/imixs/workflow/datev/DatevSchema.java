@@ -0,0 +1,299 @@
+package org.imixs.workflow.datev;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The DatevSchema defines the type of each column of a DATEV csv file. The
+ * schema is derived once before an import. So a cell is converted by the codec
+ * of its column without trying to parse each value as a date.
+ *
+ * The type of a column can be defined by the item '_datev_schema' of the
+ * DATEV configuration. Each entry has the format 'fieldname:type', entries
+ * are separated by ',' or a line break. The type of all other columns is
+ * inferred from the first records of the file: A column containing only ISO
+ * dates is of type DATE, other columns of type STRING. A column without any
+ * value in the sampled records is of type AUTO.
+ *
+ * The codecs are stateless and can be shared by several threads.
+ *
+ * @author rsoika
+ */
+public class DatevSchema {
+
+	static final int SAMPLE_SIZE = 100;
+
+	private static Logger logger = Logger.getLogger(DatevSchema.class.getName());
+
+	/**
+	 * The type of a column and its codec
+	 */
+	public enum Type {
+		/**
+		 * The value is imported as a string
+		 */
+		STRING {
+			@Override
+			Object parse(String value) {
+				return value;
+			}
+		},
+
+		/**
+		 * An ISO date (yyyy-MM-dd) or date time (yyyy-MM-ddTHH:mm:ss.SSS) is
+		 * imported as a Date in the local time zone. Trailing text (e.g. a zone
+		 * offset) is ignored.
+		 */
+		DATE {
+			@Override
+			Object parse(String value) {
+				if (!isISODate(value))
+					return null;
+				try {
+					ParsePosition position = new ParsePosition(0);
+					if (value.length() > 10 && value.charAt(10) == 'T')
+						return toDate(LocalDateTime
+								.from(DateTimeFormatter.ISO_LOCAL_DATE_TIME.parse(value, position)));
+					return toDate(
+							LocalDate.from(DateTimeFormatter.ISO_LOCAL_DATE.parse(value, position)).atStartOfDay());
+				} catch (DateTimeException e) {
+					// invalid day or time
+					return null;
+				}
+			}
+		},
+
+		/**
+		 * A decimal number with a comma separator (e.g. '-1.234,56') is
+		 * imported as a BigDecimal. A '.' is only accepted as a thousands
+		 * separator between groups of three digits.
+		 */
+		DECIMAL {
+			@Override
+			Object parse(String value) {
+				int length = value.length();
+				StringBuilder number = new StringBuilder(length);
+				int i = 0;
+				if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+					number.append(value.charAt(0));
+					i++;
+				}
+				// integer part with optional thousands separators
+				int groupDigits = 0;
+				boolean grouped = false;
+				for (; i < length && value.charAt(i) != ','; i++) {
+					char c = value.charAt(i);
+					if (c >= '0' && c <= '9') {
+						number.append(c);
+						groupDigits++;
+					} else if (c == '.' && groupDigits > 0 && (grouped ? groupDigits == 3 : groupDigits <= 3)) {
+						grouped = true;
+						groupDigits = 0;
+					} else {
+						return null;
+					}
+				}
+				if (groupDigits == 0 || (grouped && groupDigits != 3))
+					return null;
+				// fraction
+				if (i < length) {
+					i++;
+					if (i == length)
+						return null;
+					number.append('.');
+					for (; i < length; i++) {
+						char c = value.charAt(i);
+						if (c < '0' || c > '9')
+							return null;
+						number.append(c);
+					}
+				}
+				return new BigDecimal(number.toString());
+			}
+		},
+
+		/**
+		 * A value is imported as a Date if it is an ISO date, otherwise as a
+		 * string
+		 */
+		AUTO {
+			@Override
+			Object parse(String value) {
+				Object date = DATE.parse(value);
+				return date != null ? date : value;
+			}
+		};
+
+		/**
+		 * Converts a value
+		 *
+		 * @param value
+		 *            - not empty cell
+		 * @return converted value or null if the value does not match the type
+		 */
+		abstract Object parse(String value);
+
+		/**
+		 * Converts a value. A value not matching the type is imported as a
+		 * string.
+		 *
+		 * @param value
+		 *            - not empty cell
+		 * @return converted value
+		 */
+		public Object decode(String value) {
+			Object result = parse(value);
+			return result != null ? result : value;
+		}
+	}
+
+	private final List<String> fieldnames;
+	private final Type[] types;
+
+	/**
+	 * Creates a schema for the columns of a csv file. The type of all columns
+	 * is unknown.
+	 *
+	 * @param fieldnames
+	 */
+	public DatevSchema(List<String> fieldnames) {
+		this.fieldnames = fieldnames;
+		this.types = new Type[fieldnames.size()];
+	}
+
+	/**
+	 * Returns the type of a column
+	 *
+	 * @param column
+	 * @return type of the column
+	 */
+	public Type getType(int column) {
+		if (column >= types.length || types[column] == null)
+			return Type.AUTO;
+		return types[column];
+	}
+
+	/**
+	 * Sets the type of a column
+	 *
+	 * @param fieldname
+	 * @param type
+	 * @return false if the file has no column with this name
+	 */
+	public boolean setType(String fieldname, Type type) {
+		boolean result = false;
+		for (int i = 0; i < types.length; i++) {
+			if (fieldname.equalsIgnoreCase(fieldnames.get(i))) {
+				types[i] = type;
+				result = true;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the column types of a schema definition. Each entry has the format
+	 * 'fieldname:type'. Entries are separated by ',' or a line break. Invalid
+	 * entries are ignored.
+	 *
+	 * @param definition
+	 */
+	public void setTypes(String definition) {
+		for (String entry : definition.split("[,\\r\\n]")) {
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+			int i = entry.lastIndexOf(':');
+			Type type = null;
+			if (i > 0) {
+				String typeName = entry.substring(i + 1).trim().toUpperCase();
+				for (Type t : Type.values()) {
+					if (t.name().equals(typeName))
+						type = t;
+				}
+			}
+			if (type == null || !setType(entry.substring(0, i).trim(), type)) {
+				logger.warning("invalid DATEV schema entry '" + entry + "' - verify DATEV configuration");
+			}
+		}
+	}
+
+	/**
+	 * Infers the type of all columns without a type from the next records of a
+	 * csv reader. The position of the reader is not changed.
+	 *
+	 * @param reader
+	 * @param maxRecords
+	 *            - max number of sampled records
+	 * @throws IOException
+	 */
+	public void sample(DatevCSVReader reader, int maxRecords) throws IOException {
+		boolean[] sampled = new boolean[types.length];
+		boolean[] dates = new boolean[types.length];
+		for (int i = 0; i < types.length; i++) {
+			dates[i] = types[i] == null;
+		}
+
+		long offset = reader.getOffset();
+		for (int count = 0; count < maxRecords && reader.next(); count++) {
+			int cells = Math.min(reader.getCellCount(), types.length);
+			for (int i = 0; i < cells; i++) {
+				if (types[i] != null || reader.isEmpty(i))
+					continue;
+				sampled[i] = true;
+				if (dates[i] && Type.DATE.parse(reader.getCell(i)) == null)
+					dates[i] = false;
+			}
+		}
+		reader.seek(offset);
+
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == null && sampled[i])
+				types[i] = dates[i] ? Type.DATE : Type.STRING;
+		}
+	}
+
+	/**
+	 * Converts a cell by the codec of its column
+	 *
+	 * @param column
+	 * @param value
+	 *            - not empty cell
+	 * @return converted value
+	 */
+	public Object decode(int column, String value) {
+		return getType(column).decode(value);
+	}
+
+	/**
+	 * Tests the format yyyy-MM-dd of the first 10 characters without parsing
+	 * the value
+	 */
+	static boolean isISODate(String value) {
+		if (value.length() < 10)
+			return false;
+		for (int i = 0; i < 10; i++) {
+			char c = value.charAt(i);
+			if (i == 4 || i == 7) {
+				if (c != '-')
+					return false;
+			} else if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static Date toDate(LocalDateTime dateTime) {
+		return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+	}
+}
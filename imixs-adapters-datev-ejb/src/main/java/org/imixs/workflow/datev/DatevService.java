@@ -27,21 +27,18 @@
 
 package org.imixs.workflow.datev;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
@@ -94,8 +91,15 @@ public class DatevService {
 
 	final static public String TYPE = "datev";
 
+	final static int WORKER_QUEUE_SIZE = 100;
+	final static int MAX_WORKERS = 8;
+	final static int DEFAULT_CHUNK_SIZE = 1000;
+
 	@EJB
 	WorkflowService workflowService = null;
+
+	@EJB
+	DatevImportWorker datevImportWorker;
 	private static Logger logger = Logger.getLogger(DatevService.class.getName());
 
 	/**
@@ -171,11 +175,13 @@ public class DatevService {
 	}
 
 	/**
-	 * This method finds a workitem by the attribute 'txtName'
+	 * This method finds a workitem by the attribute 'txtName'. The workitem is
+	 * found independent of its model version.
 	 * 
 	 * @return workitem or null if no workitem exits
+	 * @throws QueryException
 	 */
-	public ItemCollection findWorkitemByName(String sKey) {
+	public ItemCollection findWorkitemByName(String sKey) throws QueryException {
 
 		// String sQuery = "SELECT wi FROM Entity as wi";
 		// sQuery += " JOIN wi.textItems as t ";
@@ -184,14 +190,9 @@ public class DatevService {
 
 		String searchTerm = "( (type:\"workitem\" OR type:\"workitemarchive\") AND txtname:\"" + sKey + "\")";
 
-		Collection<ItemCollection> col;
-		try {
-			col = workflowService.getDocumentService().find(searchTerm, 1, 0);
-			if (col.size() > 0) {
-				return col.iterator().next();
-			}
-		} catch (QueryException e) {
-			logger.warning(e.getMessage());
+		Collection<ItemCollection> col = workflowService.getDocumentService().find(searchTerm, 1, 0);
+		if (col.size() > 0) {
+			return col.iterator().next();
 		}
 
 		// no order found
@@ -199,6 +200,60 @@ public class DatevService {
 
 	}
 
+	/**
+	 * This method builds a DatevKeyIndex of all workitems of the given model
+	 * versions. The index only avoids a search query for each line of the
+	 * import. A key not contained in the index is searched by the method
+	 * findWorkitemByName(), which also finds workitems moved to a newer model
+	 * version.
+	 * 
+	 * The workitems of a model version are read by one search query. Reading
+	 * the result in pages would collect the hits of all previous pages again
+	 * for each page. Note that the query loads all documents of the model
+	 * version at once and that the engine logs a warning if the result
+	 * exceeds 9999 documents.
+	 * 
+	 * @param modelversions
+	 * @return key index
+	 * @throws QueryException
+	 */
+	public DatevKeyIndex loadKeyIndex(Collection<String> modelversions) throws QueryException {
+		long lProfiler = System.currentTimeMillis();
+		DatevKeyIndex keyIndex = new DatevKeyIndex();
+		for (String modelversion : modelversions) {
+			String searchTerm = "( (type:\"workitem\" OR type:\"workitemarchive\") AND $modelversion:\""
+					+ modelversion + "\")";
+			int count = workflowService.getDocumentService().count(searchTerm);
+			if (count == 0)
+				continue;
+			for (ItemCollection workitem : workflowService.getDocumentService().find(searchTerm, count, 0)) {
+				keyIndex.put(workitem);
+			}
+		}
+		logger.fine("key index: " + keyIndex.size() + " workitems loaded in "
+				+ (System.currentTimeMillis() - lProfiler) + " ms");
+		return keyIndex;
+	}
+
+	/**
+	 * Returns the model versions of the workitems created by an import. These
+	 * are the model version of the configuration and the previous model
+	 * versions listed in the item '_datev_modelversions'.
+	 * 
+	 * @param configuration
+	 * @return model versions
+	 */
+	List<String> getModelVersions(ItemCollection configuration) {
+		List<String> result = new ArrayList<String>();
+		result.add(configuration.getItemValueString("_datev_modelversion"));
+		for (Object value : configuration.getItemValue("_datev_modelversions")) {
+			String modelversion = value == null ? "" : value.toString().trim();
+			if (!modelversion.isEmpty() && !result.contains(modelversion))
+				result.add(modelversion);
+		}
+		return result;
+	}
+
 	/**
 	 * This method imports all entities from a csv file.
 	 * 
@@ -206,7 +261,27 @@ public class DatevService {
 	 * caught and stored in the DATEV configuration entity
 	 * 
 	 * The parameter start and count can be used to import only a part of the
-	 * file.
+	 * file. If the count is reached, a checkpoint is stored and the next call
+	 * continues the import.
+	 * 
+	 * Before the import the primary keys of all existing workitems are loaded
+	 * into a DatevKeyIndex. So an existing workitem is only loaded if the line
+	 * has changed. The workitems of previous model versions listed in the item
+	 * '_datev_modelversions' are added to the index. A line not contained in
+	 * the index is searched by its primary key.
+	 * 
+	 * The lines are imported by DatevImportWorkers. The number of parallel
+	 * workers is defined by the item '_datev_workers' (default 1, max 8). The
+	 * lines are partitioned by the primary key, so lines with the same key are
+	 * imported in the order of the file. Each workitem is processed in a new
+	 * transaction.
+	 * 
+	 * After each chunk of lines ('_datev_chunksize', default 1000) the method
+	 * waits for the workers and saves a checkpoint (file identity, byte offset
+	 * and line number) in the configuration. If the import fails or is
+	 * interrupted, the next import of the same file continues at the last
+	 * checkpoint. The checkpoint is removed after the file was imported
+	 * completely.
 	 * 
 	 * 
 	 * @param configuration
@@ -214,15 +289,15 @@ public class DatevService {
 	 * 
 	 * @param start
 	 *            - optional start position
-	 * @param count
-	 *            - optional count (default =-1)
+	 * @param maxcount
+	 *            - optional max number of lines (default =-1)
 	 * @throws PluginException
 	 */
 	@TransactionAttribute(value = TransactionAttributeType.REQUIRES_NEW)
 	public ItemCollection importEntities(ItemCollection configuration, int start, int maxcount) throws DatevException {
 
 		int line = 0;
-		String datevLine = null;
+		String datevKey = null;
 		String modelversion = null;
 		String filename = null;
 		String encoding = null;
@@ -272,73 +347,138 @@ public class DatevService {
 		if (modifiedTime == 0)
 			throw new DatevException(sDatevID, FILE_NOT_FOUND, "Datev importfile '" + filename + "' not found!");
 
+		int workers = 1;
+		try {
+			String sWorkers = configuration.getItemValueString("_datev_workers").trim();
+			if (!sWorkers.isEmpty())
+				workers = Math.max(1, Integer.parseInt(sWorkers));
+			if (workers > MAX_WORKERS) {
+				logger.warning("_datev_workers exceeds the limit of " + MAX_WORKERS + " - verify DATEV configuration "
+						+ sDatevID);
+				workers = MAX_WORKERS;
+			}
+		} catch (NumberFormatException e) {
+			logger.warning("invalid _datev_workers - verify DATEV configuration " + sDatevID);
+		}
+
+		int chunkSize = DEFAULT_CHUNK_SIZE;
+		try {
+			String sChunkSize = configuration.getItemValueString("_datev_chunksize").trim();
+			if (!sChunkSize.isEmpty())
+				chunkSize = Math.max(1, Integer.parseInt(sChunkSize));
+		} catch (NumberFormatException e) {
+			logger.warning("invalid _datev_chunksize - verify DATEV configuration " + sDatevID);
+		}
+
 		if (lastImport < modifiedTime) {
-			DataInputStream in = null;
+			DatevCSVReader reader = null;
+			DatevImportTask task = null;
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			String fileIdentity = getFileIdentity(file);
 			try {
-				FileInputStream fis = new FileInputStream(filename);
-				in = new DataInputStream(fis);
-				BufferedReader br = new BufferedReader(new InputStreamReader(in, encoding));
+				reader = new DatevCSVReader(file, encoding);
 
 				// skip first line
-				br.readLine();
+				reader.next();
 				line++;
 
 				// read the first line containing the field names
-				String fieldnames = br.readLine();
+				reader.next();
 				line++;
-				List<String> fields = parseFieldList(fieldnames);
-
-				// skipp start pos....
-				if (start > 0) {
+				List<String> fields = parseFieldList(reader);
+				DatevSchema schema = loadSchema(configuration, reader, fields);
+
+				// load the primary keys of all existing workitems
+				DatevKeyIndex keyIndex = loadKeyIndex(getModelVersions(configuration));
+				task = new DatevImportTask(modelversion, processID, activityID, keyIndex, workers,
+						WORKER_QUEUE_SIZE);
+
+				if (fileIdentity.equals(configuration.getItemValueString("_datev_checkpoint_file"))) {
+					// resume the last import
+					long offset = getItemValueLong(configuration, "_datev_checkpoint_offset");
+					line = configuration.getItemValueInteger("_datev_checkpoint_line");
+					reader.seek(offset);
+					logger.info("DATEV import id= " + sDatevID + " resumed at line " + line);
+				} else if (start > 0) {
+					// skipp start pos....
 					for (int i = 0; i < start; i++) {
 						// skip line
-						if (br.readLine() == null)
+						if (!reader.next())
 							break;
+						line++;
+					}
+				}
+
+				// start the workers
+				if (workers > 1) {
+					for (int i = 0; i < workers; i++) {
+						results.add(datevImportWorker.run(task, i));
 					}
 				}
 
 				// now we read all entities until maxcount
-				while ((datevLine = br.readLine()) != null) {
+				boolean completed = false;
+				while (!task.isFailed()) {
+					if (maxcount > 0 && workitemsTotal >= maxcount)
+						break;
+					datevKey = null;
+					if (!reader.next()) {
+						completed = true;
+						break;
+					}
 					line++;
 					workitemsTotal++;
-					ItemCollection entity = readEntity(datevLine, fields);
+					ItemCollection entity = readEntity(reader, fields, schema);
 
 					// replace txtName by the DATEV key field
 					entity.replaceItemValue("txtname", entity.getItemValue("_datev_" + sDatevPrimaryKey));
+					datevKey = entity.getItemValueString("txtname");
 
-					// test if workitem already exits....
-					ItemCollection oldEntity = findWorkitemByName(entity.getItemValueString("txtName"));
-					if (oldEntity == null) {
-						// create new workitem
-						entity.replaceItemValue(WorkflowService.MODELVERSION, modelversion);
-						entity.replaceItemValue(WorkflowService.PROCESSID, processID);
-						entity.replaceItemValue(WorkflowService.ACTIVITYID, activityID);
-						processSingleWorkitem(entity);
-						workitemsImported++;
+					if (workers > 1) {
+						task.put(new DatevImportTask.Row(line, entity));
 					} else {
-						// test if modified....
-						if (!isEqualEntity(oldEntity, entity)) {
-							logger.fine("update exsting DATV entity: " + oldEntity.getUniqueID());
-
-							// copy all datev entries from the import into the
-							// existing entity
-							oldEntity.replaceAllItems(entity.getAllItems());
-							oldEntity.replaceItemValue(WorkflowService.ACTIVITYID, activityID);
-							processSingleWorkitem(oldEntity);
-							workitemsUpdated++;
-						}
+						datevImportWorker.importEntity(task, entity);
+					}
+
+					// commit the chunk
+					if (workitemsTotal % chunkSize == 0) {
+						task.awaitIdle();
+						if (!task.isFailed())
+							saveCheckpoint(configuration, fileIdentity, reader.getOffset(), line);
 					}
 				}
 
-				configuration.replaceItemValue("_datev_lLastImport", modifiedTime);
-				configuration.replaceItemValue("_datev_datLastImport", new Date(modifiedTime));
+				// wait for the workers
+				if (workers > 1) {
+					awaitWorkers(task, results);
+				}
+				if (task.isFailed()) {
+					if (task.getFailedRow() != null) {
+						line = task.getFailedRow().getLine();
+						datevKey = task.getFailedRow().getKey();
+					}
+					throw task.getException();
+				}
+
+				if (completed) {
+					configuration.replaceItemValue("_datev_lLastImport", modifiedTime);
+					configuration.replaceItemValue("_datev_datLastImport", new Date(modifiedTime));
+					configuration.removeItem("_datev_checkpoint_file");
+					configuration.removeItem("_datev_checkpoint_offset");
+					configuration.removeItem("_datev_checkpoint_line");
+				} else {
+					// maxcount reached - the next import continues
+					configuration.replaceItemValue("_datev_checkpoint_file", fileIdentity);
+					configuration.replaceItemValue("_datev_checkpoint_offset", reader.getOffset());
+					configuration.replaceItemValue("_datev_checkpoint_line", line);
+				}
 			} catch (IOException ioex) {
 				throw new DatevException(DatevService.class.getName(), IO_ERROR, "" + ioex, ioex);
 			} catch (Exception e) {
 				// Catch Workflow Exceptions
 				workitemsFailed++;
 
-				logger.severe("DATEV import error at line " + line + ": " + datevLine);
+				logger.severe("DATEV import error at line " + line + ": " + sDatevPrimaryKey + "=" + datevKey);
 				if (e.getCause() instanceof InvalidAccessException) {
 					throw new DatevException(DatevService.class.getName(),
 							((InvalidAccessException) e.getCause()).getErrorCode(),
@@ -353,16 +493,24 @@ public class DatevService {
 			}
 
 			finally {
+				if (task != null) {
+					// stop the workers after an exception of the reader
+					awaitWorkers(task, results);
+					workitemsImported = task.getWorkitemsImported();
+					workitemsUpdated = task.getWorkitemsUpdated();
+				}
 				configuration.replaceItemValue("numWorkItemsImported", workitemsImported);
 				configuration.replaceItemValue("numWorkItemsUpdated", workitemsUpdated);
 				configuration.replaceItemValue("numWorkItemsFailed", workitemsFailed);
 				configuration.replaceItemValue("numWorkitemsTotal", workitemsTotal);
 
 				// Close the input stream
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
 				}
 			}
 		}
@@ -370,6 +518,81 @@ public class DatevService {
 		return configuration;
 	}
 
+	/**
+	 * Stores the position of the last imported line in the configuration. The
+	 * configuration is saved in a new transaction, so the checkpoint is kept
+	 * if the import fails or is interrupted.
+	 * 
+	 * @param configuration
+	 * @param fileIdentity
+	 *            - identity of the import file
+	 * @param offset
+	 *            - byte offset of the next line
+	 * @param line
+	 *            - number of the last imported line
+	 */
+	void saveCheckpoint(ItemCollection configuration, String fileIdentity, long offset, int line) {
+		configuration.replaceItemValue("_datev_checkpoint_file", fileIdentity);
+		configuration.replaceItemValue("_datev_checkpoint_offset", offset);
+		configuration.replaceItemValue("_datev_checkpoint_line", line);
+		if (configuration.getUniqueID().isEmpty())
+			return;
+		try {
+			ItemCollection savedConfiguration = workflowService.getDocumentService()
+					.saveByNewTransaction(configuration);
+			configuration.replaceAllItems(savedConfiguration.getAllItems());
+			logger.fine("DATEV checkpoint saved at line " + line);
+		} catch (AccessDeniedException e) {
+			logger.warning("unable to save DATEV checkpoint: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the identity of an import file. The identity is build from the
+	 * path, the size and the modification time. So a new export with the same
+	 * file name is not resumed.
+	 */
+	String getFileIdentity(File file) {
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+	}
+
+	private long getItemValueLong(ItemCollection configuration, String itemName) {
+		List<?> values = configuration.getItemValue(itemName);
+		if (values.isEmpty() || !(values.get(0) instanceof Number))
+			return 0;
+		return ((Number) values.get(0)).longValue();
+	}
+
+	/**
+	 * Marks the end of all partitions of an import task and waits until all
+	 * workers have finished. The method returns immediately if the workers
+	 * were already finished.
+	 * 
+	 * @param task
+	 * @param results
+	 *            - results of the running workers
+	 */
+	private void awaitWorkers(DatevImportTask task, List<Future<Integer>> results) {
+		if (results.isEmpty())
+			return;
+		try {
+			task.close();
+			for (Future<Integer> result : results) {
+				try {
+					result.get(DatevImportTask.TIMEOUT, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					logger.severe("DATEV import worker not responding");
+					result.cancel(false);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.severe("DATEV import worker failed: " + e.getMessage());
+		}
+		results.clear();
+	}
+
 	/**
 	 * This method compares two datev entities based on the datev fields
 	 * 
@@ -378,7 +601,7 @@ public class DatevService {
 	 * @param fields
 	 * @return
 	 */
-	private boolean isEqualEntity(ItemCollection oldEntity, ItemCollection entity) {
+	public boolean isEqualEntity(ItemCollection oldEntity, ItemCollection entity) {
 
 		Set<String> fields = entity.getAllItems().keySet();
 		for (String itemName : fields) {
@@ -396,24 +619,41 @@ public class DatevService {
 	 * @return list of fieldnames
 	 */
 	public List<String> parseFieldList(String data) {
+		return parseFieldList(readString(data));
+	}
+
+	/**
+	 * This method parses the DATEV field description of the current record of
+	 * a csv reader. Characters not allowed in an item name are replaced by '_'.
+	 * An empty field name is added as a dummy entry (null).
+	 * 
+	 * @return list of fieldnames
+	 */
+	public List<String> parseFieldList(DatevCSVReader reader) {
 		List<String> result = new ArrayList<String>();
-		StringTokenizer st = new StringTokenizer(data, ";");
-		while (st.hasMoreTokens()) {
-			String field = st.nextToken();
-			if (!field.isEmpty()) {
-				field = field.replace(' ', '_');
-				field = field.replace('/', '_');
-				field = field.replace('\\', '_');
-				field = field.replace('.', '_');
-				field = field.replace('>', '_');
-				field = field.replace('<', '_');
-				field = field.replace('&', '_');
-				result.add(field);
+		for (int i = 0; i < reader.getCellCount(); i++) {
+			if (!reader.isEmpty(i)) {
+				char[] field = reader.getCell(i).toCharArray();
+				for (int j = 0; j < field.length; j++) {
+					switch (field[j]) {
+					case ' ':
+					case '/':
+					case '\\':
+					case '.':
+					case '>':
+					case '<':
+					case '&':
+						field[j] = '_';
+						break;
+					default:
+						break;
+					}
+				}
+				result.add(new String(field));
 			} else {
 				// add dummy entry
 				result.add(null);
 			}
-
 		}
 		return result;
 	}
@@ -426,70 +666,77 @@ public class DatevService {
 	 * @return
 	 */
 	public ItemCollection readEntity(String data, List<String> fieldnames) {
+		return readEntity(readString(data), fieldnames, new DatevSchema(fieldnames));
+	}
+
+	/**
+	 * This method creates a ItemCollection from the current record of a csv
+	 * reader. Cells without a corresponding field name are ignored. Empty
+	 * cells are not decoded. Each cell is converted by the codec of its column.
+	 * 
+	 * @param reader
+	 * @param fieldnames
+	 * @param schema
+	 *            - column types
+	 * @return
+	 */
+	public ItemCollection readEntity(DatevCSVReader reader, List<String> fieldnames, DatevSchema schema) {
 		ItemCollection result = new ItemCollection();
-		int iCol = 0;
-		String[] valuList = data.split(";", -1);
-		for (String itemValue : valuList) {
+		int count = Math.min(reader.getCellCount(), fieldnames.size());
+		for (int iCol = 0; iCol < count; iCol++) {
+			String fieldname = fieldnames.get(iCol);
+			if (fieldname == null) {
+				// column without a field name
+				continue;
+			}
 			// test if the token has content
-			if (itemValue != null && !itemValue.isEmpty()) {
+			if (!reader.isEmpty(iCol)) {
 				// create a itemvalue with the corresponding fieldname
-
-				// test if value is an ISO date format
-				Date dateValue = parseISODate(itemValue);
-				if (dateValue != null) {
-					result.replaceItemValue("_datev_" + fieldnames.get(iCol), dateValue);
-				} else {
-					result.replaceItemValue("_datev_" + fieldnames.get(iCol), itemValue);
-				}
+				Object itemValue = schema.decode(iCol, reader.getCell(iCol));
+				result.replaceItemValue("_datev_" + fieldname, itemValue);
 			} else {
 				// empty value
-				result.replaceItemValue("_datev_" + fieldnames.get(iCol),"");
+				result.replaceItemValue("_datev_" + fieldname, "");
 			}
-			iCol++;
 		}
 		return result;
 	}
 
 	/**
-	 * This method parses a string value for an ISO Date/Time format. If the
-	 * value is parseable the method returns a Date object. In other case the
-	 * method returns null.
-	 * 
-	 * Supported formats:
+	 * Derives the column types of an import file. The types defined by the
+	 * item '_datev_schema' of the configuration are completed by sampling the
+	 * first records following the field names.
 	 * 
-	 * yyyy-MM-dd'T'HH:mm:ss.SSS
-	 * 
-	 * yyyy-MM-dd
-	 * 
-	 * @param itemValue
-	 * @return
+	 * @param configuration
+	 * @param reader
+	 *            - positioned on the first data record
+	 * @param fieldnames
+	 * @return schema
+	 * @throws IOException
 	 */
-	private Date parseISODate(String itemValue) {
-
-		// try to parse datetime
-		try {
-			DateFormat format = new SimpleDateFormat(ISO8601_FORMAT_DATETIME);
-			Date date = format.parse(itemValue);
-			if (date != null) {
-				return date;
-			}
-		} catch (Exception e) {
-			// unable to parse date
+	DatevSchema loadSchema(ItemCollection configuration, DatevCSVReader reader, List<String> fieldnames)
+			throws IOException {
+		DatevSchema schema = new DatevSchema(fieldnames);
+		for (Object definition : configuration.getItemValue("_datev_schema")) {
+			if (definition != null)
+				schema.setTypes(definition.toString());
 		}
+		schema.sample(reader, DatevSchema.SAMPLE_SIZE);
+		return schema;
+	}
 
-		// try to parse date
+	/**
+	 * Returns a csv reader positioned on the first record of a string
+	 */
+	private DatevCSVReader readString(String data) {
+		DatevCSVReader reader = new DatevCSVReader(data);
 		try {
-			DateFormat format = new SimpleDateFormat(ISO8601_FORMAT_DATE);
-			Date date = format.parse(itemValue);
-			if (date != null) {
-				return date;
-			}
-		} catch (Exception e) {
-			// unable to parse date
+			reader.next();
+		} catch (IOException e) {
+			// a string is not mapped from a file
+			throw new IllegalStateException(e);
 		}
-
-		// string was not parseable
-		return null;
+		return reader;
 	}
 
 	/**
@@ -501,11 +748,12 @@ public class DatevService {
 	 * @throws ProcessingErrorException
 	 * @throws AccessDeniedException
 	 * @throws ModelException 
+	 * @return processed workitem
 	 */
 	@TransactionAttribute(value = TransactionAttributeType.REQUIRES_NEW)
-	public void processSingleWorkitem(ItemCollection aWorkitem)
+	public ItemCollection processSingleWorkitem(ItemCollection aWorkitem)
 			throws AccessDeniedException, ProcessingErrorException, PluginException, ModelException {
-		workflowService.processWorkItem(aWorkitem);
+		return workflowService.processWorkItem(aWorkitem);
 	}
 
 }
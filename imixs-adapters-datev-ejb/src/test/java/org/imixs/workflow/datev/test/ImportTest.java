@@ -4,7 +4,11 @@ import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -12,6 +16,10 @@ import java.util.Date;
 import java.util.List;
 
 import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.datev.DatevCSVReader;
+import org.imixs.workflow.datev.DatevImportTask;
+import org.imixs.workflow.datev.DatevKeyIndex;
+import org.imixs.workflow.datev.DatevSchema;
 import org.imixs.workflow.datev.DatevService;
 import org.imixs.workflow.exceptions.PluginException;
 import org.junit.Assert;
@@ -131,4 +139,237 @@ public class ImportTest {
 
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Test the key index and the fingerprint of an imported entity
+	 */
+	@Test
+	public void testKeyIndex() {
+
+		try {
+			String filename = "/DTVF_Deb_Stamm_20160511_101110.csv";
+
+			URL url = this.getClass().getResource(filename);
+			File testFile = new File(url.getFile());
+
+			FileInputStream fis = new FileInputStream(testFile);
+			DataInputStream in = new DataInputStream(fis);
+			BufferedReader br = new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+
+			// ignore first line
+			br.readLine();
+			List<String> fieldList = datevService.parseFieldList(br.readLine());
+			ItemCollection entity = datevService.readEntity(br.readLine(), fieldList);
+			entity.replaceItemValue("txtname", entity.getItemValue("_datev_konto"));
+			br.close();
+
+			// the imported workitem contains additional items
+			ItemCollection workitem = new ItemCollection();
+			workitem.replaceAllItems(entity.getAllItems());
+			workitem.replaceItemValue("$uniqueid", "1-2-3");
+			workitem.replaceItemValue("$processid", 1000);
+
+			DatevKeyIndex keyIndex = new DatevKeyIndex();
+			keyIndex.put(workitem);
+			Assert.assertEquals(1, keyIndex.size());
+			Assert.assertNull(keyIndex.get("33333"));
+			DatevKeyIndex.Entry indexEntry = keyIndex.get("22222");
+			Assert.assertNotNull(indexEntry);
+			Assert.assertEquals("1-2-3", indexEntry.getUniqueID());
+			Assert.assertEquals(DatevKeyIndex.fingerprint(entity), indexEntry.getFingerprint());
+
+			// a changed value changes the fingerprint
+			entity.replaceItemValue("_datev_Ort", "Musterstadt 3");
+			Assert.assertFalse(DatevKeyIndex.fingerprint(entity).equals(indexEntry.getFingerprint()));
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+
+	}
+
+	/**
+	 * Test the partitioning of the lines of an import task. Lines with the same
+	 * primary key are queued in the same partition in the order of the file.
+	 */
+	@Test
+	public void testImportTask() throws InterruptedException {
+		DatevImportTask task = new DatevImportTask("1.0.0", 1000, 10, new DatevKeyIndex(), 4, 10);
+		Assert.assertEquals(4, task.getPartitions());
+		String[] keys = { "22222", "33333", "22222", "44444", "22222" };
+		for (int i = 0; i < keys.length; i++) {
+			ItemCollection entity = new ItemCollection();
+			entity.replaceItemValue("txtname", keys[i]);
+			task.put(new DatevImportTask.Row(i + 3, entity));
+		}
+		task.close();
+
+		int partition = task.getPartition("22222");
+		Assert.assertEquals(partition, task.getPartition(new String("22222")));
+		int lastLine = 0;
+		int count = 0;
+		DatevImportTask.Row row;
+		while ((row = task.take(partition)).getEntity() != null) {
+			if ("22222".equals(row.getKey())) {
+				Assert.assertTrue(row.getLine() > lastLine);
+				lastLine = row.getLine();
+				count++;
+			}
+		}
+		Assert.assertEquals(3, count);
+		Assert.assertEquals(7, lastLine);
+	}
+
+
+	/**
+	 * Test the byte offset of the csv reader. After a seek to the offset of a
+	 * line the reader continues with the same line.
+	 */
+	@Test
+	public void testCSVReaderSeek() throws IOException {
+		URL url = this.getClass().getResource("/DTVF_Deb_Stamm_20160511_101110.csv");
+		DatevCSVReader reader = new DatevCSVReader(new File(url.getFile()), "ISO-8859-1");
+		try {
+			// skip the header lines
+			reader.readLine();
+			String fieldnames = reader.readLine();
+			Assert.assertTrue(datevService.parseFieldList(fieldnames).size() > 3);
+
+			long offset = reader.getOffset();
+			String line = reader.readLine();
+			Assert.assertNotNull(line);
+			Assert.assertFalse(line.endsWith("\r"));
+			String nextLine = reader.readLine();
+
+			reader.seek(offset);
+			Assert.assertEquals(offset, reader.getOffset());
+			Assert.assertEquals(line, reader.readLine());
+			Assert.assertEquals(nextLine, reader.readLine());
+		} finally {
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Test the DATEV quoting rules. The file is mapped in small regions so that
+	 * records cross the end of a mapped region.
+	 */
+	@Test
+	public void testCSVReaderQuoting() throws IOException {
+		File file = File.createTempFile("datev", ".csv");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(("Konto;Name;Ort;\r\n22222;\"M\u00fcller; \"\"Bau\"\" GmbH\";\"Stra\u00dfe 1\r\nK\u00f6ln\"\r\n"
+					+ "33333;;\"\";z\r44444;x").getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+
+		DatevCSVReader reader = new DatevCSVReader(file, "ISO-8859-1", 8);
+		try {
+			Assert.assertTrue(reader.next());
+			List<String> fields = datevService.parseFieldList(reader);
+			Assert.assertEquals(4, fields.size());
+			Assert.assertNull(fields.get(3));
+
+			Assert.assertTrue(reader.next());
+			Assert.assertEquals(3, reader.getCellCount());
+			Assert.assertEquals("M\u00fcller; \"Bau\" GmbH", reader.getCell(1));
+			Assert.assertEquals("Stra\u00dfe 1\r\nK\u00f6ln", reader.getCell(2));
+			long offset = reader.getOffset();
+
+			Assert.assertTrue(reader.next());
+			ItemCollection entity = datevService.readEntity(reader, fields, new DatevSchema(fields));
+			Assert.assertEquals("33333", entity.getItemValueString("_datev_konto"));
+			Assert.assertEquals("", entity.getItemValueString("_datev_name"));
+			Assert.assertEquals("", entity.getItemValueString("_datev_ort"));
+			// a column without a field name is skipped
+			Assert.assertFalse(entity.hasItem("_datev_null"));
+			Assert.assertEquals(3, entity.getAllItems().size());
+
+			// last record without a line terminator
+			Assert.assertTrue(reader.next());
+			Assert.assertEquals(2, reader.getCellCount());
+			Assert.assertEquals("x", reader.getCell(1));
+			Assert.assertFalse(reader.next());
+
+			reader.seek(offset);
+			// record terminated by a bare CR
+			Assert.assertEquals("33333;;\"\";z", reader.readLine());
+			Assert.assertEquals("44444;x", reader.readLine());
+		} finally {
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Test that charsets encoding the separators not as single bytes are
+	 * rejected
+	 */
+	@Test(expected = UnsupportedEncodingException.class)
+	public void testCSVReaderCharset() throws IOException {
+		URL url = this.getClass().getResource("/DTVF_Deb_Stamm_20160511_101110.csv");
+		new DatevCSVReader(new File(url.getFile()), "UTF-16").close();
+	}
+
+	/**
+	 * Test the column types derived from a schema definition and the first
+	 * records of a file
+	 */
+	@Test
+	public void testSchema() throws IOException {
+		File file = File.createTempFile("datev", ".csv");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(("Konto;Datum;Betrag;Notiz\n22222;2016-10-24;1.234,56;\n"
+					+ "33333;2016-10-24T08:39:49.288;-7,5;\n44444;2016-02-30;12;\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		DatevCSVReader reader = new DatevCSVReader(file, "UTF-8");
+		try {
+			reader.next();
+			List<String> fields = datevService.parseFieldList(reader);
+			DatevSchema schema = new DatevSchema(fields);
+			schema.setTypes("Betrag:decimal, Unknown:date");
+			long offset = reader.getOffset();
+			schema.sample(reader, 2);
+			Assert.assertEquals(offset, reader.getOffset());
+
+			Assert.assertEquals(DatevSchema.Type.STRING, schema.getType(0));
+			Assert.assertEquals(DatevSchema.Type.DATE, schema.getType(1));
+			Assert.assertEquals(DatevSchema.Type.DECIMAL, schema.getType(2));
+			Assert.assertEquals(DatevSchema.Type.AUTO, schema.getType(3));
+
+			reader.next();
+			ItemCollection entity = datevService.readEntity(reader, fields, schema);
+			Assert.assertEquals("22222", entity.getItemValueString("_datev_konto"));
+			Assert.assertNotNull(entity.getItemValueDate("_datev_datum"));
+			Assert.assertEquals(new BigDecimal("1234.56"), entity.getItemValue("_datev_betrag").get(0));
+
+			reader.next();
+			entity = datevService.readEntity(reader, fields, schema);
+			Assert.assertEquals(new BigDecimal("-7.5"), entity.getItemValue("_datev_betrag").get(0));
+
+			// an invalid date is imported as a string
+			reader.next();
+			entity = datevService.readEntity(reader, fields, schema);
+			Assert.assertEquals("2016-02-30", entity.getItemValue("_datev_datum").get(0));
+			Assert.assertEquals(new BigDecimal("12"), entity.getItemValue("_datev_betrag").get(0));
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals("1,2,3", DatevSchema.Type.DECIMAL.decode("1,2,3"));
+		Assert.assertEquals("1.5", DatevSchema.Type.DECIMAL.decode("1.5"));
+		Assert.assertEquals("1.2.3", DatevSchema.Type.DECIMAL.decode("1.2.3"));
+		Assert.assertEquals("12.34,5", DatevSchema.Type.DECIMAL.decode("12.34,5"));
+		Assert.assertEquals("1.234,", DatevSchema.Type.DECIMAL.decode("1.234,"));
+		Assert.assertEquals(new BigDecimal("1234567.89"), DatevSchema.Type.DECIMAL.decode("1.234.567,89"));
+		Assert.assertEquals(new BigDecimal("-0.5"), DatevSchema.Type.DECIMAL.decode("-0,5"));
+	}
+
+}
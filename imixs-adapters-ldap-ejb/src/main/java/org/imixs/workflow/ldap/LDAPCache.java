@@ -1,44 +1,139 @@
 package org.imixs.workflow.ldap;
 
-import java.io.Serializable;
-import java.util.LinkedHashMap;
-import java.util.Map.Entry;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
 import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 
 /**
  * This singleton ejb provides a cache to lookup ldap user informations. The
  * cache is used by the LDAPGroupLookupService EJB.
- * 
+ *
  * The bean reads its configuration from the configuration property file located
  * in the glassfish domains config folder
  * (GLASSFISH_DOMAIN/config/imixs-office-ldap.properties).
- * 
+ *
  * cache-size = maximum number of entries
- * 
- * cache-expires = milliseconds after the cache is discarded
- * 
+ *
+ * cache-expires = milliseconds after a single cache entry expires
+ *
+ * cache-stale-time = milliseconds an expired entry can still be served while
+ * it is refreshed in the background (default = cache-expires)
+ *
+ * dn-cache-expires = milliseconds after a resolved user DN expires (default
+ * 24h). The DN of a user is cached separately, because it is needed for each
+ * group search but changes rarely.
+ *
+ * negative-cache-size = maximum number of unknown user ids (default 1000)
+ *
+ * negative-cache-expires = milliseconds after an unknown user id expires
+ * (default 60000). Unknown user ids are cached separately, so they do not
+ * displace known users from the cache.
+ *
+ * group-fallback-expires = milliseconds the last known group list of a user
+ * is kept to be served if a group lookup exceeds the ldap.group-timeout
+ * (default 24h)
+ *
+ * group-cache-size = maximum number of groups in the group graph (default
+ * 1000). The group graph holds the parent groups of a group DN and is used to
+ * resolve nested groups. The entries expire with the cache-expires time.
+ *
  * The cache-size should be set to the value of minimum concurrent user
- * sessions. cache-expires specifies the expire time of the cache in
- * milliseconds.
- * 
- * 
+ * sessions. cache-expires specifies the expire time of each entry in
+ * milliseconds. The expire time is computed per entry, so the cache is never
+ * discarded as a whole.
+ *
+ * User attributes are cached as immutable LDAPUserRecord objects. Group lists
+ * are cached as sorted int arrays referring to a global LDAPGroupDictionary,
+ * so each group name is held only once in memory.
+ *
+ * cache-snapshot-file = optional file path. The cached user attributes, group
+ * lists and DNs are written periodically into this file and reloaded on
+ * startup. So a restarted node starts with a warm cache.
+ *
+ * cache-snapshot-interval = milliseconds between two snapshots (default
+ * 300000)
+ *
+ * The cache uses bean managed concurrency. Read and write access does not
+ * block on the container lock of the singleton.
+ *
  * @version 1.0
  * @author rsoika
- * 
+ *
  */
 @Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class LDAPCache {
 
+	// file header of a snapshot - 'LDAP' and the format version
+	static final int SNAPSHOT_MAGIC = 0x4C444150;
+	static final int SNAPSHOT_VERSION = 1;
+
 	int DEFAULT_CACHE_SIZE = 30;
 	int DEFAULT_EXPIRES_TIME = 60000;
+	long DEFAULT_DN_EXPIRES_TIME = 86400000;
+	int DEFAULT_NEGATIVE_CACHE_SIZE = 1000;
+	long DEFAULT_NEGATIVE_EXPIRES_TIME = 60000;
+	int DEFAULT_GROUP_CACHE_SIZE = 1000;
+	long DEFAULT_FALLBACK_EXPIRES_TIME = 86400000;
+	long DEFAULT_SNAPSHOT_INTERVAL = 300000;
 	long expiresTime = 0;
-	long lastReset = 0;
+	long staleTime = 0;
 	private Properties configurationProperties = null;
-	private Cache cache = null; // cache holds userdata
+	private volatile Cache cache = null; // cache holds userdata
+	private volatile Cache dnCache = null; // cache holds uid->DN
+	private volatile Cache negativeCache = null; // cache holds unknown uids
+	private volatile Cache groupCache = null; // cache holds groupDN->parent DNs
+	private volatile Cache fallbackCache = null; // cache holds last known groups
+	// group names of all cached group lists. The dictionary is not reset with
+	// the cache because the ids are still used by concurrent readers
+	private final LDAPGroupDictionary groupDictionary = new LDAPGroupDictionary();
+	private File snapshotFile = null;
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@Resource
+	TimerService timerService;
 
 	private static Logger logger = Logger.getLogger(LDAPCache.class
 			.getName());
@@ -46,30 +141,44 @@ public class LDAPCache {
 	@PostConstruct
 	void init() {
 		try {
-			
-			configurationProperties = new Properties();
-			try {
-				configurationProperties.load(Thread.currentThread()
-						.getContextClassLoader()
-						.getResource("imixs.properties").openStream());
-			} catch (Exception e) {
-				logger.warning("LDAPLookupService unable to find imixs.properties in current classpath");
-				e.printStackTrace();
-			}
-
-			
-			
+			// the imixs.properties are read by the LDAPConfigService
+			configurationProperties = ldapConfigService.getProperties();
 			resetCache();
+
+			// reload the snapshot of the last run
+			String sSnapshotFile = configurationProperties.getProperty("ldap.cache-snapshot-file", "").trim();
+			if (!sSnapshotFile.isEmpty()) {
+				snapshotFile = new File(sSnapshotFile);
+				loadSnapshot();
+				long interval = Long.parseLong(configurationProperties.getProperty(
+						"ldap.cache-snapshot-interval", "" + DEFAULT_SNAPSHOT_INTERVAL).trim());
+				if (interval > 0) {
+					TimerConfig timerConfig = new TimerConfig();
+					timerConfig.setPersistent(false);
+					timerService.createIntervalTimer(interval, interval, timerConfig);
+					logger.fine("LDAPCache snapshot interval=" + interval + "ms");
+				}
+			}
 		} catch (Exception e) {
 			logger.severe("LDAPCache unable to initalize LDAPCache");
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Writes a final snapshot before the cache is discarded
+	 */
+	@PreDestroy
+	void destroy() {
+		if (snapshotFile != null) {
+			onSnapshotTimer(null);
+		}
+	}
+
 	/**
 	 * resets the ldap cache object and reads the config params....
-	 * 
-	 * 
+	 *
+	 *
 	 */
 	public void resetCache() {
 		// determine the cache size....
@@ -84,9 +193,6 @@ public class LDAPCache {
 		if (iCacheSize <= 0)
 			iCacheSize = DEFAULT_CACHE_SIZE;
 
-		// initialize cache
-		cache = new Cache(iCacheSize);
-
 		// read expires time...
 		try {
 			expiresTime = DEFAULT_EXPIRES_TIME;
@@ -99,25 +205,86 @@ public class LDAPCache {
 		if (expiresTime <= 0)
 			expiresTime = DEFAULT_EXPIRES_TIME;
 
-		lastReset = System.currentTimeMillis();
+		// read stale time...
+		try {
+			staleTime = Long.valueOf(configurationProperties.getProperty(
+					"ldap.cache-stale-time", "" + expiresTime));
+		} catch (NumberFormatException nfe) {
+			staleTime = expiresTime;
+		}
+		if (staleTime < 0)
+			staleTime = 0;
+
+		// read dn expires time...
+		long dnExpiresTime = DEFAULT_DN_EXPIRES_TIME;
+		try {
+			dnExpiresTime = Long.valueOf(configurationProperties.getProperty(
+					"ldap.dn-cache-expires", "" + DEFAULT_DN_EXPIRES_TIME));
+		} catch (NumberFormatException nfe) {
+			dnExpiresTime = DEFAULT_DN_EXPIRES_TIME;
+		}
+		if (dnExpiresTime <= 0)
+			dnExpiresTime = DEFAULT_DN_EXPIRES_TIME;
+
+		// read negative cache settings...
+		int negativeCacheSize = DEFAULT_NEGATIVE_CACHE_SIZE;
+		long negativeExpiresTime = DEFAULT_NEGATIVE_EXPIRES_TIME;
+		try {
+			negativeCacheSize = Integer.valueOf(configurationProperties.getProperty(
+					"ldap.negative-cache-size", "" + DEFAULT_NEGATIVE_CACHE_SIZE));
+			negativeExpiresTime = Long.valueOf(configurationProperties.getProperty(
+					"ldap.negative-cache-expires", "" + DEFAULT_NEGATIVE_EXPIRES_TIME));
+		} catch (NumberFormatException nfe) {
+			logger.warning("LDAPCache invalid negative cache settings: " + nfe.getMessage());
+		}
+		if (negativeCacheSize <= 0)
+			negativeCacheSize = DEFAULT_NEGATIVE_CACHE_SIZE;
+		if (negativeExpiresTime <= 0)
+			negativeExpiresTime = DEFAULT_NEGATIVE_EXPIRES_TIME;
+
+		// read group graph size...
+		int groupCacheSize = DEFAULT_GROUP_CACHE_SIZE;
+		try {
+			groupCacheSize = Integer.valueOf(configurationProperties.getProperty(
+					"ldap.group-cache-size", "" + DEFAULT_GROUP_CACHE_SIZE));
+		} catch (NumberFormatException nfe) {
+			groupCacheSize = DEFAULT_GROUP_CACHE_SIZE;
+		}
+		if (groupCacheSize <= 0)
+			groupCacheSize = DEFAULT_GROUP_CACHE_SIZE;
+
+		// read fallback expires time...
+		long fallbackExpiresTime = DEFAULT_FALLBACK_EXPIRES_TIME;
+		try {
+			fallbackExpiresTime = Long.valueOf(configurationProperties.getProperty(
+					"ldap.group-fallback-expires", "" + DEFAULT_FALLBACK_EXPIRES_TIME));
+		} catch (NumberFormatException nfe) {
+			fallbackExpiresTime = DEFAULT_FALLBACK_EXPIRES_TIME;
+		}
+		if (fallbackExpiresTime <= 0)
+			fallbackExpiresTime = DEFAULT_FALLBACK_EXPIRES_TIME;
 
+		// initialize cache
+		cache = new Cache(iCacheSize, expiresTime, staleTime);
+		dnCache = new Cache(iCacheSize, dnExpiresTime, 0);
+		negativeCache = new Cache(negativeCacheSize, negativeExpiresTime, 0);
+		groupCache = new Cache(groupCacheSize, expiresTime, 0);
+		fallbackCache = new Cache(iCacheSize, fallbackExpiresTime, 0);
 	}
 
+	/**
+	 * Returns the cached value for a given key. An expired value is still
+	 * returned within the cache-stale-time. Use the method tryRevalidate() to
+	 * test if an expired value should be refreshed.
+	 *
+	 */
 	public Object get(String key) {
-		// test if cache is expired
-		if (expiresTime > 0) {
-			Long now = System.currentTimeMillis();
-			if ((now - lastReset) > expiresTime) {
-				logger.fine("LDAPCache Cache expired!");
-				resetCache();
-			}
-		}
 		return cache.get(key);
 	}
 
 	/**
 	 * returns true if the key is contained in the cache.
-	 * 
+	 *
 	 */
 	public boolean contains(String key) {
 		return cache.containsKey(key);
@@ -128,22 +295,745 @@ public class LDAPCache {
 	}
 
 	/**
-	 * Cache implementation to hold userData objects
-	 * 
+	 * Removes a single entry from the cache
+	 *
+	 */
+	public void remove(String key) {
+		cache.remove(key);
+	}
+
+	/**
+	 * Returns the cached attributes of a user or null if the user is not
+	 * cached.
+	 *
+	 */
+	public LDAPUserRecord getUser(String uid) {
+		return (LDAPUserRecord) cache.get(uid);
+	}
+
+	/**
+	 * Caches the attributes of a user
+	 *
+	 */
+	public void putUser(String uid, LDAPUserRecord user) {
+		cache.put(uid, user);
+	}
+
+	/**
+	 * Returns the cached group list of a user or null if the group list is not
+	 * cached. The method returns a new array for each call.
+	 *
+	 */
+	public String[] getGroups(String uid) {
+		int[] groupIds = (int[]) cache.get(uid + "-GROUPS");
+		return (groupIds == null) ? null : groupDictionary.decode(groupIds);
+	}
+
+	/**
+	 * Caches the group list of a user. The group list is stored as a sorted
+	 * array of the ids of the LDAPGroupDictionary. The group list is also kept
+	 * as the last known group list of the user.
+	 *
+	 */
+	public void putGroups(String uid, String[] groups) {
+		int[] groupIds = groupDictionary.encode(groups);
+		cache.put(uid + "-GROUPS", groupIds);
+		fallbackCache.put(uid, groupIds);
+	}
+
+	/**
+	 * Returns the last known group list of a user or null if no group list
+	 * was cached within the ldap.group-fallback-expires time. The last known
+	 * group list is kept after the group list was evicted from the cache.
+	 *
+	 */
+	public String[] getLastKnownGroups(String uid) {
+		int[] groupIds = (int[]) fallbackCache.get(uid);
+		return (groupIds == null) ? null : groupDictionary.decode(groupIds);
+	}
+
+	/**
+	 * Returns the number of distinct group names held by the group dictionary
+	 */
+	public int getGroupDictionarySize() {
+		return groupDictionary.size();
+	}
+
+	/**
+	 * Returns the max number of entries of the cache (ldap.cache-size)
+	 *
+	 */
+	public int getCapacity() {
+		return cache.capacity;
+	}
+
+	/**
+	 * Returns the cached distinguished name for a user id or null if the DN
+	 * was not yet resolved.
+	 *
+	 */
+	public String getDN(String uid) {
+		return (String) dnCache.get(uid);
+	}
+
+	/**
+	 * Caches the distinguished name of a user id
+	 *
+	 */
+	public void putDN(String uid, String dn) {
+		dnCache.put(uid, dn);
+	}
+
+	/**
+	 * Returns true if the user id is marked as unknown in the negative cache
+	 *
+	 */
+	public boolean isUnknown(String uid) {
+		return negativeCache.containsKey(uid);
+	}
+
+	/**
+	 * Marks a user id as unknown. The user id is stored in the negative cache
+	 * and not in the user cache.
+	 *
+	 */
+	public void putUnknown(String uid) {
+		negativeCache.put(uid, Boolean.TRUE);
+	}
+
+	/**
+	 * Returns the number of lookups answered by the negative cache
+	 */
+	public long getNegativeCacheHits() {
+		return negativeCache.hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups not found in the negative cache
+	 */
+	public long getNegativeCacheMisses() {
+		return negativeCache.misses.get();
+	}
+
+	/**
+	 * Returns the number of unknown user ids currently cached
+	 */
+	public int getNegativeCacheSize() {
+		return negativeCache.entries.size();
+	}
+
+	/**
+	 * Returns the number of lookups answered by the cache
+	 */
+	public long getCacheHits() {
+		return cache.hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups not found in the cache
+	 */
+	public long getCacheMisses() {
+		return cache.misses.get();
+	}
+
+	/**
+	 * Returns the number of entries evicted because the cache exceeded its
+	 * capacity
+	 */
+	public long getCacheEvictions() {
+		return cache.evictions.get();
+	}
+
+	/**
+	 * Returns the number of entries currently cached
+	 */
+	public int getCacheSize() {
+		return cache.entries.size();
+	}
+
+	/**
+	 * Returns the number of DN lookups answered by the DN cache
+	 */
+	public long getDNCacheHits() {
+		return dnCache.hits.get();
+	}
+
+	/**
+	 * Returns the number of DN lookups not found in the DN cache
+	 */
+	public long getDNCacheMisses() {
+		return dnCache.misses.get();
+	}
+
+	/**
+	 * Returns the number of parent lookups answered by the group graph
+	 */
+	public long getGroupCacheHits() {
+		return groupCache.hits.get();
+	}
+
+	/**
+	 * Returns the number of parent lookups not found in the group graph
+	 */
+	public long getGroupCacheMisses() {
+		return groupCache.misses.get();
+	}
+
+	/**
+	 * Removes the user attributes, the group list and the DN of a user from
+	 * the cache. Also an unknown user id is removed.
+	 *
+	 */
+	public void invalidateUser(String uid) {
+		negativeCache.remove(uid);
+		cache.remove(uid);
+		cache.remove(uid + "-GROUPS");
+		fallbackCache.remove(uid);
+		dnCache.remove(uid);
+	}
+
+	/**
+	 * Removes all cached group lists containing the given group name. The
+	 * method returns the number of removed group lists.
+	 *
+	 */
+	public int invalidateGroup(String groupName) {
+		int count = 0;
+		for (Map.Entry<String, CacheEntry> mapEntry : cache.entries.entrySet()) {
+			if (!mapEntry.getKey().endsWith("-GROUPS") || !(mapEntry.getValue().value instanceof int[])) {
+				continue;
+			}
+			if (groupDictionary.contains((int[]) mapEntry.getValue().value, groupName)
+					&& cache.entries.remove(mapEntry.getKey(), mapEntry.getValue())) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the cached parent group DNs of a group DN or null if the parents
+	 * were not yet resolved.
+	 *
+	 */
+	public String[] getGroupParents(String groupDN) {
+		return (String[]) groupCache.get(groupDN.toLowerCase());
+	}
+
+	/**
+	 * Caches the parent group DNs of a group DN
+	 *
+	 */
+	public void putGroupParents(String groupDN, String[] parentDNs) {
+		groupCache.put(groupDN.toLowerCase(), parentDNs);
+	}
+
+	/**
+	 * Clears the group graph and removes all cached group lists. This is
+	 * needed if a group has changed and nested groups are resolved, because
+	 * the change can affect users which are not direct members of the group.
+	 * The method returns the number of removed group lists.
+	 *
+	 */
+	public int invalidateGroupGraph() {
+		groupCache.entries.clear();
+		int count = 0;
+		for (String key : cache.entries.keySet()) {
+			if (key.endsWith("-GROUPS") && cache.entries.remove(key) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a map of all cached DNs (lower case) to the corresponding user
+	 * id. The map can be used to resolve the user id of a DN.
+	 *
+	 */
+	public Map<String, String> getDNIndex() {
+		Map<String, String> result = new HashMap<String, String>();
+		for (Map.Entry<String, CacheEntry> mapEntry : dnCache.entries.entrySet()) {
+			Object dn = mapEntry.getValue().value;
+			if (dn != null) {
+				result.put(dn.toString().toLowerCase(), mapEntry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if the entry for the given key has expired and the caller
+	 * is the first one asking for it since. In this case the caller is
+	 * responsible to refresh the entry. All other callers are still served
+	 * with the stale value until the entry is replaced.
+	 *
+	 */
+	public boolean tryRevalidate(String key) {
+		return cache.tryRevalidate(key);
+	}
+
+	/**
+	 * Releases the refresh of an expired entry which was not replaced (e.g.
+	 * because the lookup failed). So the next request asking for the entry
+	 * triggers a new refresh.
+	 *
+	 */
+	public void endRevalidate(String key) {
+		cache.endRevalidate(key);
+	}
+
+	/**
+	 * Writes the snapshot periodically
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void onSnapshotTimer(Timer timer) {
+		try {
+			writeSnapshot();
+		} catch (IOException e) {
+			logger.warning("LDAPCache unable to write snapshot '" + snapshotFile + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the cached user attributes, group lists and DNs with their
+	 * expire time into the file 'ldap.cache-snapshot-file'. The snapshot is
+	 * written into a temporary file first and then renamed, so a reader never
+	 * sees a partial snapshot.
+	 *
+	 * The binary format is: header (magic, version, time), group names, item
+	 * name tables, user entries, group lists (ids of the group names) and DNs.
+	 * Strings are written as length and UTF-8 bytes.
+	 *
+	 * @return number of written entries or -1 if no snapshot file is defined
+	 * @throws IOException
+	 */
+	public int writeSnapshot() throws IOException {
+		if (snapshotFile == null) {
+			return -1;
+		}
+		long lProfiler = System.currentTimeMillis();
+		long now = System.currentTimeMillis();
+		Cache userCache = cache;
+		List<Map.Entry<String, CacheEntry>> userEntries = new ArrayList<Map.Entry<String, CacheEntry>>();
+		List<Map.Entry<String, CacheEntry>> groupEntries = new ArrayList<Map.Entry<String, CacheEntry>>();
+		for (Map.Entry<String, CacheEntry> mapEntry : userCache.entries.entrySet()) {
+			CacheEntry entry = mapEntry.getValue();
+			if (now > entry.expiresAt + userCache.stale) {
+				continue;
+			}
+			if (entry.value instanceof LDAPUserRecord) {
+				userEntries.add(mapEntry);
+			} else if (entry.value instanceof int[] && mapEntry.getKey().endsWith("-GROUPS")) {
+				groupEntries.add(mapEntry);
+			}
+		}
+		List<Map.Entry<String, CacheEntry>> dnEntries = new ArrayList<Map.Entry<String, CacheEntry>>();
+		for (Map.Entry<String, CacheEntry> mapEntry : dnCache.entries.entrySet()) {
+			if (mapEntry.getValue().value != null && now <= mapEntry.getValue().expiresAt) {
+				dnEntries.add(mapEntry);
+			}
+		}
+		// the dictionary only grows - so all collected ids are contained
+		String[] groupNames = groupDictionary.getNames();
+
+		// the records of one lookup service share the item names
+		Map<String[], Integer> itemNameTables = new IdentityHashMap<String[], Integer>();
+		for (Map.Entry<String, CacheEntry> mapEntry : userEntries) {
+			String[] itemNames = ((LDAPUserRecord) mapEntry.getValue().value).getItemNames();
+			if (!itemNameTables.containsKey(itemNames)) {
+				itemNameTables.put(itemNames, itemNameTables.size());
+			}
+		}
+		String[][] tables = new String[itemNameTables.size()][];
+		for (Map.Entry<String[], Integer> table : itemNameTables.entrySet()) {
+			tables[table.getValue()] = table.getKey();
+		}
+
+		File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+		if (snapshotFile.getAbsoluteFile().getParentFile() != null) {
+			snapshotFile.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(now);
+			out.writeInt(groupNames.length);
+			for (String groupName : groupNames) {
+				writeString(out, groupName);
+			}
+			out.writeInt(tables.length);
+			for (String[] table : tables) {
+				out.writeInt(table.length);
+				for (String itemName : table) {
+					writeString(out, itemName);
+				}
+			}
+			out.writeInt(userEntries.size());
+			for (Map.Entry<String, CacheEntry> mapEntry : userEntries) {
+				LDAPUserRecord user = (LDAPUserRecord) mapEntry.getValue().value;
+				writeString(out, mapEntry.getKey());
+				out.writeLong(mapEntry.getValue().expiresAt);
+				out.writeInt(itemNameTables.get(user.getItemNames()));
+				for (Object value : user.getValues()) {
+					writeValue(out, value);
+				}
+			}
+			out.writeInt(groupEntries.size());
+			for (Map.Entry<String, CacheEntry> mapEntry : groupEntries) {
+				int[] groupIds = (int[]) mapEntry.getValue().value;
+				String key = mapEntry.getKey();
+				writeString(out, key.substring(0, key.length() - "-GROUPS".length()));
+				out.writeLong(mapEntry.getValue().expiresAt);
+				out.writeInt(groupIds.length);
+				for (int groupId : groupIds) {
+					out.writeInt(groupId);
+				}
+			}
+			out.writeInt(dnEntries.size());
+			for (Map.Entry<String, CacheEntry> mapEntry : dnEntries) {
+				writeString(out, mapEntry.getKey());
+				out.writeLong(mapEntry.getValue().expiresAt);
+				writeString(out, mapEntry.getValue().value.toString());
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		int count = userEntries.size() + groupEntries.size() + dnEntries.size();
+		logger.fine("LDAPCache snapshot: " + count + " entries written in "
+				+ (System.currentTimeMillis() - lProfiler) + " ms");
+		return count;
+	}
+
+	/**
+	 * Loads the entries of the file 'ldap.cache-snapshot-file' into the
+	 * cache. The file is mapped into memory and read in one pass. Entries
+	 * exceeding their expire and stale time are skipped.
+	 *
+	 * All other user entries and group lists are loaded as expired. So they
+	 * are served within the cache-stale-time and refreshed in the background
+	 * on first access. If no stale time is defined the entries keep their
+	 * original expire time.
+	 *
+	 * @return number of loaded entries
+	 */
+	public int loadSnapshot() {
+		if (snapshotFile == null || !snapshotFile.isFile() || snapshotFile.length() == 0) {
+			return 0;
+		}
+		long lProfiler = System.currentTimeMillis();
+		int count = 0;
+		try {
+			RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+					logger.warning("LDAPCache snapshot '" + snapshotFile + "' has an unknown format - skipped");
+					return 0;
+				}
+				long now = System.currentTimeMillis();
+				long snapshotTime = buffer.getLong();
+				Cache userCache = cache;
+
+				String[] groupNames = new String[buffer.getInt()];
+				for (int i = 0; i < groupNames.length; i++) {
+					groupNames[i] = readString(buffer);
+				}
+				String[][] tables = new String[buffer.getInt()][];
+				for (int i = 0; i < tables.length; i++) {
+					tables[i] = new String[buffer.getInt()];
+					for (int j = 0; j < tables[i].length; j++) {
+						tables[i][j] = readString(buffer);
+					}
+				}
+				int size = buffer.getInt();
+				for (int i = 0; i < size; i++) {
+					String uid = readString(buffer);
+					long expiresAt = buffer.getLong();
+					String[] itemNames = tables[buffer.getInt()];
+					Object[] values = new Object[itemNames.length];
+					for (int j = 0; j < values.length; j++) {
+						values[j] = readValue(buffer);
+					}
+					if (restore(userCache, uid, new LDAPUserRecord(itemNames, values), expiresAt, now)) {
+						count++;
+					}
+				}
+				size = buffer.getInt();
+				for (int i = 0; i < size; i++) {
+					String uid = readString(buffer);
+					long expiresAt = buffer.getLong();
+					String[] groups = new String[buffer.getInt()];
+					for (int j = 0; j < groups.length; j++) {
+						groups[j] = groupNames[buffer.getInt()];
+					}
+					if (restore(userCache, uid + "-GROUPS", groupDictionary.encode(groups), expiresAt, now)) {
+						count++;
+					}
+				}
+				size = buffer.getInt();
+				for (int i = 0; i < size; i++) {
+					String uid = readString(buffer);
+					long expiresAt = buffer.getLong();
+					if (restore(dnCache, uid, readString(buffer), expiresAt, now)) {
+						count++;
+					}
+				}
+				logger.info("LDAPCache loaded " + count + " entries from snapshot of "
+						+ new Date(snapshotTime) + " in " + (System.currentTimeMillis() - lProfiler)
+						+ " ms");
+			} finally {
+				file.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warning("LDAPCache unable to load snapshot '" + snapshotFile + "': " + e);
+		}
+		return count;
+	}
+
+	/**
+	 * Adds an entry of a snapshot into a cache region. The entry is skipped if
+	 * it has exceeded its stale time, is already cached or the region is
+	 * full.
+	 */
+	private boolean restore(Cache region, String key, Object value, long expiresAt, long now) {
+		if (now > expiresAt + region.stale || region.entries.size() >= region.capacity) {
+			return false;
+		}
+		if (region.stale > 0) {
+			// revalidate on first access
+			expiresAt = Math.min(expiresAt, now);
+		}
+		return region.entries.putIfAbsent(key, new CacheEntry(value, expiresAt)) == null;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a single attribute value. Ldap attributes are either strings or
+	 * binary values. Each value is tagged by its type.
+	 */
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(0);
+		} else if (value instanceof byte[]) {
+			out.writeByte(2);
+			out.writeInt(((byte[]) value).length);
+			out.write((byte[]) value);
+		} else if (value instanceof Object[]) {
+			out.writeByte(3);
+			out.writeInt(((Object[]) value).length);
+			for (Object element : (Object[]) value) {
+				writeValue(out, element);
+			}
+		} else {
+			out.writeByte(1);
+			writeString(out, value.toString());
+		}
+	}
+
+	private static Object readValue(ByteBuffer buffer) {
+		byte type = buffer.get();
+		switch (type) {
+		case 0:
+			return null;
+		case 1:
+			return readString(buffer);
+		case 2:
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return bytes;
+		case 3:
+			Object[] values = new Object[buffer.getInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = readValue(buffer);
+			}
+			return values;
+		default:
+			throw new IllegalStateException("invalid value type " + type);
+		}
+	}
+
+	/**
+	 * Cache implementation to hold userData objects. Each entry holds its own
+	 * expire time. Entries are evicted if the cache exceeds its capacity. In
+	 * this case the least recently accessed entries are removed.
+	 *
 	 * @author rsoika
-	 * 
+	 *
 	 */
-	class Cache extends LinkedHashMap<String, Object> implements Serializable {
-		private static final long serialVersionUID = 1L;
+	class Cache {
+		private final ConcurrentHashMap<String, CacheEntry> entries;
+		private final ReentrantLock evictionLock = new ReentrantLock();
 		private final int capacity;
+		private final long expires;
+		private final long stale;
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong misses = new AtomicLong();
+		final AtomicLong evictions = new AtomicLong();
 
-		public Cache(int capacity) {
-			super(capacity + 1, 1.1f, true);
+		public Cache(int capacity, long expires, long stale) {
+			this.entries = new ConcurrentHashMap<String, CacheEntry>(capacity + 1);
 			this.capacity = capacity;
+			this.expires = expires;
+			this.stale = stale;
+		}
+
+		/**
+		 * returns the entry for a key or null if the entry does not exist or
+		 * the stale time was exceeded.
+		 */
+		CacheEntry getEntry(String key, boolean count) {
+			CacheEntry entry = entries.get(key);
+			if (entry == null) {
+				if (count)
+					misses.incrementAndGet();
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			if (now > entry.expiresAt + stale) {
+				entries.remove(key, entry);
+				if (count)
+					misses.incrementAndGet();
+				return null;
+			}
+			entry.lastAccess = now;
+			if (count)
+				hits.incrementAndGet();
+			return entry;
+		}
+
+		public Object get(String key) {
+			CacheEntry entry = getEntry(key, true);
+			return (entry == null) ? null : entry.value;
+		}
+
+		public boolean containsKey(String key) {
+			return getEntry(key, true) != null;
+		}
+
+		public void put(String key, Object value) {
+			// spread the expire time to avoid that entries loaded at the same
+			// time expire at the same time
+			long spread = expires / 10;
+			long expiresAt = System.currentTimeMillis() + expires
+					- (spread > 0 ? ThreadLocalRandom.current().nextLong(spread) : 0);
+			entries.put(key, new CacheEntry(value, expiresAt));
+			if (entries.size() > capacity) {
+				evict();
+			}
+		}
+
+		public void remove(String key) {
+			entries.remove(key);
+		}
+
+		public boolean tryRevalidate(String key) {
+			// the entry was already counted by the preceding get()
+			CacheEntry entry = getEntry(key, false);
+			return entry != null && entry.expiresAt < System.currentTimeMillis()
+					&& entry.refreshing.compareAndSet(false, true);
+		}
+
+		public void endRevalidate(String key) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null) {
+				entry.refreshing.set(false);
+			}
 		}
 
-		protected boolean removeEldestEntry(Entry<String, Object> eldest) {
-			return size() > capacity;
+		/**
+		 * Removes all entries exceeding the stale time. If the cache still
+		 * exceeds its capacity the least recently accessed entries are
+		 * removed until the cache is filled to 90%. Only one thread evicts at
+		 * a time, all others continue without waiting.
+		 */
+		private void evict() {
+			if (!evictionLock.tryLock()) {
+				return;
+			}
+			try {
+				long now = System.currentTimeMillis();
+				List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(entries.size());
+				for (Map.Entry<String, CacheEntry> mapEntry : entries.entrySet()) {
+					if (now > mapEntry.getValue().expiresAt + stale) {
+						entries.remove(mapEntry.getKey(), mapEntry.getValue());
+					} else {
+						candidates.add(new EvictionCandidate(mapEntry.getKey(), mapEntry.getValue()));
+					}
+				}
+
+				int target = capacity - (capacity / 10);
+				int count = entries.size() - target;
+				if (entries.size() <= capacity || count <= 0) {
+					return;
+				}
+				Collections.sort(candidates, new Comparator<EvictionCandidate>() {
+					@Override
+					public int compare(EvictionCandidate o1, EvictionCandidate o2) {
+						return Long.compare(o1.lastAccess, o2.lastAccess);
+					}
+				});
+				for (int i = 0; i < count && i < candidates.size(); i++) {
+					EvictionCandidate candidate = candidates.get(i);
+					if (entries.remove(candidate.key, candidate.entry)) {
+						evictions.incrementAndGet();
+					}
+				}
+				logger.finest("LDAPCache evicted " + count + " entries");
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the last access time of an entry used to sort the entries
+	 * during eviction.
+	 */
+	class EvictionCandidate {
+		final String key;
+		final CacheEntry entry;
+		final long lastAccess;
+
+		EvictionCandidate(String key, CacheEntry entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+	}
+
+	/**
+	 * A single cache entry. The value can also be null.
+	 */
+	class CacheEntry {
+		final Object value;
+		final long expiresAt;
+		final AtomicBoolean refreshing = new AtomicBoolean(false);
+		volatile long lastAccess;
+
+		CacheEntry(Object value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.lastAccess = System.currentTimeMillis();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,124 @@
+package org.imixs.workflow.ldap;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+
+/**
+ * This singleton ejb polls the directory for user and group entries changed
+ * since the last poll and removes only the affected users from the LDAPCache.
+ * With the change watcher the cache can be configured with a long expire
+ * time.
+ *
+ * Changes are detected by the attribute 'modifyTimestamp' or, for Microsoft
+ * Active Directory, by the attribute 'uSNChanged'. The watcher is configured
+ * by the imixs.properties:
+ *
+ * ldap.watch = true|false (default false)
+ *
+ * ldap.watch-interval = milliseconds between two polls (default 60000)
+ *
+ * ldap.watch-attribute = modifyTimestamp|uSNChanged (default modifyTimestamp).
+ * The 'uSNChanged' is local to each domain controller, so with a list of
+ * replicas the watcher is pinned to the server it read the first change mark
+ * from. While this server is not available no changes are detected.
+ *
+ * ldap.watch-group-filter = filter to select group entries. The default
+ * filter is build from the member attribute of the ldap.group-search-filter -
+ * e.g. (member=*)
+ *
+ * ldap.watch-clock-skew = tolerated time difference to the directory server
+ * in milliseconds (default 300000). Only used for modifyTimestamp.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@Startup
+public class LDAPChangeWatcher {
+
+	private String watchAttribute;
+	private String groupFilter;
+	private long clockSkew;
+	private String changeMark = null;
+	private String watchServer = null;
+	private final Set<String> processedEntries = new HashSet<String>();
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@EJB
+	LDAPLookupService lookupService;
+
+	@Resource
+	TimerService timerService;
+
+	private static Logger logger = Logger.getLogger(LDAPChangeWatcher.class.getName());
+
+	@PostConstruct
+	void init() {
+		try {
+			// the imixs.properties are read by the LDAPConfigService
+			Properties configurationProperties = ldapConfigService.getProperties();
+
+			if (!"true".equalsIgnoreCase(configurationProperties.getProperty("ldap.watch", "false"))) {
+				return;
+			}
+
+			watchAttribute = configurationProperties.getProperty("ldap.watch-attribute", "modifyTimestamp").trim();
+			groupFilter = configurationProperties.getProperty("ldap.watch-group-filter", "").trim();
+			if (groupFilter.isEmpty()) {
+				String groupSearchFilter = configurationProperties.getProperty("ldap.group-search-filter",
+						"(member=%d)");
+				groupFilter = groupSearchFilter.replace("%d", "*");
+			}
+			clockSkew = Long.parseLong(configurationProperties.getProperty("ldap.watch-clock-skew", "300000").trim());
+			long interval = Long.parseLong(configurationProperties.getProperty("ldap.watch-interval", "60000").trim());
+			if (interval <= 0)
+				interval = 60000;
+
+			TimerConfig timerConfig = new TimerConfig();
+			timerConfig.setPersistent(false);
+			// the first timeout reads the initial change mark
+			timerService.createIntervalTimer(0, interval, timerConfig);
+			logger.info("LDAP change watcher started - " + watchAttribute + " interval=" + interval + "ms");
+		} catch (Exception e) {
+			logger.severe("LDAPChangeWatcher unable to initalize LDAPChangeWatcher: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Polls the directory for changes since the last change mark. The first
+	 * call only reads the current change mark.
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	public void poll(Timer timer) {
+		if (!lookupService.isEnabled()) {
+			return;
+		}
+		if (changeMark == null) {
+			watchServer = lookupService.getWatchServer(watchAttribute);
+			changeMark = lookupService.getChangeMark(watchAttribute, clockSkew, watchServer);
+			logger.fine("LDAP change mark initialized: " + changeMark
+					+ (watchServer == null ? "" : " server=" + watchServer));
+			return;
+		}
+		changeMark = lookupService.pollChanges(watchAttribute, groupFilter, changeMark, processedEntries,
+				watchServer);
+	}
+}
@@ -0,0 +1,172 @@
+package org.imixs.workflow.ldap;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * This singleton ejb holds the configuration and the connection state of the
+ * ldap adapter. The imixs.properties are read only once and shared by all
+ * beans of the adapter. So a new instance of the stateless LDAPLookupService
+ * neither reads the imixs.properties nor opens a ldap connection.
+ *
+ * The connection to the directory is verified on the first call of the method
+ * isEnabled() and then periodically by a background probe. So the ldap
+ * adapter is enabled as soon as a directory, which was not available during
+ * the deployment, becomes available.
+ *
+ * ldap.health-check-interval = milliseconds between two probes (default
+ * 60000). 0 disables the periodic probe.
+ *
+ * Note: The bean can not use the PropertyService because of the
+ * PropertyInterceptor. See LDAPLookupService.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LDAPConfigService {
+
+	long DEFAULT_HEALTH_CHECK_INTERVAL = 60000;
+
+	private volatile LDAPConfiguration configuration = null;
+	// null = not yet verified
+	private volatile Boolean enabled = null;
+
+	@EJB
+	LDAPContextPool ldapContextPool;
+
+	@Resource
+	TimerService timerService;
+
+	private static Logger logger = Logger.getLogger(LDAPConfigService.class.getName());
+
+	@PostConstruct
+	void init() {
+		Properties configurationProperties = new Properties();
+		try {
+			configurationProperties.load(
+					Thread.currentThread().getContextClassLoader().getResource("imixs.properties").openStream());
+		} catch (Exception e) {
+			logger.warning("LDAPConfigService unable to find imixs.properties in current classpath");
+			e.printStackTrace();
+		}
+
+		try {
+			configuration = new LDAPConfiguration(configurationProperties);
+		} catch (RuntimeException e) {
+			logger.severe("LDAPConfigService invalid ldap configuration: " + e.getMessage());
+			e.printStackTrace();
+			configuration = new LDAPConfiguration(new Properties());
+			enabled = false;
+			return;
+		}
+
+		try {
+			long interval = Long.parseLong(configurationProperties
+					.getProperty("ldap.health-check-interval", "" + DEFAULT_HEALTH_CHECK_INTERVAL).trim());
+			if (interval > 0) {
+				TimerConfig timerConfig = new TimerConfig();
+				timerConfig.setPersistent(false);
+				timerService.createIntervalTimer(interval, interval, timerConfig);
+				logger.fine("ldap.health-check-interval=" + interval);
+			}
+		} catch (Exception e) {
+			logger.warning("LDAPConfigService unable to start health check: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the parsed ldap configuration
+	 */
+	public LDAPConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Returns the imixs.properties
+	 */
+	public Properties getProperties() {
+		return configuration.getProperties();
+	}
+
+	/**
+	 * Returns true if the directory was available on the last probe. The first
+	 * call verifies the connection. Concurrent first calls wait for this
+	 * verification.
+	 */
+	public boolean isEnabled() {
+		Boolean result = enabled;
+		if (result == null) {
+			synchronized (this) {
+				result = enabled;
+				if (result == null) {
+					result = checkConnection();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Probes the connection periodically
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	public void onHealthCheck(Timer timer) {
+		checkConnection();
+	}
+
+	/**
+	 * Opens and closes a ldap context to verify the connection to the
+	 * directory. The context is either taken from the LDAPContextPool
+	 * (ldap.disable-jndi=true) or looked up from the jndi name
+	 * 'ldap.jndi-name'. The result is returned by the method isEnabled().
+	 *
+	 * @return true if the connection is available
+	 */
+	public boolean checkConnection() {
+		LDAPConfiguration config = configuration;
+		boolean result = false;
+		LdapContext ldapCtx = null;
+		try {
+			if (config.isDisableJndi()) {
+				ldapCtx = ldapContextPool.borrow();
+				ldapContextPool.release(ldapCtx);
+			} else {
+				ldapCtx = (LdapContext) new InitialContext().lookup(config.getJndiName());
+				ldapCtx.close();
+			}
+			result = true;
+		} catch (NamingException | RuntimeException e) {
+			logger.fine("LDAP connection check failed: " + e.getMessage());
+		}
+
+		Boolean former = enabled;
+		enabled = result;
+		if (former == null || former != result) {
+			if (result) {
+				logger.info("LDAP connection: OK");
+			} else {
+				logger.warning("LDAP connection: FAILED");
+			}
+		}
+		return result;
+	}
+}
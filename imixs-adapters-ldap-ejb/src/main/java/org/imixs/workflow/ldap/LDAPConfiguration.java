@@ -0,0 +1,203 @@
+package org.imixs.workflow.ldap;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The LDAPConfiguration holds the ldap settings of the imixs.properties used
+ * by the LDAPLookupService. The properties are parsed once by the
+ * LDAPConfigService and shared by all instances of the LDAPLookupService.
+ * 
+ * The configuration is immutable after it was created.
+ * 
+ * @version 1.0
+ * @author rsoika
+ * 
+ */
+public class LDAPConfiguration {
+
+	final Properties configurationProperties;
+	boolean disableJndi = false;
+	String dnSearchFilter = null;
+	String groupSearchFilter = null;
+	String searchContext = null;
+	String[] userAttributesLDAP = null; // ldap attribute names
+	String[] userAttributesImixs = null; // imixs attributes names if | defined
+	String[] userSearchAttributes = null; // ldap attributes to be returned by
+											// a user search
+	String groupAttribute = null; // optional group attribute (memberOf)
+	String uidAttribute = null; // ldap attribute holding the user id
+	String groupMemberAttribute = null; // group attribute holding the member
+										// DNs
+	boolean nestedGroups = false; // resolve nested groups
+	boolean matchingRuleInChain = false; // use LDAP_MATCHING_RULE_IN_CHAIN
+	int nestedGroupDepth = 10; // max depth of the iterative expansion
+	String inChainSearchFilter = null; // group search filter with the matching
+										// rule in chain
+	long groupTimeout = 0; // max wait time of the LDAPGroupInterceptor
+	boolean groupTimeoutEmpty = false; // fallback policy on timeout
+	String groupNamePraefix = null; // optional group name prefix
+	String groupPraefixFilter = null; // server side prefix filter
+	int groupPageSize = 500; // page size of a group search
+	int bulkChunkSize = 100; // max user ids per search of findUsers()
+
+	private static Logger logger = Logger.getLogger(LDAPConfiguration.class.getName());
+
+	/**
+	 * Parses the ldap settings of the given imixs.properties
+	 * 
+	 * @param configurationProperties
+	 */
+	public LDAPConfiguration(Properties configurationProperties) {
+		this.configurationProperties = configurationProperties;
+
+		logger.fine("read LDAP configuration...");
+		searchContext = configurationProperties.getProperty("ldap.search-context", "");
+		logger.fine("ldap.search-context=" +searchContext );
+		dnSearchFilter = configurationProperties.getProperty("ldap.dn-search-filter", "(uid=%u)");
+		logger.fine("ldap.dn-search-filter=" +dnSearchFilter );
+		groupSearchFilter = configurationProperties.getProperty("ldap.group-search-filter", "(member=%d)");
+		logger.fine("ldap.group-search-filter=" +groupSearchFilter );
+		String sDisabled = configurationProperties.getProperty("ldap.disable-jndi");
+		disableJndi = (sDisabled != null && "true".equals(sDisabled.toLowerCase()));
+		logger.fine("ldap.disable-jndi=" + sDisabled);
+		// read user attributes
+		String sAttributes = configurationProperties.getProperty("ldap.user-attributes", "uid,SN,CN,mail");
+		logger.fine("ldap.user-attributes=" +sAttributes );
+		
+		
+		String[] userAttributeList = sAttributes.split(",");
+
+		// now we split up the ldap attribute name form the imixs name if a
+		// | is contained
+		userAttributesLDAP = new String[userAttributeList.length];
+		userAttributesImixs = new String[userAttributeList.length];
+
+		// the userAttributesLDAP hold only the left part of a attribute
+		// name separated with a |
+		// e.g. : mail|txtEmail
+		for (int i = 0; i < userAttributeList.length; i++) {
+			String aAttr = userAttributeList[i].trim();
+			int sPos = aAttr.indexOf('|');
+			if (sPos > 0) {
+				userAttributesLDAP[i] = aAttr.substring(0, sPos ).trim();
+				userAttributesImixs[i] = aAttr.substring(sPos + 1).trim();
+			} else {
+				userAttributesLDAP[i] = aAttr;
+				userAttributesImixs[i] = aAttr;
+			}
+			// debug info about the resolved attribute and item names
+			logger.finest("attributesLDAP-" + i+"=" +userAttributesLDAP[i] );
+			logger.finest("attributesImixs-" + i+"=" +userAttributesImixs[i] );
+		}
+
+		// optional group attribute (e.g. memberOf)
+		groupAttribute = configurationProperties.getProperty("ldap.group-attribute", "").trim();
+		logger.fine("ldap.group-attribute=" + groupAttribute);
+		if (groupAttribute.isEmpty()) {
+			groupAttribute = null;
+		}
+
+		// the uid attribute is taken from the dn-search-filter if not
+		// defined - e.g. (uid=%u)
+		uidAttribute = configurationProperties.getProperty("ldap.uid-attribute", "").trim();
+		if (uidAttribute.isEmpty()) {
+			Matcher matcher = Pattern.compile("\\(([^()=]+)=%u\\)").matcher(dnSearchFilter);
+			uidAttribute = matcher.find() ? matcher.group(1).trim() : "uid";
+		}
+		logger.fine("ldap.uid-attribute=" + uidAttribute);
+
+		// the member attribute of a group is taken from the
+		// group-search-filter - e.g. (member=%d)
+		Matcher memberMatcher = Pattern.compile("\\(([^()=]+)=%d\\)").matcher(groupSearchFilter);
+		groupMemberAttribute = memberMatcher.find() ? memberMatcher.group(1).trim() : "member";
+
+		// nested groups
+		nestedGroups = "true".equalsIgnoreCase(configurationProperties.getProperty("ldap.group-nested", "false"));
+		matchingRuleInChain = nestedGroups && "true"
+				.equalsIgnoreCase(configurationProperties.getProperty("ldap.group-matching-rule-in-chain", "false"));
+		nestedGroupDepth = Integer
+				.parseInt(configurationProperties.getProperty("ldap.group-nested-depth", "10").trim());
+		logger.fine("ldap.group-nested=" + nestedGroups + " matching-rule-in-chain=" + matchingRuleInChain);
+		if (matchingRuleInChain) {
+			// e.g. (member:1.2.840.113556.1.4.1941:=%d)
+			inChainSearchFilter = groupSearchFilter.replace("(" + groupMemberAttribute + "=%d)",
+					"(" + groupMemberAttribute + ":" + LDAPLookupService.MATCHING_RULE_IN_CHAIN + ":=%d)");
+			logger.fine("in chain search filter=" + inChainSearchFilter);
+			if (groupAttribute != null) {
+				// the group attribute holds only direct memberships
+				logger.info("ldap.group-attribute '" + groupAttribute
+						+ "' ignored - nested groups are searched by the matching rule in chain");
+				groupAttribute = null;
+			}
+		}
+
+		// optional group name prefix - the prefix is added to the group
+		// search filter. This is not possible for the iterative
+		// expansion of nested groups, because a parent group can match
+		// the prefix even if its child group does not.
+		groupNamePraefix = configurationProperties.getProperty("ldap.group-name-praefix",
+				configurationProperties.getProperty("group-name-praefix", "")).trim();
+		if (groupNamePraefix.isEmpty()) {
+			groupNamePraefix = null;
+		} else if (!nestedGroups || matchingRuleInChain) {
+			String groupNameAttribute = configurationProperties.getProperty("ldap.group-name-attribute", "cn")
+					.trim();
+			groupPraefixFilter = LDAPFilter.startsWith(groupNameAttribute, groupNamePraefix);
+		}
+		groupPageSize = Integer
+				.parseInt(configurationProperties.getProperty("ldap.group-page-size", "500").trim());
+		logger.fine("ldap.group-name-praefix=" + groupNamePraefix + " filter=" + groupPraefixFilter
+				+ " ldap.group-page-size=" + groupPageSize);
+
+		// max number of user ids combined in one search by findUsers()
+		bulkChunkSize = Integer
+				.parseInt(configurationProperties.getProperty("ldap.bulk-chunk-size", "100").trim());
+		if (bulkChunkSize <= 0)
+			bulkChunkSize = 100;
+
+		// timeout of the group lookup in the LDAPGroupInterceptor
+		groupTimeout = Long.parseLong(configurationProperties.getProperty("ldap.group-timeout", "0").trim());
+		groupTimeoutEmpty = "empty"
+				.equalsIgnoreCase(configurationProperties.getProperty("ldap.group-timeout-policy", "stale").trim());
+		logger.fine("ldap.group-timeout=" + groupTimeout + " empty=" + groupTimeoutEmpty);
+
+		// attributes returned by a user search
+		Set<String> searchAttributes = new LinkedHashSet<String>(Arrays.asList(userAttributesLDAP));
+		searchAttributes.add(uidAttribute);
+		if (groupAttribute != null) {
+			searchAttributes.add(groupAttribute);
+		}
+		userSearchAttributes = searchAttributes.toArray(new String[searchAttributes.size()]);
+	}
+
+	/**
+	 * Returns the imixs.properties
+	 */
+	public Properties getProperties() {
+		return configurationProperties;
+	}
+
+	/**
+	 * Returns true if the ldap context is created manually
+	 * (ldap.disable-jndi=true)
+	 */
+	public boolean isDisableJndi() {
+		return disableJndi;
+	}
+
+	/**
+	 * Returns the jndi name of the ldap resource (ldap.jndi-name)
+	 */
+	public String getJndiName() {
+		String ldapJndiName = configurationProperties.getProperty("ldap.jndi-name");
+		if (ldapJndiName == null || "".equals(ldapJndiName))
+			ldapJndiName = "org.imixs.office.ldap";
+		return ldapJndiName;
+	}
+}
@@ -0,0 +1,765 @@
+package org.imixs.workflow.ldap;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * This singleton ejb provides a pool of ldap contexts for the manual lookup
+ * mode (ldap.disable-jndi=true). Opening a new InitialLdapContext means a new
+ * TCP connection, an optional TLS handshake and a bind for each lookup. The
+ * pool keeps bound contexts open so that they can be reused by the
+ * LDAPLookupService.
+ *
+ * The bean reads its configuration from the imixs.properties file:
+ *
+ * ldap.pool-max-size = maximum number of open contexts per server (default
+ * 10). A value of 0 disables the pool.
+ *
+ * ldap.pool-min-size = number of contexts kept open even if idle (default 0)
+ *
+ * ldap.pool-idle-timeout = milliseconds after an idle context is closed
+ * (default 300000)
+ *
+ * ldap.pool-max-wait = milliseconds to wait for a free context if the pool is
+ * exhausted (default 5000)
+ *
+ * ldap.pool-validate = if true a context is verified before it is borrowed
+ * (default true)
+ *
+ * ldap.connect-timeout = milliseconds to wait for a connection to the
+ * directory (default 5000)
+ *
+ * ldap.read-timeout = milliseconds to wait for the response of a ldap request
+ * (default 10000)
+ *
+ * ldap.provider-urls = comma separated list of replica urls. If not defined
+ * the java.naming.provider.url is used.
+ *
+ * ldap.replica-backoff = milliseconds a failed server is ejected. The time is
+ * doubled with each further failure (default 10000)
+ *
+ * ldap.replica-max-backoff = max milliseconds a failed server is ejected
+ * (default 300000)
+ *
+ * ldap.replica-latency-weight = weight of a new latency sample in the moving
+ * average of a server (default 0.2)
+ *
+ * With a list of replicas, each context is borrowed from the healthy server
+ * with the lowest average latency. A server failing to connect is ejected and
+ * re-probed in the background.
+ *
+ * The pool uses bean managed concurrency, so borrowing and releasing a context
+ * does not block on the container lock of the singleton.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LDAPContextPool {
+
+	int DEFAULT_MAX_SIZE = 10;
+	int DEFAULT_MIN_SIZE = 0;
+	long DEFAULT_IDLE_TIMEOUT = 300000;
+	long DEFAULT_MAX_WAIT = 5000;
+	long DEFAULT_CONNECT_TIMEOUT = 5000;
+	long DEFAULT_READ_TIMEOUT = 10000;
+	long DEFAULT_BACKOFF = 10000;
+	long DEFAULT_MAX_BACKOFF = 300000;
+
+	private Properties configurationProperties = null;
+	private int maxSize;
+	private int minSize;
+	private long idleTimeout;
+	private long maxWait;
+	private boolean validate;
+	private long backoff;
+	private long maxBackoff;
+	private double latencyWeight;
+
+	// the directory servers
+	private final List<Server> servers = new ArrayList<Server>();
+	// borrowed contexts and their server
+	private final ConcurrentHashMap<LdapContext, BorrowedContext> borrowedContexts = new ConcurrentHashMap<LdapContext, BorrowedContext>();
+	// statistics
+	private final AtomicLong createdContexts = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	private static Logger logger = Logger.getLogger(LDAPContextPool.class.getName());
+
+	@PostConstruct
+	void init() {
+		try {
+			// the imixs.properties are read by the LDAPConfigService
+			configurationProperties = ldapConfigService.getProperties();
+
+			maxSize = readInteger("ldap.pool-max-size", DEFAULT_MAX_SIZE);
+			minSize = readInteger("ldap.pool-min-size", DEFAULT_MIN_SIZE);
+			if (minSize > maxSize)
+				minSize = maxSize;
+			idleTimeout = readLong("ldap.pool-idle-timeout", DEFAULT_IDLE_TIMEOUT);
+			maxWait = readLong("ldap.pool-max-wait", DEFAULT_MAX_WAIT);
+			validate = !"false".equalsIgnoreCase(configurationProperties.getProperty("ldap.pool-validate", "true"));
+			backoff = readLong("ldap.replica-backoff", DEFAULT_BACKOFF);
+			maxBackoff = readLong("ldap.replica-max-backoff", DEFAULT_MAX_BACKOFF);
+			try {
+				latencyWeight = Double
+						.parseDouble(configurationProperties.getProperty("ldap.replica-latency-weight", "0.2").trim());
+			} catch (NumberFormatException nfe) {
+				latencyWeight = 0.2;
+			}
+			if (latencyWeight <= 0 || latencyWeight > 1)
+				latencyWeight = 0.2;
+
+			// replica list
+			String providerURLs = configurationProperties.getProperty("ldap.provider-urls", "").trim();
+			if (!providerURLs.isEmpty()) {
+				for (String url : providerURLs.split(",")) {
+					if (!url.trim().isEmpty()) {
+						servers.add(new Server(url.trim()));
+					}
+				}
+			}
+			if (servers.isEmpty()) {
+				// the java.naming.provider.url is used
+				servers.add(new Server(null));
+			}
+
+			logger.fine("ldap.pool-max-size=" + maxSize + " ldap.pool-min-size=" + minSize
+					+ " ldap.pool-idle-timeout=" + idleTimeout + " servers=" + servers.size());
+		} catch (Exception e) {
+			logger.severe("LDAPContextPool unable to initalize LDAPContextPool");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * closes all idle contexts. Borrowed contexts are closed when they are
+	 * released.
+	 */
+	@PreDestroy
+	void destroy() {
+		for (Server server : servers) {
+			closeIdleContexts(server);
+		}
+		maxSize = 0;
+	}
+
+	/**
+	 * Returns true if the pool is enabled (ldap.pool-max-size > 0)
+	 */
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns a bound ldap context. The context must be returned by the method
+	 * release() after the lookup was finished. The context is taken from the
+	 * healthy server with the lowest average latency. If the server fails, the
+	 * next server is tried.
+	 *
+	 * If no idle context is available and the pool of a server has reached its
+	 * max size, the method waits for a released context until
+	 * ldap.pool-max-wait is exceeded.
+	 *
+	 * If the pool is disabled, the method returns a new unpooled context.
+	 *
+	 * @return LdapContext
+	 * @throws NamingException
+	 *             if no context could be opened
+	 */
+	public LdapContext borrow() throws NamingException {
+		List<Server> triedServers = new ArrayList<Server>();
+		NamingException lastException = null;
+		Server server;
+		while ((server = selectServer(triedServers)) != null) {
+			triedServers.add(server);
+			try {
+				LdapContext ldapCtx = borrow(server);
+				borrowedContexts.put(ldapCtx, new BorrowedContext(server));
+				return ldapCtx;
+			} catch (CommunicationException | ServiceUnavailableException e) {
+				markFailed(server, e);
+				lastException = e;
+			} catch (NamingException e) {
+				lastException = e;
+			}
+		}
+		if (lastException == null) {
+			lastException = new NamingException("LDAPContextPool - no ldap server available");
+		}
+		throw lastException;
+	}
+
+	/**
+	 * Returns a bound ldap context of the server with the given url. The
+	 * method is used by requests which depend on the state of a single server
+	 * (e.g. the 'uSNChanged' of an Active Directory). If the url is null the
+	 * context is borrowed by the method borrow(). An ejected server is not
+	 * tried before its backoff time has expired.
+	 *
+	 * @param url
+	 *            - server url returned by getPreferredServer()
+	 * @return LdapContext
+	 * @throws NamingException
+	 *             if no context could be opened
+	 */
+	public LdapContext borrow(String url) throws NamingException {
+		if (url == null)
+			return borrow();
+		for (Server server : servers) {
+			if (url.equals(server.url)) {
+				if (server.failures.get() > 0 && server.ejectedUntil > System.currentTimeMillis())
+					throw new ServiceUnavailableException("LDAP server " + url + " is ejected");
+				try {
+					LdapContext ldapCtx = borrow(server);
+					borrowedContexts.put(ldapCtx, new BorrowedContext(server));
+					return ldapCtx;
+				} catch (CommunicationException | ServiceUnavailableException e) {
+					markFailed(server, e);
+					throw e;
+				}
+			}
+		}
+		throw new NamingException("LDAPContextPool - unknown ldap server " + url);
+	}
+
+	/**
+	 * Returns the url of the server currently selected by the method borrow()
+	 * or null if no list of replicas is defined.
+	 */
+	public String getPreferredServer() {
+		Server server = selectServer(new ArrayList<Server>());
+		return (server == null) ? null : server.url;
+	}
+
+	/**
+	 * Returns a context borrowed by the method borrow() back into the pool. If
+	 * the pool is disabled or a communication error was reported for the
+	 * context, the context will be closed.
+	 *
+	 * @param ldapCtx
+	 */
+	public void release(LdapContext ldapCtx) {
+		if (ldapCtx == null)
+			return;
+		BorrowedContext borrowed = borrowedContexts.remove(ldapCtx);
+		if (borrowed == null || !isEnabled()) {
+			closeContext(ldapCtx);
+			return;
+		}
+		if (borrowed.broken) {
+			discard(borrowed.server, ldapCtx);
+			return;
+		}
+		borrowed.server.idleContexts.offerFirst(new PooledContext(ldapCtx));
+	}
+
+	/**
+	 * Removes a borrowed context from the pool and closes the connection. This
+	 * method should be called instead of release() if a communication error
+	 * occurred on this context.
+	 *
+	 * @param ldapCtx
+	 */
+	public void discard(LdapContext ldapCtx) {
+		if (ldapCtx == null)
+			return;
+		BorrowedContext borrowed = borrowedContexts.remove(ldapCtx);
+		if (borrowed == null) {
+			closeContext(ldapCtx);
+			return;
+		}
+		discard(borrowed.server, ldapCtx);
+	}
+
+	/**
+	 * Records the duration of a ldap request on a borrowed context. The
+	 * duration is added to the average latency of the server.
+	 *
+	 * @param ldapCtx
+	 * @param nanos
+	 *            - duration in nanoseconds
+	 */
+	public void recordLatency(LdapContext ldapCtx, long nanos) {
+		BorrowedContext borrowed = (ldapCtx == null) ? null : borrowedContexts.get(ldapCtx);
+		if (borrowed != null) {
+			borrowed.server.updateLatency(nanos / 1000000.0);
+		}
+	}
+
+	/**
+	 * Reports a failed ldap request on a borrowed context. A communication
+	 * error ejects the server and the context is closed on release. Other
+	 * errors are ignored.
+	 *
+	 * @param ldapCtx
+	 * @param e
+	 *            - the failure
+	 */
+	public void recordFailure(LdapContext ldapCtx, NamingException e) {
+		if (!(e instanceof CommunicationException || e instanceof ServiceUnavailableException))
+			return;
+		BorrowedContext borrowed = (ldapCtx == null) ? null : borrowedContexts.get(ldapCtx);
+		if (borrowed != null) {
+			borrowed.broken = true;
+			markFailed(borrowed.server, e);
+		}
+	}
+
+	/**
+	 * Returns the number of open contexts (idle and borrowed)
+	 */
+	public int getOpenCount() {
+		int count = 0;
+		for (Server server : servers) {
+			count += server.openContexts.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of idle contexts
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (Server server : servers) {
+			count += server.idleContexts.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of contexts opened since the deployment
+	 */
+	public long getCreatedCount() {
+		return createdContexts.get();
+	}
+
+	/**
+	 * Returns the number of borrow requests failed because the pool was
+	 * exhausted
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Returns the status of each server - url, average latency, open contexts
+	 * and the ejection state
+	 */
+	public String[] getServerStatus() {
+		long now = System.currentTimeMillis();
+		String[] result = new String[servers.size()];
+		for (int i = 0; i < servers.size(); i++) {
+			Server server = servers.get(i);
+			String status = "healthy";
+			if (server.failures.get() > 0) {
+				status = (server.ejectedUntil > now) ? "ejected " + (server.ejectedUntil - now) + "ms" : "probing";
+			}
+			result[i] = (server.url == null ? "default" : server.url) + " latency="
+					+ String.format("%.2f", server.latency) + "ms open=" + server.openContexts.get() + " " + status;
+		}
+		return result;
+	}
+
+	/**
+	 * This method closes all contexts which are idle longer than the
+	 * ldap.pool-idle-timeout and opens new contexts if the pool size is below
+	 * ldap.pool-min-size. Ejected servers are probed after their backoff time
+	 * and with a list of replicas the latency of each healthy server is
+	 * measured. The method is called every 10 seconds by the container.
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+	public void evictIdleContexts() {
+		if (!isEnabled())
+			return;
+		long now = System.currentTimeMillis();
+		for (Server server : servers) {
+			if (server.failures.get() > 0) {
+				if (server.ejectedUntil <= now)
+					probe(server);
+				continue;
+			}
+
+			Iterator<PooledContext> iter = server.idleContexts.descendingIterator();
+			while (iter.hasNext()) {
+				PooledContext pooledContext = iter.next();
+				if (server.openContexts.get() <= minSize)
+					break;
+				if ((now - pooledContext.lastUsed) > idleTimeout && server.idleContexts.remove(pooledContext)) {
+					logger.finest("LDAPContextPool evict idle context");
+					discard(server, pooledContext.ldapCtx);
+				}
+			}
+
+			// fill up to min size
+			while (server.openContexts.get() < minSize) {
+				int count = server.openContexts.get();
+				if (!server.openContexts.compareAndSet(count, count + 1))
+					continue;
+				try {
+					server.idleContexts.offerLast(new PooledContext(createContext(server)));
+				} catch (NamingException e) {
+					server.openContexts.decrementAndGet();
+					logger.warning("LDAPContextPool unable to open context: " + e.getMessage());
+					markFailed(server, e);
+					break;
+				}
+			}
+
+			// a replica with idle contexts is probed to update its latency. A
+			// replica without any traffic is not connected, instead its latency
+			// is reset after the idle timeout so that it is tried again.
+			if (servers.size() > 1) {
+				if (server.idleContexts.isEmpty() && (now - server.lastSample) > idleTimeout)
+					server.resetLatency();
+				probe(server);
+			}
+		}
+	}
+
+	/**
+	 * Returns the server for the next context. This is the healthy server with
+	 * the lowest average latency. Servers with an expired backoff are treated
+	 * as healthy. If no healthy server is left, the ejected server with the
+	 * shortest remaining backoff is returned. Servers already tried are
+	 * skipped.
+	 */
+	private Server selectServer(List<Server> triedServers) {
+		long now = System.currentTimeMillis();
+		Server bestServer = null;
+		Server fallbackServer = null;
+		for (Server server : servers) {
+			if (triedServers.contains(server))
+				continue;
+			if (server.failures.get() == 0 || server.ejectedUntil <= now) {
+				if (bestServer == null || server.latency < bestServer.latency)
+					bestServer = server;
+			} else if (fallbackServer == null || server.ejectedUntil < fallbackServer.ejectedUntil) {
+				fallbackServer = server;
+			}
+		}
+		return (bestServer != null) ? bestServer : fallbackServer;
+	}
+
+	/**
+	 * Returns a context of the given server. See borrow()
+	 */
+	private LdapContext borrow(Server server) throws NamingException {
+		if (!isEnabled()) {
+			LdapContext ldapCtx = createContext(server);
+			server.markHealthy();
+			return ldapCtx;
+		}
+
+		long deadline = System.currentTimeMillis() + maxWait;
+		while (true) {
+			PooledContext pooledContext = server.idleContexts.pollFirst();
+			if (pooledContext != null) {
+				if (isValid(pooledContext)) {
+					return pooledContext.ldapCtx;
+				}
+				// discard broken or expired context and try next one
+				discard(server, pooledContext.ldapCtx);
+				continue;
+			}
+
+			// no idle context - open a new one if the pool is not exhausted
+			int count = server.openContexts.get();
+			if (count < maxSize) {
+				if (server.openContexts.compareAndSet(count, count + 1)) {
+					try {
+						LdapContext ldapCtx = createContext(server);
+						server.markHealthy();
+						return ldapCtx;
+					} catch (NamingException | RuntimeException e) {
+						server.openContexts.decrementAndGet();
+						throw e;
+					}
+				}
+				continue;
+			}
+
+			// wait for a released context
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				timeouts.incrementAndGet();
+				throw new NamingException("LDAPContextPool exhausted - no context available after " + maxWait + "ms");
+			}
+			try {
+				pooledContext = server.idleContexts.pollFirst(remaining, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new NamingException("LDAPContextPool interrupted while waiting for a context");
+			}
+			if (pooledContext != null) {
+				// push back - it will be validated in the next loop
+				server.idleContexts.offerFirst(pooledContext);
+			}
+		}
+	}
+
+	/**
+	 * Reads the root entry of a server to measure its latency. A healthy
+	 * server is only probed on an idle context, which keeps the time of its
+	 * last usage. If the idle context is stale, it is discarded and the probe
+	 * is repeated on a new context. An ejected server is probed on a new
+	 * context. The server is only ejected if the new context fails. An ejected
+	 * server is marked as healthy if the probe succeeds, otherwise its backoff
+	 * time is extended.
+	 */
+	private void probe(Server server) {
+		if (server.failures.get() == 0) {
+			PooledContext pooledContext = server.idleContexts.pollLast();
+			if (pooledContext == null)
+				return;
+			try {
+				measure(server, pooledContext.ldapCtx);
+				server.idleContexts.offerLast(pooledContext);
+				return;
+			} catch (NamingException e) {
+				logger.fine("LDAPContextPool probe on idle context failed: " + e.getMessage());
+				discard(server, pooledContext.ldapCtx);
+			}
+		}
+
+		int count = server.openContexts.get();
+		if (count >= maxSize || !server.openContexts.compareAndSet(count, count + 1))
+			return;
+		LdapContext ldapCtx = null;
+		try {
+			ldapCtx = createContext(server);
+			measure(server, ldapCtx);
+			if (server.failures.get() > 0) {
+				logger.info("LDAP server " + server.url + " is available again");
+				server.markHealthy();
+			}
+			server.idleContexts.offerLast(new PooledContext(ldapCtx));
+		} catch (NamingException e) {
+			if (ldapCtx != null)
+				discard(server, ldapCtx);
+			else
+				server.openContexts.decrementAndGet();
+			markFailed(server, e);
+		}
+	}
+
+	private void measure(Server server, LdapContext ldapCtx) throws NamingException {
+		long lStart = System.nanoTime();
+		ldapCtx.getAttributes("", new String[] { "objectClass" });
+		server.updateLatency((System.nanoTime() - lStart) / 1000000.0);
+	}
+
+	/**
+	 * Ejects a server after a communication error. The backoff time is doubled
+	 * with each failure. All idle contexts of the server are closed.
+	 */
+	private void markFailed(Server server, NamingException e) {
+		int failures = server.failures.incrementAndGet();
+		long serverBackoff = Math.min(backoff << Math.min(failures - 1, 20), maxBackoff);
+		server.ejectedUntil = System.currentTimeMillis() + serverBackoff;
+		closeIdleContexts(server);
+		logger.warning("LDAP server " + (server.url == null ? "" : server.url) + " ejected for " + serverBackoff
+				+ "ms: " + e.getMessage());
+	}
+
+	private void closeIdleContexts(Server server) {
+		PooledContext pooledContext;
+		while ((pooledContext = server.idleContexts.pollFirst()) != null) {
+			discard(server, pooledContext.ldapCtx);
+		}
+	}
+
+	private void discard(Server server, LdapContext ldapCtx) {
+		if (isEnabled()) {
+			server.openContexts.decrementAndGet();
+		}
+		closeContext(ldapCtx);
+	}
+
+	/**
+	 * Verifies an idle context. A context idle longer than the
+	 * ldap.pool-idle-timeout is no longer valid. If ldap.pool-validate is
+	 * true, the method reads the root entry to test the connection.
+	 */
+	private boolean isValid(PooledContext pooledContext) {
+		if ((System.currentTimeMillis() - pooledContext.lastUsed) > idleTimeout) {
+			return false;
+		}
+		if (!validate) {
+			return true;
+		}
+		try {
+			pooledContext.ldapCtx.getAttributes("", new String[] { "objectClass" });
+			return true;
+		} catch (NamingException e) {
+			logger.fine("LDAPContextPool validation failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a new ldap context based on the 'java.naming' properties
+	 * defined in the imixs.properties. The context is bound with the
+	 * configured principal. If the server defines an url, the url overrules
+	 * the java.naming.provider.url.
+	 *
+	 * @return LdapContext
+	 * @throws NamingException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	LdapContext createContext(Server server) throws NamingException {
+		Hashtable env = new Hashtable();
+
+		// scann all properties starting with 'java.naming'
+		Enumeration<Object> keys = configurationProperties.keys();
+		while (keys.hasMoreElements()) {
+			String sKey = keys.nextElement().toString();
+			if (sKey.startsWith("java.naming")) {
+				env.put(sKey, configurationProperties.getProperty(sKey));
+				logger.finest("Set key: " + sKey + "=" + configurationProperties.getProperty(sKey));
+			}
+		}
+
+		// set default params...
+		env.put("java.naming.factory.initial",
+				configurationProperties.getProperty("java.naming.factory.initial", "com.sun.jndi.ldap.LdapCtxFactory"));
+		env.put("java.naming.security.authentication",
+				configurationProperties.getProperty("java.naming.security.authentication", "simple"));
+		if (server.url != null) {
+			env.put(Context.PROVIDER_URL, server.url);
+		}
+
+		// connect and read timeouts - a hung directory must not block a
+		// lookup forever
+		env.put("com.sun.jndi.ldap.connect.timeout", configurationProperties.getProperty("ldap.connect-timeout",
+				"" + DEFAULT_CONNECT_TIMEOUT));
+		env.put("com.sun.jndi.ldap.read.timeout", configurationProperties.getProperty("ldap.read-timeout",
+				"" + DEFAULT_READ_TIMEOUT));
+
+		LdapContext ldapCtx = new InitialLdapContext(env, null);
+		createdContexts.incrementAndGet();
+		logger.finest("Get DirContext Manually successful! ");
+		return ldapCtx;
+	}
+
+	private void closeContext(LdapContext ldapCtx) {
+		try {
+			ldapCtx.close();
+		} catch (NamingException e) {
+			logger.fine("LDAPContextPool unable to close context: " + e.getMessage());
+		}
+	}
+
+	private int readInteger(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(configurationProperties.getProperty(key, "" + defaultValue).trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	private long readLong(String key, long defaultValue) {
+		try {
+			return Long.parseLong(configurationProperties.getProperty(key, "" + defaultValue).trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * A directory server with its idle contexts, the moving average of its
+	 * latency and its ejection state.
+	 */
+	class Server {
+		final String url;
+		// idle contexts, the most recently released context is at the head
+		final LinkedBlockingDeque<PooledContext> idleContexts = new LinkedBlockingDeque<PooledContext>();
+		// number of open contexts (idle and borrowed)
+		final AtomicInteger openContexts = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		volatile long ejectedUntil = 0;
+		volatile double latency = 0; // milliseconds
+		volatile long lastSample = System.currentTimeMillis();
+
+		Server(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * Adds a latency sample to the exponentially weighted moving average
+		 */
+		synchronized void updateLatency(double millis) {
+			latency = (latency == 0) ? millis : latency + latencyWeight * (millis - latency);
+			lastSample = System.currentTimeMillis();
+		}
+
+		/**
+		 * Discards the average latency, so the server is preferred until the
+		 * next sample
+		 */
+		synchronized void resetLatency() {
+			latency = 0;
+			lastSample = System.currentTimeMillis();
+		}
+
+		void markHealthy() {
+			failures.set(0);
+			ejectedUntil = 0;
+		}
+	}
+
+	/**
+	 * Holds an idle ldap context together with the time of its last usage
+	 */
+	class PooledContext {
+		final LdapContext ldapCtx;
+		final long lastUsed;
+
+		PooledContext(LdapContext ldapCtx) {
+			this.ldapCtx = ldapCtx;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A borrowed context. A context is broken after a communication error.
+	 */
+	class BorrowedContext {
+		final Server server;
+		volatile boolean broken = false;
+
+		BorrowedContext(Server server) {
+			this.server = server;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package org.imixs.workflow.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Invalidation channel between nodes sharing a file system (e.g. a NFS volume
+ * mounted by all nodes of a cluster). The events are appended as lines to a
+ * shared file. Each node reads the lines appended since its last call.
+ *
+ * ldap.invalidation-file = path of the shared file (required)
+ *
+ * ldap.invalidation-file-max-size = max size of the file in bytes (default
+ * 1048576). If the file exceeds this size it is truncated by the next
+ * publishing node. Events not yet received by a node are lost in this case,
+ * so the size should be large enough for the events published between two
+ * polls.
+ *
+ * The file starts with a generation number which is incremented on each
+ * truncation, so a node detects a truncated file and reads it from the
+ * beginning. The file is written under an exclusive and read under a shared
+ * file lock. A file lock is not supported by all network file systems.
+ * Channels of the same JVM using the same file (e.g. several deployments)
+ * are serialized by a monitor per path, because a JVM can not hold
+ * overlapping file locks.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPFileInvalidationChannel implements LDAPInvalidationChannel {
+
+	long DEFAULT_MAX_SIZE = 1048576;
+	// generation number as a line of 19 digits
+	static final int HEADER_SIZE = 20;
+
+	// monitors per canonical path shared by all channels of the JVM
+	private static final ConcurrentMap<String, Object> pathMonitors = new ConcurrentHashMap<String, Object>();
+
+	private String nodeId = null;
+	private long maxSize = DEFAULT_MAX_SIZE;
+	private RandomAccessFile file = null;
+	private Object monitor = null;
+	private long offset = 0;
+	private long generation = -1;
+
+	private static Logger logger = Logger.getLogger(LDAPFileInvalidationChannel.class.getName());
+
+	@Override
+	public void open(String nodeId, LDAPConfiguration configuration) throws IOException {
+		String path = configuration.getProperties().getProperty("ldap.invalidation-file", "").trim();
+		if (path.isEmpty()) {
+			throw new IOException("ldap.invalidation-file not defined");
+		}
+		maxSize = Long.parseLong(configuration.getProperties()
+				.getProperty("ldap.invalidation-file-max-size", "" + DEFAULT_MAX_SIZE).trim());
+		this.nodeId = nodeId;
+		String canonicalPath = new File(path).getCanonicalPath();
+		pathMonitors.putIfAbsent(canonicalPath, new Object());
+		monitor = pathMonitors.get(canonicalPath);
+		file = new RandomAccessFile(path, "rw");
+		// events published before are ignored
+		FileChannel channel = file.getChannel();
+		synchronized (monitor) {
+			FileLock lock = lock(channel, false);
+			try {
+				generation = initHeader(channel);
+				offset = channel.size();
+			} finally {
+				lock.release();
+			}
+		}
+		logger.fine("ldap.invalidation-file=" + path);
+	}
+
+	@Override
+	public void publish(LDAPInvalidationEvent event) throws IOException {
+		byte[] line = (event.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+		FileChannel channel = file.getChannel();
+		synchronized (monitor) {
+			FileLock lock = lock(channel, false);
+			try {
+				long fileGeneration = initHeader(channel);
+				long size = channel.size();
+				if (size > maxSize) {
+					logger.fine("truncate invalidation file (" + size + " bytes)");
+					channel.truncate(HEADER_SIZE);
+					writeHeader(channel, fileGeneration + 1);
+					size = HEADER_SIZE;
+				}
+				channel.write(ByteBuffer.wrap(line), size);
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	@Override
+	public List<LDAPInvalidationEvent> receive() throws IOException {
+		List<LDAPInvalidationEvent> result = new ArrayList<LDAPInvalidationEvent>();
+		FileChannel channel = file.getChannel();
+		ByteBuffer buffer;
+		synchronized (monitor) {
+			FileLock lock = lock(channel, true);
+			try {
+				long fileGeneration = readHeader(channel);
+				if (fileGeneration != generation) {
+					// the file was truncated
+					generation = fileGeneration;
+					offset = HEADER_SIZE;
+				}
+				long size = channel.size();
+				if (size <= offset) {
+					return result;
+				}
+				buffer = ByteBuffer.allocate((int) Math.min(size - offset, Integer.MAX_VALUE));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0)
+						break;
+				}
+				buffer.flip();
+			} finally {
+				lock.release();
+			}
+		}
+
+		// only complete lines are processed, an incomplete line is read again
+		// by the next call
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int consumed = 0;
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b != '\n') {
+				line.write(b);
+				continue;
+			}
+			consumed = buffer.position();
+			LDAPInvalidationEvent event = LDAPInvalidationEvent
+					.parse(new String(line.toByteArray(), StandardCharsets.UTF_8));
+			line.reset();
+			if (event != null && !nodeId.equals(event.getNodeId())) {
+				result.add(event);
+			}
+		}
+		offset += consumed;
+		return result;
+	}
+
+	@Override
+	public void close() {
+		if (file != null) {
+			synchronized (monitor) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					logger.warning("unable to close invalidation file: " + e.getMessage());
+				}
+				file = null;
+			}
+		}
+	}
+
+	/**
+	 * Acquires a file lock. A lock held by another channel of this JVM is
+	 * reported as an IOException.
+	 */
+	private FileLock lock(FileChannel channel, boolean shared) throws IOException {
+		try {
+			return channel.lock(0, Long.MAX_VALUE, shared);
+		} catch (OverlappingFileLockException e) {
+			throw new IOException("invalidation file is locked by this JVM", e);
+		}
+	}
+
+	/**
+	 * Writes the header of a new file and returns the generation number. The
+	 * caller must hold an exclusive lock.
+	 */
+	private long initHeader(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			writeHeader(channel, 0);
+			return 0;
+		}
+		return readHeader(channel);
+	}
+
+	private long readHeader(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0)
+				return -1;
+		}
+		try {
+			return Long.parseLong(new String(buffer.array(), 0, HEADER_SIZE - 1, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid invalidation file header");
+		}
+	}
+
+	private void writeHeader(FileChannel channel, long newGeneration) throws IOException {
+		byte[] header = (String.format("%019d", newGeneration) + "\n").getBytes(StandardCharsets.US_ASCII);
+		channel.write(ByteBuffer.wrap(header), 0);
+	}
+}
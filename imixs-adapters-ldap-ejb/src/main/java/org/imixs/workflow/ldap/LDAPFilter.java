@@ -0,0 +1,85 @@
+package org.imixs.workflow.ldap;
+
+/**
+ * Helper methods to build ldap search filters. Values inserted into a search
+ * filter (e.g. a user id or a DN) must be escaped as defined by RFC 4515.
+ * Otherwise a value containing a '*' or a parenthesis changes the meaning of
+ * the filter.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPFilter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private LDAPFilter() {
+	}
+
+	/**
+	 * Escapes a value to be used in a search filter. The characters '*', '(',
+	 * ')', '\' and NUL are replaced by a backslash followed by two hex
+	 * digits. E.g. 'Smith (IT)' becomes 'Smith \28IT\29'.
+	 *
+	 * @param value
+	 * @return escaped value
+	 */
+	public static String escape(String value) {
+		StringBuilder result = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '*' || c == '(' || c == ')' || c == '\\' || c == 0) {
+				if (result == null) {
+					result = new StringBuilder(value.length() + 8);
+					result.append(value, 0, i);
+				}
+				result.append('\\').append(HEX[c >> 4]).append(HEX[c & 0x0f]);
+			} else if (result != null) {
+				result.append(c);
+			}
+		}
+		return (result == null) ? value : result.toString();
+	}
+
+	/**
+	 * Replaces a placeholder (e.g. %u) in a search filter with the escaped
+	 * value.
+	 *
+	 * @param searchFilter
+	 * @param placeholder
+	 * @param value
+	 * @return search filter
+	 */
+	public static String replace(String searchFilter, String placeholder, String value) {
+		return searchFilter.replace(placeholder, escape(value));
+	}
+
+	/**
+	 * Returns a substring filter matching all values of an attribute starting
+	 * with the given prefix. E.g. '(cn=imixs-*)'
+	 *
+	 * @param attribute
+	 * @param prefix
+	 * @return search filter
+	 */
+	public static String startsWith(String attribute, String prefix) {
+		return "(" + attribute + "=" + escape(prefix) + "*)";
+	}
+
+	/**
+	 * Combines two search filters by an AND. If one of the filters is null or
+	 * empty the other filter is returned.
+	 *
+	 * @param filter1
+	 * @param filter2
+	 * @return search filter
+	 */
+	public static String and(String filter1, String filter2) {
+		if (filter1 == null || filter1.isEmpty())
+			return filter2;
+		if (filter2 == null || filter2.isEmpty())
+			return filter1;
+		return "(&" + filter1 + filter2 + ")";
+	}
+}
@@ -0,0 +1,113 @@
+package org.imixs.workflow.ldap;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The LDAPGroupDictionary maps each group name to a unique int id. The
+ * LDAPCache stores the group list of a user as a sorted int array of these
+ * ids. So each group name is held only once in memory, regardless of the
+ * number of members.
+ *
+ * Ids are never removed. The dictionary only grows with the number of
+ * distinct group names found in the directory.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPGroupDictionary {
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[64];
+	private int size = 0;
+
+	/**
+	 * Returns the sorted ids of a list of group names. Unknown group names are
+	 * added to the dictionary. Duplicates are removed.
+	 *
+	 * @param groups
+	 *            - group names
+	 * @return sorted array of group ids
+	 */
+	public int[] encode(String[] groups) {
+		int[] result = new int[groups.length];
+		for (int i = 0; i < groups.length; i++) {
+			result[i] = getId(groups[i]);
+		}
+		Arrays.sort(result);
+		// remove duplicates
+		int count = 0;
+		for (int i = 0; i < result.length; i++) {
+			if (i == 0 || result[i] != result[i - 1]) {
+				result[count++] = result[i];
+			}
+		}
+		return (count == result.length) ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Returns the group names for an array of group ids
+	 *
+	 * @param groupIds
+	 *            - ids returned by encode()
+	 * @return new array of group names
+	 */
+	public String[] decode(int[] groupIds) {
+		String[] currentNames = names;
+		String[] result = new String[groupIds.length];
+		for (int i = 0; i < groupIds.length; i++) {
+			result[i] = currentNames[groupIds[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if the given group ids contain the group name
+	 */
+	public boolean contains(int[] groupIds, String groupName) {
+		Integer id = ids.get(groupName);
+		return id != null && Arrays.binarySearch(groupIds, id) >= 0;
+	}
+
+	/**
+	 * Returns all group names. The index of a name is its id.
+	 */
+	public synchronized String[] getNames() {
+		return Arrays.copyOf(names, size);
+	}
+
+	/**
+	 * Returns the number of group names in the dictionary
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Returns the id of a group name. A new group name is added to the
+	 * dictionary. The name array is published before the id, so a reader
+	 * knowing an id can always resolve the name.
+	 */
+	private int getId(String groupName) {
+		Integer id = ids.get(groupName);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = ids.get(groupName);
+			if (id != null) {
+				return id;
+			}
+			String[] newNames = names;
+			if (size == newNames.length) {
+				newNames = Arrays.copyOf(newNames, size * 2);
+			}
+			newNames[size] = groupName;
+			names = newNames;
+			id = size++;
+			ids.put(groupName, id);
+			return id;
+		}
+	}
+}
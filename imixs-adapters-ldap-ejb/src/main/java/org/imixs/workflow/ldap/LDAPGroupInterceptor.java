@@ -1,5 +1,9 @@
 package org.imixs.workflow.ldap;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import javax.annotation.Resource;
@@ -31,6 +35,12 @@ import org.imixs.workflow.engine.DocumentService;
 	</assembly-descriptor>
  * }
  * 
+ * If the groups of a user are not cached and 'ldap.group-timeout' is set
+ * (default 0 = no timeout), the interceptor waits for the lookup at most the
+ * defined time. If the directory does not answer in time, the last known
+ * groups of the user or an empty list is used
+ * (ldap.group-timeout-policy=stale|empty). Without last known groups the user
+ * gets no groups. Only one lookup per user runs in the background.
  * 
  * @version 1.0
  * @author rsoika
@@ -42,6 +52,9 @@ public class LDAPGroupInterceptor {
 	@EJB
 	LDAPLookupService lookupService;
 
+	@EJB
+	LDAPMetrics ldapMetrics;
+
 	@Resource
 	SessionContext ejbCtx;
 
@@ -81,9 +94,10 @@ public class LDAPGroupInterceptor {
 			
 			// if we have not yet build a USER_GROUP_LIST lets start...
 			if (!ctx.getContextData().containsKey(DocumentService.USER_GROUP_LIST)) {
+				long lStart = System.nanoTime();
 				logger.finest("LDAPGroupInterceptor Method=" + sMethod);
 				sUserID = ejbCtx.getCallerPrincipal().getName();
-				String[] sGroups = lookupService.findGroups(sUserID);
+				String[] sGroups = findGroups(sUserID);
 				ctx.getContextData().put(DocumentService.USER_GROUP_LIST, sGroups);
 				if (logger.isLoggable(java.util.logging.Level.FINEST)) {
 					String groupListe = "";
@@ -91,10 +105,50 @@ public class LDAPGroupInterceptor {
 						groupListe += "'" + aGroup + "' ";
 					logger.finest("resolved UserGroups for '" + sUserID + "' = " + groupListe);
 				}
+				ldapMetrics.recordInterceptor(System.nanoTime() - lStart);
 			}
 		}
 
 		return ctx.proceed();
 	}
 
+	/**
+	 * Returns the groups of a user. If the groups are not cached, the lookup
+	 * runs asynchronously and the method waits until the ldap.group-timeout is
+	 * exceeded. In this case the fallback group list is returned and the
+	 * lookup is finished in the background.
+	 * 
+	 * @param sUserID
+	 * @return group names
+	 */
+	private String[] findGroups(String sUserID) {
+		long timeout = lookupService.getGroupTimeout();
+		if (timeout <= 0) {
+			return lookupService.findGroups(sUserID);
+		}
+
+		// fast path - no thread switch if the groups are cached
+		String[] sGroups = lookupService.findCachedGroups(sUserID);
+		if (sGroups != null) {
+			return sGroups;
+		}
+
+		// a lookup still running for this user is joined
+		Future<String[]> future = lookupService.startGroupLookup(sUserID);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.warning("LDAP group lookup for '" + sUserID + "' exceeded " + timeout
+					+ "ms - fallback group list is used");
+		} catch (ExecutionException e) {
+			logger.warning("LDAP group lookup for '" + sUserID + "' failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lookupService.endGroupLookup(sUserID, future);
+		}
+		ldapMetrics.countGroupTimeout();
+		return lookupService.getFallbackGroups(sUserID);
+	}
+
 }
\ No newline at end of file
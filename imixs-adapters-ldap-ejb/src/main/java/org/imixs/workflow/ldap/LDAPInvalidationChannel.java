@@ -0,0 +1,56 @@
+package org.imixs.workflow.ldap;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A LDAPInvalidationChannel transports LDAPInvalidationEvents between the
+ * nodes of a cluster. Each node publishes the entries removed from its
+ * LDAPCache, and periodically receives the events published by all other
+ * nodes. See LDAPInvalidationService.
+ *
+ * The adapter provides the implementations LDAPLocalInvalidationChannel
+ * (nodes within the same JVM) and LDAPFileInvalidationChannel (nodes sharing
+ * a file system). A custom implementation must provide a public default
+ * constructor.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public interface LDAPInvalidationChannel {
+
+	/**
+	 * Opens the channel. Events published before the channel was opened are
+	 * not received.
+	 *
+	 * @param nodeId
+	 *            - unique id of the local node
+	 * @param configuration
+	 *            - ldap configuration
+	 * @throws IOException
+	 */
+	public void open(String nodeId, LDAPConfiguration configuration) throws IOException;
+
+	/**
+	 * Sends an event to all other nodes
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	public void publish(LDAPInvalidationEvent event) throws IOException;
+
+	/**
+	 * Returns all events published by other nodes since the last call. Events
+	 * of the local node are not returned.
+	 *
+	 * @return list of events, never null
+	 * @throws IOException
+	 */
+	public List<LDAPInvalidationEvent> receive() throws IOException;
+
+	/**
+	 * Closes the channel
+	 */
+	public void close();
+}
@@ -0,0 +1,99 @@
+package org.imixs.workflow.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * A LDAPInvalidationEvent describes the removal of entries from the LDAPCache.
+ * Events are sent by a LDAPInvalidationChannel to all other nodes of a
+ * cluster.
+ *
+ * The type of an event is one of:
+ *
+ * USER = all entries of a user (key = user id)
+ *
+ * GROUPS = the group list of a user (key = user id)
+ *
+ * GROUP = all group lists containing a group (key = group name)
+ *
+ * GROUP_GRAPH = the group graph and all group lists (no key)
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPInvalidationEvent {
+
+	public enum Type {
+		USER, GROUPS, GROUP, GROUP_GRAPH
+	}
+
+	private final String nodeId;
+	private final Type type;
+	private final String key;
+
+	/**
+	 * Creates a new event
+	 *
+	 * @param nodeId
+	 *            - id of the sending node
+	 * @param type
+	 * @param key
+	 *            - user id or group name, can be null
+	 */
+	public LDAPInvalidationEvent(String nodeId, Type type, String key) {
+		this.nodeId = nodeId;
+		this.type = type;
+		this.key = (key == null) ? "" : key;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the event as a single line of text. The node id and the key are
+	 * url encoded, so the line contains no tab or line break.
+	 */
+	public String toLine() {
+		try {
+			return URLEncoder.encode(nodeId, "UTF-8") + "\t" + type.name() + "\t" + URLEncoder.encode(key, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parses a line created by the method toLine(). Returns null if the line
+	 * is not a valid event.
+	 *
+	 * @param line
+	 * @return event or null
+	 */
+	public static LDAPInvalidationEvent parse(String line) {
+		String[] parts = line.split("\t", -1);
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			return new LDAPInvalidationEvent(URLDecoder.decode(parts[0], "UTF-8"), Type.valueOf(parts[1]),
+					URLDecoder.decode(parts[2], "UTF-8"));
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return type + ":" + key;
+	}
+}
@@ -0,0 +1,239 @@
+package org.imixs.workflow.ldap;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+
+/**
+ * This singleton ejb removes entries from the local LDAPCache and sends the
+ * removal to the other nodes of a cluster. So a change detected by the
+ * LDAPChangeWatcher of one node is applied to the caches of all nodes, and
+ * not only after the cache entries have expired.
+ *
+ * The events are transported by a LDAPInvalidationChannel. Events of the
+ * other nodes are received periodically and applied to the local cache
+ * without being published again.
+ *
+ * ldap.invalidation-channel = none|local|file|class name (default none)
+ *
+ * ldap.invalidation-interval = milliseconds between two receives (default
+ * 1000)
+ *
+ * If no channel is configured, the entries are removed only from the local
+ * cache.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LDAPInvalidationService {
+
+	long DEFAULT_INTERVAL = 1000;
+
+	private final String nodeId = UUID.randomUUID().toString();
+	private volatile LDAPInvalidationChannel channel = null;
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@EJB
+	LDAPCache ldapCache;
+
+	@EJB
+	LDAPUserIndex userIndex;
+
+	@Resource
+	TimerService timerService;
+
+	private static Logger logger = Logger.getLogger(LDAPInvalidationService.class.getName());
+
+	@PostConstruct
+	void init() {
+		Properties configurationProperties = ldapConfigService.getProperties();
+		String channelName = configurationProperties.getProperty("ldap.invalidation-channel", "none").trim();
+		if (channelName.isEmpty() || "none".equalsIgnoreCase(channelName)) {
+			return;
+		}
+
+		try {
+			LDAPInvalidationChannel newChannel;
+			if ("local".equalsIgnoreCase(channelName)) {
+				newChannel = new LDAPLocalInvalidationChannel();
+			} else if ("file".equalsIgnoreCase(channelName)) {
+				newChannel = new LDAPFileInvalidationChannel();
+			} else {
+				newChannel = (LDAPInvalidationChannel) Class
+						.forName(channelName, true, Thread.currentThread().getContextClassLoader())
+						.getDeclaredConstructor().newInstance();
+			}
+			newChannel.open(nodeId, ldapConfigService.getConfiguration());
+			channel = newChannel;
+			logger.info("LDAP invalidation channel: " + channelName + " (node " + nodeId + ")");
+		} catch (Exception e) {
+			logger.severe("LDAPInvalidationService unable to open channel '" + channelName + "': " + e);
+			return;
+		}
+
+		try {
+			long interval = Long.parseLong(configurationProperties
+					.getProperty("ldap.invalidation-interval", "" + DEFAULT_INTERVAL).trim());
+			if (interval > 0 && timerService != null) {
+				TimerConfig timerConfig = new TimerConfig();
+				timerConfig.setPersistent(false);
+				timerService.createIntervalTimer(interval, interval, timerConfig);
+				logger.fine("ldap.invalidation-interval=" + interval);
+			}
+		} catch (Exception e) {
+			logger.warning("LDAPInvalidationService unable to start timer: " + e.getMessage());
+		}
+	}
+
+	@PreDestroy
+	void destroy() {
+		LDAPInvalidationChannel current = channel;
+		channel = null;
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	/**
+	 * Returns the id of the local node
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Removes all cache entries of a user on all nodes. The user is also
+	 * updated in the LDAPUserIndex.
+	 *
+	 * @param uid
+	 */
+	public void invalidateUser(String uid) {
+		ldapCache.invalidateUser(uid);
+		userIndex.invalidate(uid);
+		publish(LDAPInvalidationEvent.Type.USER, uid);
+	}
+
+	/**
+	 * Removes the group list of a user on all nodes
+	 *
+	 * @param uid
+	 */
+	public void invalidateGroups(String uid) {
+		ldapCache.remove(uid + "-GROUPS");
+		publish(LDAPInvalidationEvent.Type.GROUPS, uid);
+	}
+
+	/**
+	 * Removes all group lists containing the given group on all nodes. The
+	 * method returns the number of group lists removed from the local cache.
+	 *
+	 * @param groupName
+	 */
+	public int invalidateGroup(String groupName) {
+		int count = ldapCache.invalidateGroup(groupName);
+		publish(LDAPInvalidationEvent.Type.GROUP, groupName);
+		return count;
+	}
+
+	/**
+	 * Clears the group graph on all nodes. The method returns the number of
+	 * group lists removed from the local cache.
+	 */
+	public int invalidateGroupGraph() {
+		int count = ldapCache.invalidateGroupGraph();
+		publish(LDAPInvalidationEvent.Type.GROUP_GRAPH, null);
+		return count;
+	}
+
+	/**
+	 * Receives the events of the other nodes periodically
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	public void onReceive(Timer timer) {
+		receive();
+	}
+
+	/**
+	 * Applies all events received from the other nodes to the local cache. The
+	 * method returns the number of applied events.
+	 *
+	 * @return number of events
+	 */
+	public int receive() {
+		LDAPInvalidationChannel current = channel;
+		if (current == null) {
+			return 0;
+		}
+		List<LDAPInvalidationEvent> events;
+		try {
+			events = current.receive();
+		} catch (IOException e) {
+			logger.warning("LDAPInvalidationService receive failed: " + e.getMessage());
+			return 0;
+		} catch (RuntimeException e) {
+			// e.g. an OverlappingFileLockException of a custom channel
+			logger.warning("LDAPInvalidationService receive failed: " + e);
+			return 0;
+		}
+		for (LDAPInvalidationEvent event : events) {
+			logger.finest("received " + event + " from node " + event.getNodeId());
+			switch (event.getType()) {
+			case USER:
+				ldapCache.invalidateUser(event.getKey());
+				userIndex.invalidate(event.getKey());
+				break;
+			case GROUPS:
+				ldapCache.remove(event.getKey() + "-GROUPS");
+				break;
+			case GROUP:
+				ldapCache.invalidateGroup(event.getKey());
+				break;
+			case GROUP_GRAPH:
+				ldapCache.invalidateGroupGraph();
+				break;
+			}
+		}
+		if (!events.isEmpty()) {
+			logger.fine(events.size() + " invalidation events received");
+		}
+		return events.size();
+	}
+
+	private void publish(LDAPInvalidationEvent.Type type, String key) {
+		LDAPInvalidationChannel current = channel;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.publish(new LDAPInvalidationEvent(nodeId, type, key));
+		} catch (IOException e) {
+			logger.warning("LDAPInvalidationService publish " + type + ":" + key + " failed: " + e.getMessage());
+		} catch (RuntimeException e) {
+			// e.g. an OverlappingFileLockException of a custom channel
+			logger.warning("LDAPInvalidationService publish " + type + ":" + key + " failed: " + e);
+		}
+	}
+}
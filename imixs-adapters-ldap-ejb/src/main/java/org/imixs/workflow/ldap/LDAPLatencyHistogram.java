@@ -0,0 +1,138 @@
+package org.imixs.workflow.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LDAPLatencyHistogram records the duration of a single ldap operation.
+ * The durations are counted in buckets with exponential bounds. The bucket i
+ * counts all durations less than 2^i microseconds, the last bucket counts all
+ * durations exceeding the bound of the bucket before (about 16 seconds).
+ *
+ * The histogram does not lock. All values are in microseconds. The getter
+ * methods are exposed by the LDAPMetricsMXBean.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPLatencyHistogram {
+
+	public static final int BUCKETS = 26;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalTime = new AtomicLong();
+	private final AtomicLong maxTime = new AtomicLong();
+
+	/**
+	 * Records the duration of a single operation
+	 *
+	 * @param nanos
+	 *            - duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		totalTime.addAndGet(micros);
+		long max = maxTime.get();
+		while (micros > max && !maxTime.compareAndSet(max, micros)) {
+			max = maxTime.get();
+		}
+	}
+
+	/**
+	 * Resets all counters
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalTime.set(0);
+		maxTime.set(0);
+	}
+
+	/**
+	 * Returns the number of recorded operations
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of all durations in microseconds
+	 */
+	public long getTotalTime() {
+		return totalTime.get();
+	}
+
+	/**
+	 * Returns the max duration in microseconds
+	 */
+	public long getMaxTime() {
+		return maxTime.get();
+	}
+
+	/**
+	 * Returns the mean duration in microseconds
+	 */
+	public long getMeanTime() {
+		long n = count.get();
+		return (n == 0) ? 0 : totalTime.get() / n;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the median in
+	 * microseconds
+	 */
+	public long getMedianTime() {
+		return getPercentile(0.5);
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the 99th percentile in
+	 * microseconds
+	 */
+	public long getPercentile99Time() {
+		return getPercentile(0.99);
+	}
+
+	/**
+	 * Returns a copy of the bucket counters. The bucket i counts all durations
+	 * less than 2^i microseconds.
+	 */
+	public long[] getBuckets() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			result[i] = buckets.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the given percentile.
+	 * For the last bucket the max duration is returned.
+	 */
+	private long getPercentile(double percentile) {
+		long[] values = getBuckets();
+		long total = 0;
+		for (long value : values) {
+			total += value;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long limit = (long) Math.ceil(total * percentile);
+		long sum = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			sum += values[i];
+			if (sum >= limit) {
+				return 1L << i;
+			}
+		}
+		return maxTime.get();
+	}
+}
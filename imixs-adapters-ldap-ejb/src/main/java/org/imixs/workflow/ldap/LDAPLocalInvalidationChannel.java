@@ -0,0 +1,54 @@
+package org.imixs.workflow.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Invalidation channel between nodes running in the same JVM (e.g. several
+ * deployments of an application in one server or tests). A published event
+ * is added to the inbox of all other open channels.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPLocalInvalidationChannel implements LDAPInvalidationChannel {
+
+	private static final List<LDAPLocalInvalidationChannel> channels = new CopyOnWriteArrayList<LDAPLocalInvalidationChannel>();
+
+	private final ConcurrentLinkedQueue<LDAPInvalidationEvent> inbox = new ConcurrentLinkedQueue<LDAPInvalidationEvent>();
+	private String nodeId = null;
+
+	@Override
+	public void open(String nodeId, LDAPConfiguration configuration) {
+		this.nodeId = nodeId;
+		channels.add(this);
+	}
+
+	@Override
+	public void publish(LDAPInvalidationEvent event) {
+		for (LDAPLocalInvalidationChannel channel : channels) {
+			if (!channel.nodeId.equals(event.getNodeId())) {
+				channel.inbox.add(event);
+			}
+		}
+	}
+
+	@Override
+	public List<LDAPInvalidationEvent> receive() {
+		List<LDAPInvalidationEvent> result = new ArrayList<LDAPInvalidationEvent>();
+		LDAPInvalidationEvent event;
+		while ((event = inbox.poll()) != null) {
+			result.add(event);
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		channels.remove(this);
+		inbox.clear();
+	}
+}
@@ -1,14 +1,30 @@
 package org.imixs.workflow.ldap;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Properties;
-import java.util.Vector;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
 import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -18,17 +34,19 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import org.imixs.workflow.ItemCollection;
 
 /**
  * This EJB provides a ldap lookup service for user informations
  * 
- * The bean reads its configuration from the configuration property file located
- * in the glassfish domains config folder
- * (GLASSFISH_DOMAIN/config/imixs-office-ldap.properties).
+ * The bean takes its configuration from the LDAPConfigService. The
+ * configuration is read only once from the imixs.properties and shared by all
+ * bean instances. So a new bean instance does not open a ldap connection.
  * 
  * 
  * 
@@ -51,8 +69,8 @@ import org.imixs.workflow.ItemCollection;
 @LocalBean
 public class LDAPLookupService {
 
-	private boolean enabled = false;
-	private Properties configurationProperties = null;
+	private boolean disableJndi = false;
+	private String jndiName = null;
 
 	private String dnSearchFilter = null;
 	private String groupSearchFilter = null;
@@ -60,263 +78,1072 @@ public class LDAPLookupService {
 	private String[] userAttributesLDAP = null; // ldap attribute names
 	private String[] userAttributesImixs = null; // imixs attributes names if |
 													// defined
+	private String[] userSearchAttributes = null; // ldap attributes to be
+													// returned by a user search
+	private String groupAttribute = null; // optional group attribute (memberOf)
+	private String uidAttribute = null; // ldap attribute holding the user id
+	private String groupMemberAttribute = null; // group attribute holding the
+												// member DNs
+	private boolean nestedGroups = false; // resolve nested groups
+	private boolean matchingRuleInChain = false; // use LDAP_MATCHING_RULE_IN_CHAIN
+	private int nestedGroupDepth = 10; // max depth of the iterative expansion
+	private String inChainSearchFilter = null; // group search filter with the
+												// matching rule in chain
+	private long groupTimeout = 0; // max wait time of the LDAPGroupInterceptor
+	private boolean groupTimeoutEmpty = false; // fallback policy on timeout
+	private String groupNamePraefix = null; // optional group name prefix
+	private String groupPraefixFilter = null; // server side prefix filter
+	private int groupPageSize = 500; // page size of a group search
+	private int bulkChunkSize = 100; // max user ids per search of findUsers()
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@EJB
+	LDAPInvalidationService invalidationService;
 
 	@EJB
 	LDAPCache ldapCache;
 
+	@EJB
+	LDAPContextPool ldapContextPool;
+
+	@EJB
+	LDAPMetrics ldapMetrics;
+
+	@Resource
+	SessionContext ejbCtx;
+
+	// OID of the Active Directory matching rule LDAP_MATCHING_RULE_IN_CHAIN
+	public static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+
+	// page size of the change searches, below the MaxPageSize of an AD (1000)
+	static final int WATCH_PAGE_SIZE = 500;
+
+	// joins concurrent lookups of all bean instances
+	private static final LDAPRequestCoalescer coalescer = new LDAPRequestCoalescer();
+
+	// asynchronous group lookups started by the LDAPGroupInterceptor
+	private static final Map<String, Future<String[]>> groupLookups = new ConcurrentHashMap<String, Future<String[]>>();
 
 	private static Logger logger = Logger.getLogger(LDAPLookupService.class.getName());
 
 	@PostConstruct
 	void init() {
+		// the configuration is parsed once by the LDAPConfigService
+		LDAPConfiguration config = ldapConfigService.getConfiguration();
+		disableJndi = config.disableJndi;
+		searchContext = config.searchContext;
+		dnSearchFilter = config.dnSearchFilter;
+		groupSearchFilter = config.groupSearchFilter;
+		userAttributesLDAP = config.userAttributesLDAP;
+		userAttributesImixs = config.userAttributesImixs;
+		userSearchAttributes = config.userSearchAttributes;
+		groupAttribute = config.groupAttribute;
+		uidAttribute = config.uidAttribute;
+		groupMemberAttribute = config.groupMemberAttribute;
+		nestedGroups = config.nestedGroups;
+		matchingRuleInChain = config.matchingRuleInChain;
+		nestedGroupDepth = config.nestedGroupDepth;
+		inChainSearchFilter = config.inChainSearchFilter;
+		groupTimeout = config.groupTimeout;
+		groupTimeoutEmpty = config.groupTimeoutEmpty;
+		groupNamePraefix = config.groupNamePraefix;
+		groupPraefixFilter = config.groupPraefixFilter;
+		groupPageSize = config.groupPageSize;
+		bulkChunkSize = config.bulkChunkSize;
+		jndiName = config.getJndiName();
+	}
+
+	/**
+	 * Returns true if the directory is available. The connection is verified
+	 * by the LDAPConfigService.
+	 */
+	public boolean isEnabled() {
+		return ldapConfigService.isEnabled();
+	}
+
+	/**
+	 * Returns the max time in milliseconds the LDAPGroupInterceptor waits for
+	 * the groups of a user (ldap.group-timeout). 0 means no timeout.
+	 */
+	public long getGroupTimeout() {
+		return groupTimeout;
+	}
+
+	/**
+	 * Returns the ldap attributes for a given user. If no user was found in
+	 * LDAP the method returns null.
+	 * 
+	 * If the cached entry has expired, the cached attributes are returned and
+	 * the entry is refreshed in the background. Concurrent calls for the same
+	 * uncached user share one single ldap lookup.
+	 * 
+	 * @param aUID
+	 *            - user id
+	 * @return new ItemCollection containing the user attributes or null if no
+	 *         attributes where found.
+	 */
+	public ItemCollection findUser(final String aUID) {
+		LDAPUserRecord user = findUserRecord(aUID);
+		return (user == null) ? null : user.toItemCollection();
+	}
+
+	/**
+	 * Returns the cached immutable record of the ldap attributes for a given
+	 * user. If no user was found in LDAP the method returns null. See
+	 * findUser()
+	 * 
+	 * @param aUID
+	 *            - user id
+	 * @return LDAPUserRecord or null if no attributes where found.
+	 */
+	public LDAPUserRecord findUserRecord(final String aUID) {
+
+		// unknown user ids are cached in the negative cache
+		if (ldapCache.isUnknown(aUID))
+			return null;
+
+		LDAPUserRecord user = ldapCache.getUser(aUID);
+		if (user != null) {
+			if (ldapCache.tryRevalidate(aUID)) {
+				logger.fine("refresh expired user entry: " + aUID);
+				ejbCtx.getBusinessObject(LDAPLookupService.class).refreshUser(aUID);
+			}
+			return user;
+		}
+
+		// concurrent lookups for the same user share one ldap request
+		return coalescer.execute(aUID, new Callable<LDAPUserRecord>() {
+			@Override
+			public LDAPUserRecord call() {
+				// the entry may have been cached by a lookup finished meanwhile
+				LDAPUserRecord user = ldapCache.getUser(aUID);
+				if (user != null) {
+					return user;
+				}
+				user = lookupUser(aUID);
+				// cache user attributes. Unknown users are cached by the
+				// negative cache, failed lookups are not cached
+				if (user != null) {
+					ldapCache.putUser(aUID, user);
+				}
+				return user;
+			}
+		});
+	}
+
+	/**
+	 * Returns the user attributes for a collection of user ids. The user ids
+	 * are resolved in bulk: cached users are taken from the LDAPCache, all
+	 * other users are searched with one OR-combined search filter for each
+	 * chunk of 'ldap.bulk-chunk-size' user ids (default 100). The found users
+	 * are added to the cache, user ids not found in the directory are marked
+	 * as unknown.
+	 * 
+	 * The method is intended for the display of lists with many different
+	 * user names.
+	 * 
+	 * @param uids
+	 *            - collection of user ids
+	 * @return map of the user ids and a new ItemCollection of the user
+	 *         attributes. Unknown users are not contained.
+	 */
+	public Map<String, ItemCollection> findUsers(Collection<String> uids) {
+		Map<String, LDAPUserRecord> records = findUserRecords(uids);
+		Map<String, ItemCollection> result = new LinkedHashMap<String, ItemCollection>();
+		for (Map.Entry<String, LDAPUserRecord> entry : records.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().toItemCollection());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the cached immutable records of the ldap attributes for a
+	 * collection of user ids. See findUsers()
+	 * 
+	 * @param uids
+	 *            - collection of user ids
+	 * @return map of the user ids and the user records. Unknown users are not
+	 *         contained.
+	 */
+	public Map<String, LDAPUserRecord> findUserRecords(Collection<String> uids) {
+		Map<String, LDAPUserRecord> result = new LinkedHashMap<String, LDAPUserRecord>();
+		List<String> misses = new ArrayList<String>();
+		for (String aUID : new LinkedHashSet<String>(uids)) {
+			if (aUID == null || aUID.isEmpty() || ldapCache.isUnknown(aUID))
+				continue;
+			LDAPUserRecord user = ldapCache.getUser(aUID);
+			if (user != null) {
+				if (ldapCache.tryRevalidate(aUID)) {
+					logger.fine("refresh expired user entry: " + aUID);
+					ejbCtx.getBusinessObject(LDAPLookupService.class).refreshUser(aUID);
+				}
+				result.put(aUID, user);
+			} else {
+				misses.add(aUID);
+			}
+		}
+		if (misses.isEmpty() || !isEnabled())
+			return result;
+
+		long lProfiler = System.currentTimeMillis();
+		LdapContext ldapCtx = null;
 		try {
-			logger.finest("init lookup service");
-			// load confiugration entity
+			ldapCtx = getDirContext();
+			if (ldapCtx == null)
+				return result;
+			for (int i = 0; i < misses.size(); i += bulkChunkSize) {
+				List<String> chunk = misses.subList(i, Math.min(i + bulkChunkSize, misses.size()));
+				result.putAll(fetchUsers(chunk, ldapCtx));
+			}
+		} finally {
+			closeDirContext(ldapCtx);
+		}
+		logger.fine("findUsers: " + misses.size() + " of " + uids.size() + " users searched in "
+				+ (System.currentTimeMillis() - lProfiler) + " ms");
+		return result;
+	}
 
-			// Disabled because of confglict with LDAPGroupInterceptor
-			// configurationProperties = propertyService.getProperties();
-			configurationProperties = new Properties();
-			try {
-				configurationProperties.load(
-						Thread.currentThread().getContextClassLoader().getResource("imixs.properties").openStream());
-			} catch (Exception e) {
-				logger.warning("LDAPLookupService unable to find imixs.properties in current classpath");
-				e.printStackTrace();
+	/**
+	 * Returns a string array containing all group names for a given UID. If no
+	 * groups exist or the uid was not found the method returns an empty string
+	 * array!.
+	 * 
+	 * If the cached group list has expired, the cached list is returned and
+	 * the list is refreshed in the background. Concurrent calls for the same
+	 * uncached user share one single ldap lookup.
+	 * 
+	 * @param aUID
+	 *            - user unique id
+	 * @return string array of group names
+	 */
+	public String[] findGroups(final String aUID) {
+		String[] groups = findCachedGroups(aUID);
+		if (groups != null) {
+			return groups;
+		}
+
+		// concurrent lookups for the same user share one ldap request
+		return coalescer.execute(aUID + "-GROUPS", new Callable<String[]>() {
+			@Override
+			public String[] call() {
+				// the group list may have been cached by a lookup finished
+				// meanwhile
+				String[] groups = ldapCache.getGroups(aUID);
+				if (groups != null) {
+					return groups;
+				}
+				groups = lookupGroups(aUID);
+				// failed lookups and unknown users are not cached
+				if (groups == null)
+					return new String[0];
+				if (ldapCache.isUnknown(aUID))
+					return groups;
+
+				// cache Group list
+				ldapCache.putGroups(aUID, groups);
+				return groups;
 			}
+		});
+	}
+
+	/**
+	 * Returns the cached group list of a user or null if the group list is not
+	 * cached. The method does not send a ldap request. If the cached group
+	 * list has expired, the list is refreshed in the background.
+	 * 
+	 * @param aUID
+	 *            - user unique id
+	 * @return string array of group names or null
+	 */
+	public String[] findCachedGroups(String aUID) {
+		// unknown user ids are cached in the negative cache
+		if (ldapCache.isUnknown(aUID))
+			return new String[0];
+
+		String[] groups = ldapCache.getGroups(aUID);
+		if (groups != null && ldapCache.tryRevalidate(aUID + "-GROUPS")) {
+			logger.fine("refresh expired group list for: " + aUID);
+			ejbCtx.getBusinessObject(LDAPLookupService.class).refreshGroups(aUID);
+		}
+		return groups;
+	}
 
-			// skip if no configuration
-			if (configurationProperties == null)
-				return;
-			
-			// initialize ldap configuration....
-			logger.fine("read LDAP configuration...");
-			searchContext = configurationProperties.getProperty("ldap.search-context", "");
-			logger.fine("ldap.search-context=" +searchContext );
-			dnSearchFilter = configurationProperties.getProperty("ldap.dn-search-filter", "(uid=%u)");
-			logger.fine("ldap.dn-search-filter=" +dnSearchFilter );
-			groupSearchFilter = configurationProperties.getProperty("ldap.group-search-filter", "(member=%d)");
-			logger.fine("ldap.group-search-filter=" +groupSearchFilter );
-			// read user attributes
-			String sAttributes = configurationProperties.getProperty("ldap.user-attributes", "uid,SN,CN,mail");
-			logger.fine("ldap.user-attributes=" +sAttributes );
-			
-			
-			String[] userAttributeList = sAttributes.split(",");
-
-			// now we split up the ldap attribute name form the imixs name if a
-			// | is contained
-			userAttributesLDAP = new String[userAttributeList.length];
-			userAttributesImixs = new String[userAttributeList.length];
-
-			// the userAttributesLDAP hold only the left part of a attribute
-			// name separated with a |
-			// e.g. : mail|txtEmail
-			for (int i = 0; i < userAttributeList.length; i++) {
-				String aAttr = userAttributeList[i].trim();
-				int sPos = aAttr.indexOf('|');
-				if (sPos > 0) {
-					userAttributesLDAP[i] = aAttr.substring(0, sPos ).trim();
-					userAttributesImixs[i] = aAttr.substring(sPos + 1).trim();
-				} else {
-					userAttributesLDAP[i] = aAttr;
-					userAttributesImixs[i] = aAttr;
+	/**
+	 * Asynchronous variant of the method findGroups(). The caller can wait for
+	 * the result with a timeout. If the caller stops waiting, the lookup is
+	 * finished in the background and the result is cached.
+	 * 
+	 * @param aUID
+	 *            - user unique id
+	 * @return future of the string array of group names
+	 */
+	@Asynchronous
+	public Future<String[]> findGroupsAsync(String aUID) {
+		try {
+			return new AsyncResult<String[]>(findGroups(aUID));
+		} finally {
+			groupLookups.remove(aUID);
+		}
+	}
+
+	/**
+	 * Starts the method findGroupsAsync() for a user or returns the future of
+	 * the lookup already running for this user. So a directory not answering
+	 * blocks at most one asynchronous call per user and callers exceeding the
+	 * ldap.group-timeout do not start further lookups.
+	 * 
+	 * @param aUID
+	 *            - user unique id
+	 * @return future of the string array of group names
+	 */
+	public Future<String[]> startGroupLookup(String aUID) {
+		synchronized (groupLookups) {
+			Future<String[]> future = groupLookups.get(aUID);
+			if (future == null || future.isDone()) {
+				future = ejbCtx.getBusinessObject(LDAPLookupService.class).findGroupsAsync(aUID);
+				groupLookups.put(aUID, future);
+			}
+			return future;
+		}
+	}
+
+	/**
+	 * Removes a finished lookup started by the method startGroupLookup()
+	 * 
+	 * @param aUID
+	 *            - user unique id
+	 * @param future
+	 *            - future returned by startGroupLookup()
+	 */
+	public void endGroupLookup(String aUID, Future<String[]> future) {
+		if (future.isDone())
+			groupLookups.remove(aUID, future);
+	}
+
+	/**
+	 * Returns the group list to be used if the group lookup of a user exceeds
+	 * the ldap.group-timeout. Depending on the ldap.group-timeout-policy the
+	 * method returns the last known group list of the user (stale) or an
+	 * empty array (empty). If no group list of the user is known (e.g. the
+	 * first login after a restart), the method also returns an empty array
+	 * with the policy 'stale'.
+	 * 
+	 * @param aUID
+	 *            - user unique id
+	 * @return string array of group names
+	 */
+	public String[] getFallbackGroups(String aUID) {
+		if (!groupTimeoutEmpty) {
+			String[] groups = ldapCache.getLastKnownGroups(aUID);
+			if (groups != null) {
+				return groups;
+			}
+		}
+		return new String[0];
+	}
+
+	/**
+	 * Reloads the ldap attributes of a user and replaces the cached entry. The
+	 * method is called asynchronously if a cached entry has expired. If the
+	 * lookup fails, the stale entry is kept and the next request triggers a
+	 * new refresh.
+	 * 
+	 * @param aUID
+	 *            - user id
+	 */
+	@Asynchronous
+	public void refreshUser(String aUID) {
+		boolean replaced = false;
+		try {
+			LDAPUserRecord user = lookupUser(aUID);
+			if (user != null) {
+				ldapCache.putUser(aUID, user);
+				replaced = true;
+			}
+		} finally {
+			if (!replaced)
+				ldapCache.endRevalidate(aUID);
+		}
+	}
+
+	/**
+	 * Reloads the group list of a user and replaces the cached entry. The
+	 * method is called asynchronously if a cached group list has expired. If
+	 * the lookup fails, the stale group list is kept and the next request
+	 * triggers a new refresh.
+	 * 
+	 * @param aUID
+	 *            - user id
+	 */
+	@Asynchronous
+	public void refreshGroups(String aUID) {
+		boolean replaced = false;
+		try {
+			String[] groups = lookupGroups(aUID);
+			if (groups != null && !ldapCache.isUnknown(aUID)) {
+				ldapCache.putGroups(aUID, groups);
+				replaced = true;
+			}
+		} finally {
+			if (!replaced)
+				ldapCache.endRevalidate(aUID + "-GROUPS");
+		}
+	}
+
+	/**
+	 * This method loads all user entries of the search context into the
+	 * LDAPCache. The user entries are read by a paged search to avoid server
+	 * side size limits. Between two pages the method pauses for the given
+	 * page delay, so the directory is not flooded by the preload.
+	 * 
+	 * If the groups are read from the user entry ('ldap.group-attribute') the
+	 * group lists are cached too. Otherwise the groups are searched for each
+	 * user only if the parameter preloadGroups is true.
+	 * 
+	 * The preload stops if the cache size is reached.
+	 * 
+	 * @param pageSize
+	 *            - number of entries per page
+	 * @param pageDelay
+	 *            - pause between two pages in milliseconds
+	 * @param preloadGroups
+	 *            - true if groups should be searched for each user
+	 * @return number of users loaded into the cache
+	 */
+	public int preloadCache(int pageSize, long pageDelay, boolean preloadGroups) {
+		if (!isEnabled())
+			return 0;
+		long lProfiler = System.currentTimeMillis();
+		int maxUsers = ldapCache.getCapacity();
+		if (groupAttribute != null || preloadGroups)
+			maxUsers = maxUsers / 2;
+
+		List<String> uids = new ArrayList<String>();
+		Map<String, List<String>> groupDNs = new HashMap<String, List<String>>();
+		LdapContext ldapCtx = null;
+		NamingEnumeration<SearchResult> answer = null;
+		try {
+			ldapCtx = getDirContext();
+			if (ldapCtx == null)
+				return 0;
+
+			SearchControls ctls = new SearchControls();
+			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			ctls.setReturningAttributes(userSearchAttributes);
+			String searchFilter = dnSearchFilter.replace("%u", "*");
+			logger.fine("preloadCache: searchFilter=" + searchFilter);
+
+			byte[] cookie = null;
+			ldapCtx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, Control.CRITICAL) });
+			do {
+				answer = ldapCtx.search(searchContext, searchFilter, ctls);
+				while (answer.hasMore() && uids.size() < maxUsers) {
+					SearchResult entry = answer.next();
+					Attribute uid = entry.getAttributes().get(uidAttribute);
+					if (uid == null || uid.get() == null)
+						continue;
+					String sUID = uid.get().toString();
+					UserEntry userEntry = readUserEntry(entry);
+					ldapCache.putUser(sUID, userEntry.user);
+					ldapCache.putDN(sUID, userEntry.dn);
+					if (userEntry.groupDNs != null)
+						groupDNs.put(sUID, userEntry.groupDNs);
+					uids.add(sUID);
+				}
+				answer.close();
+				answer = null;
+
+				if (uids.size() >= maxUsers) {
+					logger.warning("preloadCache stopped after " + uids.size()
+							+ " entries - ldap.cache-size is too small to hold all entries");
+					break;
+				}
+				cookie = getPagedResultsCookie(ldapCtx);
+				if (cookie != null) {
+					pause(pageDelay);
+					ldapCtx.setRequestControls(
+							new Control[] { new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
 				}
-				// debug info about the resolved attribute and item names
-				logger.finest("attributesLDAP-" + i+"=" +userAttributesLDAP[i] );
-				logger.finest("attributesImixs-" + i+"=" +userAttributesImixs[i] );
+			} while (cookie != null);
+			ldapCtx.setRequestControls(null);
+
+			// group names read from the user entries. Nested groups are
+			// resolved after the paged search is finished
+			for (Map.Entry<String, List<String>> entry : groupDNs.entrySet()) {
+				ldapCache.putGroups(entry.getKey(), resolveGroups(entry.getValue(), ldapCtx));
 			}
 
-			// test if ldap is enabled...
-			logger.fine("Verifing LDAP connection...");
-			enabled = false;
-			LdapContext ldapCtx = null;
-			try {
-				ldapCtx = getDirContext();
-				enabled = (ldapCtx != null);
-			} finally {
+			// in the search mode the groups are searched for each user
+			if (preloadGroups && groupAttribute == null) {
+				for (int i = 0; i < uids.size(); i++) {
+					String[] groups = fetchGroups(uids.get(i), ldapCtx);
+					if (groups != null)
+						ldapCache.putGroups(uids.get(i), groups);
+					if ((i + 1) % pageSize == 0)
+						pause(pageDelay);
+				}
+			}
+
+		} catch (NamingException | IOException e) {
+			logger.warning("preloadCache failed: " + e.getMessage());
+			if (logger.isLoggable(java.util.logging.Level.FINE))
+				e.printStackTrace();
+		} finally {
+			if (answer != null)
 				try {
-					if (ldapCtx != null) {
-						ldapCtx.close();
-						ldapCtx = null;
-					}
+					answer.close();
 				} catch (NamingException e) {
 					e.printStackTrace();
 				}
+			resetRequestControls(ldapCtx);
+			closeDirContext(ldapCtx);
+		}
+		logger.info("LDAP preload: " + uids.size() + " users loaded in " + (System.currentTimeMillis() - lProfiler)
+				+ " ms");
+		return uids.size();
+	}
+
+	/**
+	 * This method reads the given attributes of all user entries of the search
+	 * context by a paged search. Between two pages the method pauses for the
+	 * given page delay. The result is used to build the LDAPUserIndex.
+	 * 
+	 * Each row of the result contains the user id followed by the first value
+	 * of each attribute (or null if the attribute is not set).
+	 * 
+	 * @param attributes
+	 *            - ldap attribute names
+	 * @param pageSize
+	 *            - number of entries per page
+	 * @param pageDelay
+	 *            - pause between two pages in milliseconds
+	 * @return list of rows or null if the search failed
+	 */
+	public List<String[]> scanUsers(String[] attributes, int pageSize, long pageDelay) {
+		if (!isEnabled())
+			return null;
+		List<String[]> result = new ArrayList<String[]>();
+		LdapContext ldapCtx = null;
+		NamingEnumeration<SearchResult> answer = null;
+		try {
+			ldapCtx = getDirContext();
+			if (ldapCtx == null)
+				return null;
+
+			SearchControls ctls = new SearchControls();
+			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			ctls.setReturningAttributes(getRowAttributes(attributes));
+			String searchFilter = dnSearchFilter.replace("%u", "*");
+			logger.fine("scanUsers: searchFilter=" + searchFilter);
+
+			byte[] cookie = null;
+			ldapCtx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, Control.CRITICAL) });
+			do {
+				answer = ldapCtx.search(searchContext, searchFilter, ctls);
+				while (answer.hasMore()) {
+					String[] row = readRow(answer.next(), attributes);
+					if (row != null)
+						result.add(row);
+				}
+				answer.close();
+				answer = null;
+
+				cookie = getPagedResultsCookie(ldapCtx);
+				if (cookie != null) {
+					pause(pageDelay);
+					ldapCtx.setRequestControls(
+							new Control[] { new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+				}
+			} while (cookie != null);
+		} catch (NamingException | IOException e) {
+			logger.warning("scanUsers failed: " + e.getMessage());
+			if (logger.isLoggable(java.util.logging.Level.FINE))
+				e.printStackTrace();
+			return null;
+		} finally {
+			if (answer != null)
+				try {
+					answer.close();
+				} catch (NamingException e) {
+					e.printStackTrace();
+				}
+			resetRequestControls(ldapCtx);
+			closeDirContext(ldapCtx);
+		}
+		return result;
+	}
+
+	/**
+	 * This method reads the given attributes for a collection of user ids.
+	 * The users are searched in chunks of 'ldap.bulk-chunk-size' user ids. The
+	 * result is not cached. See scanUsers()
+	 * 
+	 * @param uids
+	 *            - collection of user ids
+	 * @param attributes
+	 *            - ldap attribute names
+	 * @return map of the found user ids (lower case) and their rows or null if
+	 *         the search failed
+	 */
+	public Map<String, String[]> readUsers(Collection<String> uids, String[] attributes) {
+		if (!isEnabled())
+			return null;
+		List<String> uidList = new ArrayList<String>(new LinkedHashSet<String>(uids));
+		Map<String, String[]> result = new HashMap<String, String[]>();
+		LdapContext ldapCtx = null;
+		NamingEnumeration<SearchResult> answer = null;
+		try {
+			ldapCtx = getDirContext();
+			if (ldapCtx == null)
+				return null;
+			SearchControls ctls = new SearchControls();
+			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			ctls.setReturningAttributes(getRowAttributes(attributes));
+			for (int i = 0; i < uidList.size(); i += bulkChunkSize) {
+				StringBuilder searchFilter = new StringBuilder("(|");
+				for (String aUID : uidList.subList(i, Math.min(i + bulkChunkSize, uidList.size()))) {
+					searchFilter.append(LDAPFilter.replace(dnSearchFilter, "%u", aUID));
+				}
+				searchFilter.append(")");
+				logger.finest("readUsers: searchFilter=" + searchFilter);
+				answer = ldapCtx.search(searchContext, searchFilter.toString(), ctls);
+				while (answer.hasMore()) {
+					String[] row = readRow(answer.next(), attributes);
+					if (row != null)
+						result.put(row[0].toLowerCase(), row);
+				}
+				answer.close();
+				answer = null;
 			}
+		} catch (NamingException e) {
+			logger.warning("readUsers failed: " + e.getMessage());
+			if (logger.isLoggable(java.util.logging.Level.FINE))
+				e.printStackTrace();
+			return null;
+		} finally {
+			if (answer != null)
+				try {
+					answer.close();
+				} catch (NamingException e) {
+					e.printStackTrace();
+				}
+			closeDirContext(ldapCtx);
+		}
+		return result;
+	}
 
-			if (enabled) {
-				logger.info("LDAP connection: OK");
-			} else {
-				logger.warning("LDAP connection: FAILED");
+	/**
+	 * Returns the server which should be polled for changes of the given
+	 * watch attribute. For 'uSNChanged' this is the server currently preferred
+	 * by the LDAPContextPool, for a timestamp attribute any server can be
+	 * polled and the method returns null.
+	 * 
+	 * @param watchAttribute
+	 * @return server url or null
+	 */
+	public String getWatchServer(String watchAttribute) {
+		if (!disableJndi || !"uSNChanged".equalsIgnoreCase(watchAttribute))
+			return null;
+		return ldapContextPool.getPreferredServer();
+	}
+
+	/**
+	 * Returns the current change mark of the directory. For the watch
+	 * attribute 'uSNChanged' the mark is the 'highestCommittedUSN' of the root
+	 * DSE. For a timestamp attribute (e.g. 'modifyTimestamp') the mark is the
+	 * current time in the LDAP generalized time format, reduced by the given
+	 * clock skew.
+	 * 
+	 * The 'uSNChanged' is local to each directory server. So the mark must be
+	 * read from the same server which is polled by the method pollChanges().
+	 * 
+	 * @param watchAttribute
+	 *            - uSNChanged or modifyTimestamp
+	 * @param clockSkew
+	 *            - tolerated time difference to the directory server in
+	 *            milliseconds
+	 * @param serverUrl
+	 *            - server returned by getWatchServer() or null
+	 * @return change mark or null if the mark could not be read
+	 */
+	public String getChangeMark(String watchAttribute, long clockSkew, String serverUrl) {
+		if (!"uSNChanged".equalsIgnoreCase(watchAttribute)) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return format.format(new Date(System.currentTimeMillis() - clockSkew));
+		}
+		LdapContext ldapCtx = null;
+		try {
+			ldapCtx = getDirContext(serverUrl);
+			if (ldapCtx == null)
+				return null;
+			Attribute usn = ldapCtx.getAttributes("", new String[] { "highestCommittedUSN" })
+					.get("highestCommittedUSN");
+			return (usn == null) ? null : usn.get().toString();
+		} catch (NamingException e) {
+			logger.warning("Unable to read highestCommittedUSN: " + e.getMessage());
+			return null;
+		} finally {
+			closeDirContext(ldapCtx);
+		}
+	}
+
+	/**
+	 * This method searches all user and group entries changed since the given
+	 * change mark and removes the affected users from the LDAPCache.
+	 * 
+	 * For a changed user entry the user attributes, groups and the DN are
+	 * removed. For a changed group entry all cached group lists containing
+	 * the group and the group lists of all current members are removed.
+	 * If nested groups are resolved, the group graph and all group lists are
+	 * removed. The entries are removed by the LDAPInvalidationService, so the
+	 * caches of the other cluster nodes are updated too.
+	 * 
+	 * The search includes entries with a change mark equal to the given mark.
+	 * To not invalidate these entries again with each poll, the DNs of all
+	 * entries with the highest mark are stored in the set processedEntries.
+	 * The set is updated by this method and must be passed to the next call.
+	 * 
+	 * The searches are paged. So a bulk change exceeding the size limit of the
+	 * server (e.g. the MaxPageSize of an Active Directory) is read completely.
+	 * 
+	 * @param watchAttribute
+	 *            - uSNChanged or modifyTimestamp
+	 * @param groupFilter
+	 *            - filter to select group entries
+	 * @param since
+	 *            - change mark of the last poll
+	 * @param processedEntries
+	 *            - DNs already processed for the change mark 'since'
+	 * @param serverUrl
+	 *            - server the change mark was read from or null
+	 * @return the new change mark
+	 */
+	public String pollChanges(String watchAttribute, String groupFilter, String since,
+			Set<String> processedEntries, String serverUrl) {
+		if (!isEnabled() || since == null)
+			return since;
+
+		String mark = since;
+		Set<String> markEntries = new HashSet<String>(processedEntries);
+		int users = 0, groups = 0, changedGroups = 0;
+		String changeFilter = "(" + watchAttribute + ">=" + since + ")";
+		LdapContext ldapCtx = null;
+		NamingEnumeration<SearchResult> answer = null;
+		try {
+			ldapCtx = getDirContext(serverUrl);
+			if (ldapCtx == null)
+				return since;
+			SearchControls ctls = new SearchControls();
+			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+
+			// changed users....
+			ctls.setReturningAttributes(new String[] { uidAttribute, watchAttribute });
+			String searchFilter = "(&" + dnSearchFilter.replace("%u", "*") + changeFilter + ")";
+			logger.finest("pollChanges: searchFilter=" + searchFilter);
+			byte[] cookie = null;
+			do {
+				ldapCtx.setRequestControls(
+						new Control[] { new PagedResultsControl(WATCH_PAGE_SIZE, cookie, Control.NONCRITICAL) });
+				answer = ldapCtx.search(searchContext, searchFilter, ctls);
+				while (answer.hasMore()) {
+					SearchResult entry = answer.next();
+					String entryMark = getAttributeValue(entry, watchAttribute);
+					if (isProcessed(entry, entryMark, since, processedEntries))
+						continue;
+					String uid = getAttributeValue(entry, uidAttribute);
+					if (uid != null) {
+						logger.fine("user entry changed: " + uid);
+						invalidationService.invalidateUser(uid);
+						users++;
+					}
+					mark = updateMark(entry, entryMark, mark, markEntries);
+				}
+				answer.close();
+				answer = null;
+				cookie = getPagedResultsCookie(ldapCtx);
+			} while (cookie != null);
+
+			// changed groups...
+			Map<String, String> dnIndex = null;
+			ctls.setReturningAttributes(new String[] { groupMemberAttribute, watchAttribute });
+			searchFilter = "(&" + groupFilter + changeFilter + ")";
+			logger.finest("pollChanges: searchFilter=" + searchFilter);
+			do {
+				ldapCtx.setRequestControls(
+						new Control[] { new PagedResultsControl(WATCH_PAGE_SIZE, cookie, Control.NONCRITICAL) });
+				answer = ldapCtx.search(searchContext, searchFilter, ctls);
+				while (answer.hasMore()) {
+					SearchResult entry = answer.next();
+					String entryMark = getAttributeValue(entry, watchAttribute);
+					if (isProcessed(entry, entryMark, since, processedEntries))
+						continue;
+					String sGroupName = getGroupName(entry.getName());
+					logger.fine("group entry changed: " + sGroupName);
+					// former members
+					groups += invalidationService.invalidateGroup(sGroupName);
+					// current members
+					Attribute members = entry.getAttributes().get(groupMemberAttribute);
+					if (members != null) {
+						if (dnIndex == null)
+							dnIndex = ldapCache.getDNIndex();
+						NamingEnumeration<?> values = members.getAll();
+						while (values.hasMore()) {
+							String uid = dnIndex.get(values.next().toString().toLowerCase());
+							if (uid != null) {
+								invalidationService.invalidateGroups(uid);
+								groups++;
+							}
+						}
+					}
+					mark = updateMark(entry, entryMark, mark, markEntries);
+					changedGroups++;
+				}
+				answer.close();
+				answer = null;
+				cookie = getPagedResultsCookie(ldapCtx);
+			} while (cookie != null);
+
+			// with nested groups a changed group can affect the group lists of
+			// all members of its subgroups
+			if (nestedGroups && changedGroups > 0) {
+				groups += invalidationService.invalidateGroupGraph();
 			}
 
-		} catch (Exception e) {
-			logger.severe("Unable to initalize LDAPGroupLookupService");
-			e.printStackTrace();
+		} catch (NamingException | IOException e) {
+			logger.warning("pollChanges failed: " + e.getMessage());
+			if (logger.isLoggable(java.util.logging.Level.FINE))
+				e.printStackTrace();
+			return since;
+		} finally {
+			if (answer != null)
+				try {
+					answer.close();
+				} catch (NamingException e) {
+					e.printStackTrace();
+				}
+			resetRequestControls(ldapCtx);
+			closeDirContext(ldapCtx);
+		}
+
+		if (users > 0 || groups > 0) {
+			logger.info("LDAP changes since " + since + ": " + users + " users and " + groups
+					+ " group lists invalidated");
+		}
+		processedEntries.clear();
+		processedEntries.addAll(markEntries);
+		return mark;
+	}
+
+	/**
+	 * returns true if the entry was already processed by the last poll
+	 */
+	private boolean isProcessed(SearchResult entry, String entryMark, String since, Set<String> processedEntries) {
+		return entryMark != null && compareChangeMarks(entryMark, since) == 0
+				&& processedEntries.contains(entry.getNameInNamespace());
+	}
+
+	/**
+	 * Returns the new highest change mark and collects the DNs of all entries
+	 * with this mark
+	 */
+	private String updateMark(SearchResult entry, String entryMark, String mark, Set<String> markEntries) {
+		if (entryMark == null)
+			return mark;
+		int compare = compareChangeMarks(entryMark, mark);
+		if (compare > 0) {
+			markEntries.clear();
+			mark = entryMark;
+		}
+		if (compare >= 0) {
+			markEntries.add(entry.getNameInNamespace());
+		}
+		return mark;
+	}
+
+	/**
+	 * Compares two change marks. Numeric marks (USN) are compared as numbers,
+	 * timestamps are compared as strings.
+	 */
+	private int compareChangeMarks(String mark1, String mark2) {
+		try {
+			return Long.compare(Long.parseLong(mark1), Long.parseLong(mark2));
+		} catch (NumberFormatException e) {
+			return mark1.compareTo(mark2);
 		}
 	}
 
-	public boolean isEnabled() {
-		return enabled;
+	/**
+	 * Returns the first value of an attribute of a search result or null if
+	 * the attribute is not set.
+	 */
+	private String getAttributeValue(SearchResult entry, String attributeName) throws NamingException {
+		Attribute attribute = entry.getAttributes().get(attributeName);
+		if (attribute == null || attribute.get() == null)
+			return null;
+		return attribute.get().toString();
 	}
 
 	/**
-	 * Returns the ldap attributes for a given user. If no user was found in
-	 * LDAP the method returns null.
-	 * 
-	 * @param aUID
-	 *            - user id
-	 * @return ItemCollection containing the user attributes or null if no
-	 *         attributes where found.
+	 * Returns the ldap attributes to be read for a row of scanUsers()
 	 */
-	public ItemCollection findUser(String aUID) {
+	private String[] getRowAttributes(String[] attributes) {
+		String[] result = new String[attributes.length + 1];
+		result[0] = uidAttribute;
+		System.arraycopy(attributes, 0, result, 1, attributes.length);
+		return result;
+	}
 
-		// also null objects can be returned here (if no ldap attributes exist)
-		if (ldapCache.contains(aUID))
-			return (ItemCollection) ldapCache.get(aUID);
+	/**
+	 * Returns the user id and the first value of each attribute of a search
+	 * result or null if the user id is not set.
+	 */
+	private String[] readRow(SearchResult entry, String[] attributes) throws NamingException {
+		String uid = getAttributeValue(entry, uidAttribute);
+		if (uid == null)
+			return null;
+		String[] row = new String[attributes.length + 1];
+		row[0] = uid;
+		for (int i = 0; i < attributes.length; i++) {
+			row[i + 1] = getAttributeValue(entry, attributes[i]);
+		}
+		return row;
+	}
 
-		// start lookup
+	/**
+	 * Opens a ldap context and fetches the attributes for a given user.
+	 * 
+	 * @param aUID
+	 * @return user attributes or null if the lookup failed
+	 */
+	private LDAPUserRecord lookupUser(String aUID) {
 		LdapContext ldapCtx = null;
 		try {
 			logger.fine("find user: " + aUID);
 			ldapCtx = getDirContext();
-			ItemCollection user = fetchUser(aUID, ldapCtx);
-			// cache user attributes (also null will be set if no entry was
-			// found!)
-			ldapCache.put(aUID, user);
-			return user;
-
+			if (ldapCtx == null)
+				return null;
+			return fetchUser(aUID, ldapCtx);
 		} finally {
-			if (ldapCtx != null)
-				try {
-					ldapCtx.close();
-					ldapCtx = null;
-				} catch (NamingException e) {
-					e.printStackTrace();
-				}
-
+			closeDirContext(ldapCtx);
 		}
-
 	}
 
 	/**
-	 * Returns a string array containing all group names for a given UID. If no
-	 * groups exist or the uid was not found the method returns an empty string
-	 * array!.
-	 * 
+	 * Opens a ldap context and fetches the group names for a given user.
 	 * 
 	 * @param aUID
-	 *            - user unique id
-	 * @return string array of group names
+	 * @return group names or null if the lookup failed
 	 */
-	public String[] findGroups(String aUID) {
-		// test cache...
-		String[] groups = (String[]) ldapCache.get(aUID + "-GROUPS");
-		if (groups != null) {
-			return groups;
-		}
-
+	private String[] lookupGroups(String aUID) {
 		LdapContext ldapCtx = null;
 		try {
 			logger.fine("find user groups for: " + aUID);
 			ldapCtx = getDirContext();
-			groups = fetchGroups(aUID, ldapCtx);
-			if (groups == null)
-				groups = new String[0];
-			if (logger.isLoggable(java.util.logging.Level.FINE)) {
+			if (ldapCtx == null)
+				return null;
+			String[] groups = fetchGroups(aUID, ldapCtx);
+			if (groups != null && logger.isLoggable(java.util.logging.Level.FINE)) {
 				String groupList = "";
 				for (String aGroup : groups)
 					groupList += "'" + aGroup + "' ";
 				logger.fine("groups found for " + aUID + "=" + groupList);
 			}
-
-			// cache Group list
-			ldapCache.put(aUID + "-GROUPS", groups);
-
 			return groups;
-
 		} finally {
-			if (ldapCtx != null)
-				try {
-					ldapCtx.close();
-					ldapCtx = null;
-				} catch (NamingException e) {
-					e.printStackTrace();
-				}
+			closeDirContext(ldapCtx);
 		}
-
 	}
 
 	/**
-	 * returns the default attributes for a given user in an ItemCollection. If
-	 * ldap service is disabled or the user was not found then the method
-	 * returns null.
+	 * returns the default attributes for a given user. If ldap service is
+	 * disabled or the user was not found then the method returns null.
 	 * 
 	 * @param aUID
 	 *            - user id
-	 * @return ItemCollection - containing the user attributes or null if no
+	 * @return LDAPUserRecord - containing the user attributes or null if no
 	 *         entry was found
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private ItemCollection fetchUser(String aUID, LdapContext ldapCtx) {
-		ItemCollection user = null;
+	private LDAPUserRecord fetchUser(String aUID, LdapContext ldapCtx) {
+		UserEntry userEntry = fetchUserEntry(aUID, ldapCtx);
+		return (userEntry == null) ? null : userEntry.user;
+	}
+
+	/**
+	 * Searches the entry for a given user and returns the user attributes
+	 * together with the resolved DN. If the property 'ldap.group-attribute' is
+	 * defined, the group names are read from the same entry.
+	 * 
+	 * The resolved DN is stored in the DN cache, and the group names are stored
+	 * in the group cache, so that a following group lookup does not need to
+	 * search the user entry again.
+	 * 
+	 * If no entry was found, the user id is marked as unknown in the negative
+	 * cache and the method returns an UserEntry without user attributes and
+	 * DN.
+	 * 
+	 * @param aUID
+	 *            - user id
+	 * @return UserEntry or null if the search failed
+	 */
+	private UserEntry fetchUserEntry(String aUID, LdapContext ldapCtx) {
+		LDAPUserRecord user = null;
+		List<String> groupDNs = null;
+		String[] groups = null;
 		String sDN = null;
-		if (!enabled) {
+		if (!isEnabled()) {
 			return null;
 		}
 
 		NamingEnumeration<SearchResult> answer = null;
 		try {
-			user = new ItemCollection();
 			SearchControls ctls = new SearchControls();
 			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-			ctls.setReturningAttributes(userAttributesLDAP);
+			ctls.setReturningAttributes(userSearchAttributes);
 
-			String searchFilter = dnSearchFilter.replace("%u", aUID);
+			String searchFilter = LDAPFilter.replace(dnSearchFilter, "%u", aUID);
 			logger.fine("fetchUser: searchContext=" + searchContext);
 			logger.fine("fetchUser: searchFilter=" + searchFilter);
+			long lStart = System.nanoTime();
 			answer = ldapCtx.search(searchContext, searchFilter, ctls);
 			if (answer == null)
 				return null;
 
 			if (answer.hasMore()) {
-				SearchResult entry = (SearchResult) answer.next();
-				sDN = entry.getName();
-				logger.finest("DN= " + sDN);
-
-				Attributes attributes = entry.getAttributes();
-				// fetch all attributes
-				for (int i = 0; i < userAttributesLDAP.length; i++) {
-
-					Attribute atr = attributes.get(userAttributesLDAP[i]);
-					
-					logger.fine("...fetch attribute: '" +userAttributesLDAP[i] +"' = "+ atr);	
-					if (atr != null) {
-						NamingEnumeration<?> values = atr.getAll();
-
-						Vector valueList = new Vector();
-						while (values.hasMore()) {
-							valueList.add(values.next());
-						}
-						if (valueList.size() > 0)
-							user.replaceItemValue(userAttributesImixs[i], valueList);
-					}
-				}				
+				UserEntry userEntry = readUserEntry((SearchResult) answer.next());
+				user = userEntry.user;
+				sDN = userEntry.dn;
+				groupDNs = userEntry.groupDNs;
 			}
+			answer.close();
+			answer = null;
+			ldapMetrics.recordDnSearch(System.nanoTime() - lStart);
+			ldapContextPool.recordLatency(ldapCtx, System.nanoTime() - lStart);
 
 			if (sDN == null) {
-				// empty user entry
-				sDN = aUID;
-				user.replaceItemValue("dn", sDN);
+				// unknown user - mark the uid in the negative cache
+				logger.fine("user not found: " + aUID);
+				ldapCache.putUnknown(aUID);
+				return new UserEntry(null, null, null, new String[0]);
+			}
+
+			ldapCache.putDN(aUID, sDN);
+			if (groupDNs != null) {
+				groups = resolveGroups(groupDNs, ldapCtx);
+				ldapCache.putGroups(aUID, groups);
 			}
 
 		} catch (NamingException e) {
 			// return null
-			user = null;
+			ldapMetrics.countError();
+			ldapContextPool.recordFailure(ldapCtx, e);
 			logger.warning("Unable to fetch DN for: " + aUID);
 			logger.warning(e.getMessage());
 			if (logger.isLoggable(java.util.logging.Level.FINEST))
 				e.printStackTrace();
+			return null;
 
 		} finally {
 			if (answer != null)
@@ -327,12 +1154,150 @@ public class LDAPLookupService {
 					e.printStackTrace();
 				}
 		}
-		return user;
+		return new UserEntry(user, sDN, groupDNs, groups);
+	}
+
+	/**
+	 * Searches the entries of a list of user ids with one search. The search
+	 * filter is an OR-combination of the 'ldap.dn-search-filter' for each user
+	 * id. The found users are stored in the cache together with their DN and
+	 * groups (if read from the 'ldap.group-attribute'). User ids not found are
+	 * marked as unknown. If the search fails, nothing is cached.
+	 * 
+	 * @param uids
+	 *            - user ids not contained in the cache
+	 * @return map of the found user ids and their attributes
+	 */
+	private Map<String, LDAPUserRecord> fetchUsers(List<String> uids, LdapContext ldapCtx) {
+		Map<String, LDAPUserRecord> result = new HashMap<String, LDAPUserRecord>();
+		// ldap compares user ids case insensitive
+		Map<String, String> requestedUIDs = new HashMap<String, String>();
+		StringBuilder searchFilter = new StringBuilder("(|");
+		for (String aUID : uids) {
+			requestedUIDs.put(aUID.toLowerCase(), aUID);
+			searchFilter.append(LDAPFilter.replace(dnSearchFilter, "%u", aUID));
+		}
+		searchFilter.append(")");
+
+		NamingEnumeration<SearchResult> answer = null;
+		try {
+			SearchControls ctls = new SearchControls();
+			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			ctls.setReturningAttributes(userSearchAttributes);
+			logger.finest("fetchUsers: searchFilter=" + searchFilter);
+			long lStart = System.nanoTime();
+			answer = ldapCtx.search(searchContext, searchFilter.toString(), ctls);
+			List<UserEntry> userEntries = new ArrayList<UserEntry>();
+			List<String> userIds = new ArrayList<String>();
+			while (answer.hasMore()) {
+				SearchResult entry = answer.next();
+				Attribute uid = entry.getAttributes().get(uidAttribute);
+				if (uid == null || uid.get() == null)
+					continue;
+				String aUID = requestedUIDs.get(uid.get().toString().toLowerCase());
+				if (aUID == null || result.containsKey(aUID))
+					continue;
+				UserEntry userEntry = readUserEntry(entry);
+				result.put(aUID, userEntry.user);
+				userEntries.add(userEntry);
+				userIds.add(aUID);
+			}
+			answer.close();
+			answer = null;
+			ldapMetrics.recordDnSearch(System.nanoTime() - lStart);
+			ldapContextPool.recordLatency(ldapCtx, System.nanoTime() - lStart);
+
+			for (int i = 0; i < userIds.size(); i++) {
+				UserEntry userEntry = userEntries.get(i);
+				ldapCache.putUser(userIds.get(i), userEntry.user);
+				ldapCache.putDN(userIds.get(i), userEntry.dn);
+				if (userEntry.groupDNs != null) {
+					ldapCache.putGroups(userIds.get(i), resolveGroups(userEntry.groupDNs, ldapCtx));
+				}
+			}
+			for (String aUID : uids) {
+				if (!result.containsKey(aUID)) {
+					logger.fine("user not found: " + aUID);
+					ldapCache.putUnknown(aUID);
+				}
+			}
+		} catch (NamingException e) {
+			ldapMetrics.countError();
+			ldapContextPool.recordFailure(ldapCtx, e);
+			logger.warning("Unable to fetch " + uids.size() + " users: " + e.getMessage());
+			if (logger.isLoggable(java.util.logging.Level.FINEST))
+				e.printStackTrace();
+		} finally {
+			if (answer != null)
+				try {
+					answer.close();
+				} catch (NamingException e) {
+					e.printStackTrace();
+				}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the user attributes, the DN and optional the group DNs from a
+	 * search result. The group names are not resolved by this method.
+	 * 
+	 * @param entry
+	 *            - search result of a user search
+	 * @return UserEntry
+	 * @throws NamingException
+	 */
+	private UserEntry readUserEntry(SearchResult entry) throws NamingException {
+		Object[] userValues = new Object[userAttributesLDAP.length];
+		List<String> groupDNs = null;
+		Attributes attributes = entry.getAttributes();
+		// fetch all attributes
+		for (int i = 0; i < userAttributesLDAP.length; i++) {
+
+			Attribute atr = attributes.get(userAttributesLDAP[i]);
+
+			logger.fine("...fetch attribute: '" + userAttributesLDAP[i] + "' = " + atr);
+			if (atr != null) {
+				NamingEnumeration<?> values = atr.getAll();
+
+				List<Object> valueList = new ArrayList<Object>(1);
+				while (values.hasMore()) {
+					valueList.add(values.next());
+				}
+				// a single value is stored without an array
+				if (valueList.size() == 1)
+					userValues[i] = valueList.get(0);
+				else if (valueList.size() > 1)
+					userValues[i] = valueList.toArray();
+			}
+		}
+		LDAPUserRecord user = new LDAPUserRecord(userAttributesImixs, userValues);
+
+		// a mapped 'dn' attribute overrules the entry name
+		String sDN = user.getItemValueString("dn");
+		if (sDN.isEmpty())
+			sDN = entry.getNameInNamespace();
+		logger.finest("DN= " + sDN);
+
+		// read groups from the user entry
+		if (groupAttribute != null) {
+			groupDNs = readGroupAttribute(attributes.get(groupAttribute));
+		}
+		return new UserEntry(user, sDN, groupDNs, null);
 	}
 
 	/**
-	 * Returns a string array containing all group names for a given uid. If not
-	 * groups are found or the uid did not exist the method returns null.
+	 * Returns a string array containing all group names for a given uid. If no
+	 * groups are found or the uid did not exist the method returns an empty
+	 * array. If the lookup failed the method returns null.
+	 * 
+	 * If the property 'ldap.group-attribute' is defined, the groups are read
+	 * from the user entry. Otherwise the groups are searched by the
+	 * 'ldap.group-search-filter'. In this case the DN of the user is taken
+	 * from the DN cache if available.
+	 * 
+	 * If the property 'ldap.group-nested' is true, also the parent groups are
+	 * returned. See resolveGroups()
 	 * 
 	 * @param aUID
 	 *            - user id
@@ -340,165 +1305,369 @@ public class LDAPLookupService {
 	 */
 	private String[] fetchGroups(String aUID, LdapContext ldapCtx) {
 		String sDN = null;
-		Vector<String> vGroupList = null;
 		String[] groupArrayList = null;
 
-		if (!enabled)
+		if (!isEnabled())
 			return null;
 
-		NamingEnumeration<SearchResult> answer = null;
-		try {
-
-			vGroupList = new Vector<String>();
-
-			String groupNamePraefix = configurationProperties.getProperty("group-name-praefix");
-
-			ItemCollection user = fetchUser(aUID, ldapCtx);
-			// return null if user was not found
-			if (user == null)
+		// read groups together with the user attributes in one search
+		if (groupAttribute != null) {
+			UserEntry userEntry = fetchUserEntry(aUID, ldapCtx);
+			if (userEntry == null)
 				return null;
+			if (userEntry.user != null)
+				ldapCache.putUser(aUID, userEntry.user);
+			return userEntry.groups;
+		}
 
-			sDN = user.getItemValueString("dn");
+		try {
+			sDN = ldapCache.getDN(aUID);
+			if (sDN == null) {
+				UserEntry userEntry = fetchUserEntry(aUID, ldapCtx);
+				// return null if the lookup failed
+				if (userEntry == null)
+					return null;
+				// unknown user has no groups
+				if (userEntry.dn == null)
+					return new String[0];
+				sDN = userEntry.dn;
+			}
 
 			logger.fine("fetchGroups for: " + sDN);
+			String searchFilter = matchingRuleInChain ? inChainSearchFilter : groupSearchFilter;
+			searchFilter = LDAPFilter.and(searchFilter, groupPraefixFilter);
+			groupArrayList = resolveGroups(searchGroupDNs(searchFilter, sDN, ldapCtx), ldapCtx);
+			logger.finest("found " + groupArrayList.length + " groups");
 
-			String returnedAtts[] = { "cn" };
-
-			SearchControls ctls = new SearchControls();
-			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-			ctls.setReturningAttributes(returnedAtts);
-
-			String searchFilter = groupSearchFilter.replace("%d", sDN);
-			logger.finest("search:" + searchFilter);
+		} catch (NamingException e) {
+			groupArrayList = null;
+			ldapMetrics.countError();
+			ldapContextPool.recordFailure(ldapCtx, e);
+			logger.warning("Unable to fetch groups for: " + aUID);
+			if (logger.isLoggable(java.util.logging.Level.FINEST))
+				e.printStackTrace();
+		}
+		return groupArrayList;
+	}
 
-			answer = ldapCtx.search(searchContext, searchFilter, ctls);
-			if (answer == null)
-				return null;
+	/**
+	 * Returns the group names for a list of group DNs. If the property
+	 * 'ldap.group-nested' is true and the matching rule in chain is not used,
+	 * the list is expanded by all parent groups before.
+	 * 
+	 * Only groups starting with the 'ldap.group-name-praefix' are returned. If
+	 * the groups were searched, the prefix was already tested by the server.
+	 * It is tested here again for group DNs read from the user entry or found
+	 * by the expansion of nested groups.
+	 * 
+	 * @param groupDNs
+	 *            - DNs of the direct groups
+	 * @return array of group names
+	 * @throws NamingException
+	 */
+	private String[] resolveGroups(List<String> groupDNs, LdapContext ldapCtx) throws NamingException {
+		Collection<String> allGroupDNs = groupDNs;
+		if (nestedGroups && !matchingRuleInChain) {
+			allGroupDNs = expandGroups(groupDNs, ldapCtx);
+		}
 
-			while (answer.hasMore()) {
-				SearchResult entry = (SearchResult) answer.next();
-				String sGroupName = entry.getName();
-
-				// TODO : it is not possible to ask for the attribute cn - maybe
-				// a
-				// domino
-				// problem so we take the name....
-				/*
-				 * Attributes attrs = entry.getAttributes(); Attribute attr =
-				 * attrs.get("cn"); if (attr != null) sGroupName = (String)
-				 * attr.get(0);
-				 */
-				sGroupName = sGroupName.substring(3);
-				if (sGroupName.indexOf(',') > -1)
-					sGroupName = sGroupName.substring(0, sGroupName.indexOf(','));
-
-				// test groupname praefix..
-				if (groupNamePraefix != null && !"".equals(groupNamePraefix)
-						&& !sGroupName.startsWith(groupNamePraefix))
-					continue;
+		Set<String> groupNames = new LinkedHashSet<String>();
+		for (String groupDN : allGroupDNs) {
+			String sGroupName = getGroupName(groupDN);
+			// test groupname praefix..
+			if (groupNamePraefix != null && !sGroupName.startsWith(groupNamePraefix))
+				continue;
+			logger.finest("found Group= " + sGroupName);
+			groupNames.add(sGroupName);
+		}
+		return groupNames.toArray(new String[groupNames.size()]);
+	}
 
-				logger.finest("found Group= " + sGroupName);
-				vGroupList.add(sGroupName);
+	/**
+	 * Expands a list of group DNs by all parent groups. The parents of a group
+	 * are searched by the 'ldap.group-search-filter' with the group DN and
+	 * stored in the group graph of the LDAPCache. So the parents of a group
+	 * are resolved only once for all users.
+	 * 
+	 * The expansion is done level by level up to the depth
+	 * 'ldap.group-nested-depth'. Cycles in the group graph are ignored.
+	 * 
+	 * @param groupDNs
+	 *            - DNs of the direct groups
+	 * @return DNs of the direct and all parent groups
+	 * @throws NamingException
+	 */
+	private Collection<String> expandGroups(List<String> groupDNs, LdapContext ldapCtx) throws NamingException {
+		Set<String> visited = new HashSet<String>();
+		List<String> result = new ArrayList<String>();
+		List<String> level = new ArrayList<String>();
+		for (String groupDN : groupDNs) {
+			if (visited.add(groupDN.toLowerCase())) {
+				result.add(groupDN);
+				level.add(groupDN);
 			}
+		}
 
-			logger.finest("found " + vGroupList.size() + " groups");
-
-			groupArrayList = new String[vGroupList.size()];
-			vGroupList.toArray(groupArrayList);
+		for (int depth = 0; depth < nestedGroupDepth && !level.isEmpty(); depth++) {
+			List<String> nextLevel = new ArrayList<String>();
+			for (String groupDN : level) {
+				String[] parents = ldapCache.getGroupParents(groupDN);
+				if (parents == null) {
+					List<String> parentList = searchGroupDNs(groupSearchFilter, groupDN, ldapCtx);
+					parents = parentList.toArray(new String[parentList.size()]);
+					ldapCache.putGroupParents(groupDN, parents);
+				}
+				for (String parent : parents) {
+					if (visited.add(parent.toLowerCase())) {
+						result.add(parent);
+						nextLevel.add(parent);
+					}
+				}
+			}
+			level = nextLevel;
+		}
+		if (!level.isEmpty()) {
+			logger.warning("nested groups exceed ldap.group-nested-depth=" + nestedGroupDepth);
+		}
+		return result;
+	}
 
-			logger.finest("put groups into cache for '" + aUID + "'");
+	/**
+	 * Searches the DNs of all groups matching the given group search filter for
+	 * a member DN. The member DN is escaped before it is inserted into the
+	 * filter.
+	 * 
+	 * The groups are read by a paged search with the page size
+	 * 'ldap.group-page-size'. So a user with a large number of groups does not
+	 * exceed the size limit of the server. Only the DN of each group is
+	 * transferred and kept.
+	 * 
+	 * @param searchFilter
+	 *            - group search filter containing the placeholder %d
+	 * @param memberDN
+	 *            - DN of a user or a group
+	 * @return list of group DNs
+	 * @throws NamingException
+	 */
+	private List<String> searchGroupDNs(String searchFilter, String memberDN, LdapContext ldapCtx)
+			throws NamingException {
+		List<String> groupDNs = new ArrayList<String>();
+		NamingEnumeration<SearchResult> answer = null;
+		try {
+			// no attributes are returned - the group name is taken from the DN
+			SearchControls ctls = new SearchControls();
+			ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			ctls.setReturningAttributes(new String[0]);
 
-		} catch (NamingException e) {
-			groupArrayList = null;
-			logger.warning("Unable to fetch groups for: " + aUID);
-			if (logger.isLoggable(java.util.logging.Level.FINEST))
-				e.printStackTrace();
+			searchFilter = LDAPFilter.replace(searchFilter, "%d", memberDN);
+			logger.finest("search:" + searchFilter);
+			long lStart = System.nanoTime();
+			byte[] cookie = null;
+			do {
+				if (groupPageSize > 0) {
+					ldapCtx.setRequestControls(
+							new Control[] { new PagedResultsControl(groupPageSize, cookie, Control.NONCRITICAL) });
+				}
+				answer = ldapCtx.search(searchContext, searchFilter, ctls);
+				while (answer != null && answer.hasMore()) {
+					groupDNs.add(answer.next().getNameInNamespace());
+				}
+				if (answer != null) {
+					answer.close();
+					answer = null;
+				}
+				cookie = (groupPageSize > 0) ? getPagedResultsCookie(ldapCtx) : null;
+			} while (cookie != null);
+			ldapMetrics.recordGroupSearch(System.nanoTime() - lStart);
+			ldapContextPool.recordLatency(ldapCtx, System.nanoTime() - lStart);
+		} catch (IOException e) {
+			NamingException ne = new NamingException("invalid paged results control: " + e.getMessage());
+			ne.setRootCause(e);
+			throw ne;
 		} finally {
 			if (answer != null)
 				try {
 					answer.close();
-					answer = null;
 				} catch (NamingException e) {
-
 					e.printStackTrace();
 				}
+			if (groupPageSize > 0)
+				resetRequestControls(ldapCtx);
+		}
+		return groupDNs;
+	}
+
+	/**
+	 * Returns the DNs from a group attribute of a user entry (e.g.
+	 * 'memberOf').
+	 * 
+	 * @param attribute
+	 *            - group attribute, can be null
+	 * @return list of group DNs
+	 * @throws NamingException
+	 */
+	private List<String> readGroupAttribute(Attribute attribute) throws NamingException {
+		List<String> groupDNs = new ArrayList<String>();
+		if (attribute != null) {
+			NamingEnumeration<?> values = attribute.getAll();
+			while (values.hasMore()) {
+				groupDNs.add(values.next().toString());
+			}
+		}
+		return groupDNs;
+	}
+
+	/**
+	 * Returns the cookie of a paged search response or null if the last page
+	 * was read.
+	 */
+	private byte[] getPagedResultsCookie(LdapContext ldapCtx) throws NamingException {
+		Control[] controls = ldapCtx.getResponseControls();
+		if (controls != null) {
+			for (Control control : controls) {
+				if (control instanceof PagedResultsResponseControl) {
+					byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+					return (cookie != null && cookie.length > 0) ? cookie : null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes request controls from a context before it is returned into the
+	 * pool.
+	 */
+	private void resetRequestControls(LdapContext ldapCtx) {
+		if (ldapCtx == null)
+			return;
+		try {
+			ldapCtx.setRequestControls(null);
+		} catch (NamingException e) {
+			logger.fine("unable to reset request controls: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Pauses the current thread to throttle bulk operations
+	 */
+	private void pause(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		return groupArrayList;
+	}
+
+	/**
+	 * Returns the group name of a group DN. The group name is the value of the
+	 * first RDN. E.g. 'cn=admins,ou=groups' returns 'admins'
+	 * 
+	 * @param groupDN
+	 * @return group name
+	 */
+	private String getGroupName(String groupDN) {
+		String sGroupName = groupDN;
+		int pos = sGroupName.indexOf('=');
+		if (pos > -1)
+			sGroupName = sGroupName.substring(pos + 1);
+		if (sGroupName.indexOf(',') > -1)
+			sGroupName = sGroupName.substring(0, sGroupName.indexOf(','));
+		return sGroupName;
 	}
 
 	/**
 	 * This method lookups the ldap context either from a Jndi name
-	 * 'LdapJndiName' (DisableJndi=false) or manually if DisableJndi=true.
+	 * 'LdapJndiName' (DisableJndi=false) or manually if DisableJndi=true. In
+	 * the manual mode the context is borrowed from the LDAPContextPool.
+	 * 
+	 * A context returned by this method must be closed by the method
+	 * closeDirContext().
 	 * 
 	 * @see http://java.net/projects/imixs-workflow-marty/pages/Useldapgroups
 	 * 
 	 * @return LdapContext object
 	 * @throws NamingException
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private LdapContext getDirContext() {
-		String ldapJndiName = null;
-		LdapContext ldapCtx = null;
+		return getDirContext(null);
+	}
 
-		// test if configuration is available
-		if (configurationProperties == null) {
-			return null;
-		}
+	/**
+	 * Returns a ldap context of the given server. If the server url is null,
+	 * the context of the server with the lowest latency is returned.
+	 * 
+	 * @param serverUrl
+	 *            - server url of the LDAPContextPool or null
+	 * @return LdapContext or null if no context could be opened
+	 */
+	private LdapContext getDirContext(String serverUrl) {
+		LdapContext ldapCtx = null;
 
 		// try to load dirContext...
-
-		Context initCtx;
+		long lStart = System.nanoTime();
 		try {
-			initCtx = new InitialContext();
-
 			// test if manually ldap context should be build
-			String sDisabled = configurationProperties.getProperty("ldap.disable-jndi");
-
-			logger.fine("ldap.disable-jndi=" + sDisabled);
-
-			if (sDisabled != null && "true".equals(sDisabled.toLowerCase())) {
-				logger.fine("lookup LDAP Ctx manually.....");
-				Hashtable env = new Hashtable();
-
-				// scann all properties starting with 'java.naming'
-				Enumeration<Object> keys = configurationProperties.keys();
-				while (keys.hasMoreElements()) {
-					String sKey = keys.nextElement().toString();
-					if (sKey.startsWith("java.naming")) {
-						env.put(sKey, configurationProperties.getProperty(sKey));
-						logger.fine("Set key: " + sKey + "=" + configurationProperties.getProperty(sKey));
-					}
-
-				}
-
-				// set default params...
-
-				env.put("java.naming.factory.initial", configurationProperties
-						.getProperty("java.naming.factory.initial", "com.sun.jndi.ldap.LdapCtxFactory"));
-				env.put("java.naming.security.authentication",
-						configurationProperties.getProperty("java.naming.security.authentication", "simple"));
-
-				ldapCtx = new InitialLdapContext(env, null);
-				logger.finest("Get DirContext Manually successful! ");
-
+			if (disableJndi) {
+				logger.fine("lookup LDAP Ctx from LDAPContextPool.....");
+				ldapCtx = ldapContextPool.borrow(serverUrl);
 			} else {
-				// read GlassFish ldap_jndiName from configuration
-				ldapJndiName = configurationProperties.getProperty("ldap.jndi-name");
-				if ("".equals(ldapJndiName))
-					ldapJndiName = "org.imixs.office.ldap";
-				logger.fine("lookup LDAP Ctx from pool '" + ldapJndiName + "' .....");
-				ldapCtx = (LdapContext) initCtx.lookup(ldapJndiName);
+				Context initCtx = new InitialContext();
+				// the GlassFish ldap_jndiName is read from the configuration
+				logger.fine("lookup LDAP Ctx from pool '" + jndiName + "' .....");
+				ldapCtx = (LdapContext) initCtx.lookup(jndiName);
 
 			}
 
 			logger.fine("Context initialized");
 
 		} catch (NamingException e) {
+			ldapMetrics.countError();
 			logger.severe("Failed to open ldap conntext: " + e.getMessage());
 			if (logger.isLoggable(java.util.logging.Level.FINE))
 				e.printStackTrace();
 		}
+		ldapMetrics.recordConnect(System.nanoTime() - lStart);
 
 		return ldapCtx;
 	}
+
+	/**
+	 * Closes a context opened by the method getDirContext(). In the manual
+	 * mode the context is returned into the LDAPContextPool.
+	 * 
+	 * @param ldapCtx
+	 */
+	private void closeDirContext(LdapContext ldapCtx) {
+		if (ldapCtx == null)
+			return;
+		if (disableJndi) {
+			ldapContextPool.release(ldapCtx);
+		} else {
+			try {
+				ldapCtx.close();
+			} catch (NamingException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Holds the result of a user search
+	 */
+	class UserEntry {
+		final LDAPUserRecord user;
+		final String dn;
+		final List<String> groupDNs;
+		final String[] groups;
+
+		UserEntry(LDAPUserRecord user, String dn, List<String> groupDNs, String[] groups) {
+			this.user = user;
+			this.dn = dn;
+			this.groupDNs = groupDNs;
+			this.groups = groups;
+		}
+	}
 }
@@ -0,0 +1,267 @@
+package org.imixs.workflow.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This singleton ejb collects operational metrics of the ldap adapter. The
+ * LDAPLookupService and the LDAPGroupInterceptor record the latency of each
+ * ldap operation. The counters of the LDAPCache and the LDAPContextPool are
+ * read on request.
+ *
+ * The metrics are registered as a MXBean in the platform MBeanServer with the
+ * name 'org.imixs.workflow.ldap:type=LDAPMetrics' and can be monitored by any
+ * JMX client (e.g. jconsole).
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@Startup
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LDAPMetrics implements LDAPMetricsMXBean {
+
+	public static final String OBJECT_NAME = "org.imixs.workflow.ldap:type=LDAPMetrics";
+
+	private final LDAPLatencyHistogram dnSearchLatency = new LDAPLatencyHistogram();
+	private final LDAPLatencyHistogram groupSearchLatency = new LDAPLatencyHistogram();
+	private final LDAPLatencyHistogram connectLatency = new LDAPLatencyHistogram();
+	private final LDAPLatencyHistogram interceptorLatency = new LDAPLatencyHistogram();
+	private final AtomicLong lookupErrors = new AtomicLong();
+	private final AtomicLong groupTimeouts = new AtomicLong();
+	private ObjectName objectName = null;
+
+	@EJB
+	LDAPCache ldapCache;
+
+	@EJB
+	LDAPContextPool ldapContextPool;
+
+	private static Logger logger = Logger.getLogger(LDAPMetrics.class.getName());
+
+	@PostConstruct
+	void init() {
+		try {
+			objectName = new ObjectName(OBJECT_NAME);
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			try {
+				mbeanServer.registerMBean(this, objectName);
+			} catch (InstanceAlreadyExistsException e) {
+				// registered by a former deployment
+				mbeanServer.unregisterMBean(objectName);
+				mbeanServer.registerMBean(this, objectName);
+			}
+			logger.fine("LDAPMetrics registered: " + OBJECT_NAME);
+		} catch (Exception e) {
+			objectName = null;
+			logger.warning("LDAPMetrics unable to register MXBean: " + e.getMessage());
+		}
+	}
+
+	@PreDestroy
+	void destroy() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			logger.fine("LDAPMetrics unable to unregister MXBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records the duration of a user search
+	 *
+	 * @param nanos
+	 */
+	public void recordDnSearch(long nanos) {
+		dnSearchLatency.record(nanos);
+	}
+
+	/**
+	 * Records the duration of a group search
+	 *
+	 * @param nanos
+	 */
+	public void recordGroupSearch(long nanos) {
+		groupSearchLatency.record(nanos);
+	}
+
+	/**
+	 * Records the time to get a bound ldap context
+	 *
+	 * @param nanos
+	 */
+	public void recordConnect(long nanos) {
+		connectLatency.record(nanos);
+	}
+
+	/**
+	 * Records the overhead of the LDAPGroupInterceptor
+	 *
+	 * @param nanos
+	 */
+	public void recordInterceptor(long nanos) {
+		interceptorLatency.record(nanos);
+	}
+
+	/**
+	 * Counts a failed ldap operation
+	 */
+	public void countError() {
+		lookupErrors.incrementAndGet();
+	}
+
+	/**
+	 * Counts a group lookup of the LDAPGroupInterceptor answered by the
+	 * fallback group list
+	 */
+	public void countGroupTimeout() {
+		groupTimeouts.incrementAndGet();
+	}
+
+	@Override
+	public LDAPLatencyHistogram getDnSearchLatency() {
+		return dnSearchLatency;
+	}
+
+	@Override
+	public LDAPLatencyHistogram getGroupSearchLatency() {
+		return groupSearchLatency;
+	}
+
+	@Override
+	public LDAPLatencyHistogram getConnectLatency() {
+		return connectLatency;
+	}
+
+	@Override
+	public LDAPLatencyHistogram getInterceptorLatency() {
+		return interceptorLatency;
+	}
+
+	@Override
+	public long getLookupErrors() {
+		return lookupErrors.get();
+	}
+
+	@Override
+	public long getGroupTimeouts() {
+		return groupTimeouts.get();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return ldapCache.getCacheHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return ldapCache.getCacheMisses();
+	}
+
+	@Override
+	public long getCacheEvictions() {
+		return ldapCache.getCacheEvictions();
+	}
+
+	@Override
+	public int getCacheSize() {
+		return ldapCache.getCacheSize();
+	}
+
+	@Override
+	public int getCacheCapacity() {
+		return ldapCache.getCapacity();
+	}
+
+	@Override
+	public long getDnCacheHits() {
+		return ldapCache.getDNCacheHits();
+	}
+
+	@Override
+	public long getDnCacheMisses() {
+		return ldapCache.getDNCacheMisses();
+	}
+
+	@Override
+	public long getNegativeCacheHits() {
+		return ldapCache.getNegativeCacheHits();
+	}
+
+	@Override
+	public long getNegativeCacheMisses() {
+		return ldapCache.getNegativeCacheMisses();
+	}
+
+	@Override
+	public int getNegativeCacheSize() {
+		return ldapCache.getNegativeCacheSize();
+	}
+
+	@Override
+	public long getGroupCacheHits() {
+		return ldapCache.getGroupCacheHits();
+	}
+
+	@Override
+	public long getGroupCacheMisses() {
+		return ldapCache.getGroupCacheMisses();
+	}
+
+	@Override
+	public int getGroupDictionarySize() {
+		return ldapCache.getGroupDictionarySize();
+	}
+
+	@Override
+	public int getPoolOpenContexts() {
+		return ldapContextPool.getOpenCount();
+	}
+
+	@Override
+	public int getPoolIdleContexts() {
+		return ldapContextPool.getIdleCount();
+	}
+
+	@Override
+	public long getPoolCreatedContexts() {
+		return ldapContextPool.getCreatedCount();
+	}
+
+	@Override
+	public long getPoolTimeouts() {
+		return ldapContextPool.getTimeoutCount();
+	}
+
+	@Override
+	public String[] getServerStatus() {
+		return ldapContextPool.getServerStatus();
+	}
+
+	@Override
+	public void resetLatencies() {
+		dnSearchLatency.reset();
+		groupSearchLatency.reset();
+		connectLatency.reset();
+		interceptorLatency.reset();
+		lookupErrors.set(0);
+		groupTimeouts.set(0);
+	}
+}
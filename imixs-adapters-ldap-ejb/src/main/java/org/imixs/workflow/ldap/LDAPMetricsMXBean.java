@@ -0,0 +1,92 @@
+package org.imixs.workflow.ldap;
+
+/**
+ * Management interface of the LDAPMetrics. The metrics are registered in the
+ * platform MBeanServer with the name
+ * 'org.imixs.workflow.ldap:type=LDAPMetrics'.
+ *
+ * All latencies are measured in microseconds.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public interface LDAPMetricsMXBean {
+
+	/**
+	 * Latency of the user search resolving the DN and attributes of a user
+	 */
+	public LDAPLatencyHistogram getDnSearchLatency();
+
+	/**
+	 * Latency of a single group search
+	 */
+	public LDAPLatencyHistogram getGroupSearchLatency();
+
+	/**
+	 * Time to get a bound ldap context, including the bind of a new
+	 * connection and the wait time of the pool
+	 */
+	public LDAPLatencyHistogram getConnectLatency();
+
+	/**
+	 * Overhead of the LDAPGroupInterceptor per DocumentService call
+	 */
+	public LDAPLatencyHistogram getInterceptorLatency();
+
+	public long getLookupErrors();
+
+	/**
+	 * Number of group lookups of the LDAPGroupInterceptor answered by the
+	 * fallback group list because the ldap.group-timeout was exceeded
+	 */
+	public long getGroupTimeouts();
+
+	public long getCacheHits();
+
+	public long getCacheMisses();
+
+	public long getCacheEvictions();
+
+	public int getCacheSize();
+
+	public int getCacheCapacity();
+
+	public long getDnCacheHits();
+
+	public long getDnCacheMisses();
+
+	public long getNegativeCacheHits();
+
+	public long getNegativeCacheMisses();
+
+	public int getNegativeCacheSize();
+
+	public long getGroupCacheHits();
+
+	public long getGroupCacheMisses();
+
+	/**
+	 * Number of distinct group names held by the LDAPGroupDictionary
+	 */
+	public int getGroupDictionarySize();
+
+	public int getPoolOpenContexts();
+
+	public int getPoolIdleContexts();
+
+	public long getPoolCreatedContexts();
+
+	public long getPoolTimeouts();
+
+	/**
+	 * Status of each directory server - url, average latency, open contexts
+	 * and ejection state
+	 */
+	public String[] getServerStatus();
+
+	/**
+	 * Resets all latency histograms, the error and the timeout counter
+	 */
+	public void resetLatencies();
+}
@@ -27,7 +27,6 @@
 
 package org.imixs.workflow.ldap;
 
-import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.naming.Context;
@@ -83,9 +82,9 @@ public class LDAPPlugin extends AbstractPlugin {
 	 * 
 	 * The method load the user object form the LDAP Service and compares
 	 * the attributes (defined in the imixs.properties 'ldap.user-attributes') with the current values.
-	 * If necessary the atributes will be automatically updated. 
+	 * If necessary the atributes will be automatically updated. The comparison is
+	 * skipped if the profile already holds the fingerprint of the ldap attributes.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public ItemCollection run(ItemCollection adocumentContext,
 			ItemCollection documentActivity) throws PluginException {
@@ -96,21 +95,11 @@ public class LDAPPlugin extends AbstractPlugin {
 			String sUserID=profile.getItemValueString("txtname");
 			
 			// compare attributes....
-			ItemCollection ldapUser = ldapLokupService.findUser(sUserID);
+			LDAPUserRecord ldapUser = ldapLokupService.findUserRecord(sUserID);
 			if (ldapUser != null) {
 				logger.fine("ldap entry found, verifing attributes...");
-				// print all
-				Map<String, Object> items = (Map<String, Object>) ldapUser.getItemList();
-
-				for (Map.Entry<String, Object> entry : items.entrySet()) {
-					String key = entry.getKey();
-					Object value = entry.getValue();
-					logger.finest(" ...... " + key + "=" + value);
-
-					if (!profile.getItemValue(key).equals(ldapUser.getItemValue(key))) {
-						profile.replaceItemValue(key, ldapUser.getItemValue(key));
-					}
-				}
+				// the profile is saved by the workflow processing
+				LDAPProfileSyncService.updateProfile(profile, ldapUser);
 			} else {
 				logger.warning("userid " + sUserID + " not found!");
 			}
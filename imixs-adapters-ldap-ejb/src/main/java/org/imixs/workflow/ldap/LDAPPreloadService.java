@@ -0,0 +1,111 @@
+package org.imixs.workflow.ldap;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+
+/**
+ * This singleton ejb preloads the LDAPCache with all user entries of the
+ * directory. The preload runs after the deployment and optional in a fixed
+ * interval. So the LDAPLookupService can serve user attributes and groups
+ * from the cache even for the first request of a user.
+ *
+ * The preload is configured by the imixs.properties:
+ *
+ * ldap.preload = true|false (default false)
+ *
+ * ldap.preload-interval = milliseconds between two preloads. 0 means the
+ * preload runs only once after the deployment (default 0)
+ *
+ * ldap.preload-page-size = number of entries read per page (default 500)
+ *
+ * ldap.preload-page-delay = pause in milliseconds between two pages to
+ * throttle the load on the directory (default 100)
+ *
+ * ldap.preload-groups = true if the groups should be searched for each user
+ * in case the groups are not read from the user entry (default false)
+ *
+ * Note: the ldap.cache-size must be large enough to hold all entries.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@Startup
+public class LDAPPreloadService {
+
+	long DEFAULT_START_DELAY = 10000;
+
+	private int pageSize;
+	private long pageDelay;
+	private boolean preloadGroups;
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@EJB
+	LDAPLookupService lookupService;
+
+	@Resource
+	TimerService timerService;
+
+	private static Logger logger = Logger.getLogger(LDAPPreloadService.class.getName());
+
+	@PostConstruct
+	void init() {
+		try {
+			// the imixs.properties are read by the LDAPConfigService
+			Properties configurationProperties = ldapConfigService.getProperties();
+
+			if (!"true".equalsIgnoreCase(configurationProperties.getProperty("ldap.preload", "false"))) {
+				return;
+			}
+
+			pageSize = Integer.parseInt(configurationProperties.getProperty("ldap.preload-page-size", "500").trim());
+			if (pageSize <= 0)
+				pageSize = 500;
+			pageDelay = Long.parseLong(configurationProperties.getProperty("ldap.preload-page-delay", "100").trim());
+			preloadGroups = "true"
+					.equalsIgnoreCase(configurationProperties.getProperty("ldap.preload-groups", "false"));
+			long interval = Long.parseLong(configurationProperties.getProperty("ldap.preload-interval", "0").trim());
+
+			// start the timer - the first preload is delayed to not slow down the
+			// deployment
+			TimerConfig timerConfig = new TimerConfig();
+			timerConfig.setPersistent(false);
+			if (interval > 0) {
+				timerService.createIntervalTimer(DEFAULT_START_DELAY, interval, timerConfig);
+			} else {
+				timerService.createSingleActionTimer(DEFAULT_START_DELAY, timerConfig);
+			}
+			logger.info("LDAP preload scheduled - interval=" + interval + "ms");
+		} catch (Exception e) {
+			logger.severe("LDAPPreloadService unable to initalize LDAPPreloadService: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs the preload of the LDAPCache
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	public void preload(Timer timer) {
+		if (!lookupService.isEnabled()) {
+			logger.fine("LDAP preload skipped - ldap service is disabled");
+			return;
+		}
+		lookupService.preloadCache(pageSize, pageDelay, preloadGroups);
+	}
+}
@@ -0,0 +1,299 @@
+package org.imixs.workflow.ldap;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.annotation.security.DeclareRoles;
+import javax.annotation.security.RunAs;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import org.imixs.marty.ejb.ProfileService;
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.engine.DocumentService;
+
+/**
+ * This singleton ejb synchronizes the ldap attributes of a user into the user
+ * profile. The LDAPUserInterceptor applies changed ldap attributes only to the
+ * profile returned by the ProfileService and adds the user into a write-behind
+ * queue. The queue is flushed by a timer and the profiles are saved in
+ * batches outside of the request.
+ *
+ * Each profile holds the fingerprint of the ldap attributes last applied in
+ * the item 'ldap.fingerprint'. If the fingerprint of the ldap entry did not
+ * change, the profile is not compared again.
+ *
+ * The service is configured by the imixs.properties:
+ *
+ * ldap.profile-sync-interval = milliseconds between two flushes of the queue
+ * (default 10000). 0 disables the write-behind queue and the profile is saved
+ * immediately by the LDAPUserInterceptor.
+ *
+ * ldap.profile-sync-batch-size = max number of profiles saved in one
+ * transaction (default 100)
+ *
+ * If a batch can not be saved, its profiles are saved one by one. So a single
+ * profile which can not be saved does not block the other profiles. A failed
+ * profile is queued again and dropped after 3 failed attempts. It is synced
+ * again with the next change of the ldap attributes or after the profile was
+ * reloaded.
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@DeclareRoles({ "org.imixs.ACCESSLEVEL.MANAGERACCESS" })
+@RunAs("org.imixs.ACCESSLEVEL.MANAGERACCESS")
+public class LDAPProfileSyncService {
+
+	public static final String ITEM_FINGERPRINT = "ldap.fingerprint";
+
+	long DEFAULT_INTERVAL = 10000;
+	int DEFAULT_BATCH_SIZE = 100;
+	int MAX_ATTEMPTS = 3;
+
+	private long interval = 0;
+	int batchSize;
+	// latest ldap attributes of each user waiting to be saved
+	private final ConcurrentHashMap<String, LDAPUserRecord> pendingUpdates = new ConcurrentHashMap<String, LDAPUserRecord>();
+	// number of failed attempts to save the profile of a user
+	private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<String, Integer>();
+	private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@EJB
+	ProfileService profileService;
+
+	@EJB
+	DocumentService documentService;
+
+	@Resource
+	SessionContext ejbCtx;
+
+	@Resource
+	TimerService timerService;
+
+	private static Logger logger = Logger.getLogger(LDAPProfileSyncService.class.getName());
+
+	@PostConstruct
+	void init() {
+		try {
+			// the imixs.properties are read by the LDAPConfigService
+			Properties configurationProperties = ldapConfigService.getProperties();
+
+			interval = Long.parseLong(configurationProperties
+					.getProperty("ldap.profile-sync-interval", "" + DEFAULT_INTERVAL).trim());
+			batchSize = Integer.parseInt(configurationProperties
+					.getProperty("ldap.profile-sync-batch-size", "" + DEFAULT_BATCH_SIZE).trim());
+			if (batchSize <= 0)
+				batchSize = DEFAULT_BATCH_SIZE;
+
+			if (interval > 0) {
+				TimerConfig timerConfig = new TimerConfig();
+				timerConfig.setPersistent(false);
+				timerService.createIntervalTimer(interval, interval, timerConfig);
+				logger.fine("LDAP profile sync started - interval=" + interval + "ms");
+			}
+		} catch (Exception e) {
+			interval = 0;
+			logger.severe("LDAPProfileSyncService unable to initalize LDAPProfileSyncService: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Saves all pending profiles before the service is stopped
+	 */
+	@PreDestroy
+	void destroy() {
+		if (pendingUpdates.isEmpty())
+			return;
+		try {
+			flush(null);
+		} catch (RuntimeException e) {
+			logger.warning("LDAPProfileSyncService unable to save " + pendingUpdates.size() + " profiles: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns true if profiles are saved by the write-behind queue
+	 */
+	public boolean isWriteBehind() {
+		return interval > 0;
+	}
+
+	/**
+	 * Adds a user into the write-behind queue. A user already contained in the
+	 * queue is updated with the latest ldap attributes.
+	 *
+	 * @param userId
+	 * @param ldapUser
+	 */
+	public void scheduleUpdate(String userId, LDAPUserRecord ldapUser) {
+		pendingUpdates.put(userId, ldapUser);
+	}
+
+	/**
+	 * Returns the number of profiles waiting to be saved
+	 */
+	public int getPendingCount() {
+		return pendingUpdates.size();
+	}
+
+	/**
+	 * Saves all pending profiles in batches. Each batch is saved in a new
+	 * transaction. If a batch fails, its profiles are saved one by one in
+	 * separate transactions. The failed profiles are queued again and saved by
+	 * the next timer. If no profile of a failed batch can be saved, the flush
+	 * is stopped and the remaining profiles stay in the queue.
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void flush(Timer timer) {
+		if (pendingUpdates.isEmpty() || !flushing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long lProfiler = System.currentTimeMillis();
+			int count = 0;
+			Map<String, LDAPUserRecord> failed = new LinkedHashMap<String, LDAPUserRecord>();
+			while (!pendingUpdates.isEmpty()) {
+				// take the next batch from the queue
+				Map<String, LDAPUserRecord> batch = new LinkedHashMap<String, LDAPUserRecord>();
+				Iterator<Map.Entry<String, LDAPUserRecord>> iter = pendingUpdates.entrySet().iterator();
+				while (iter.hasNext() && batch.size() < batchSize) {
+					Map.Entry<String, LDAPUserRecord> entry = iter.next();
+					if (pendingUpdates.remove(entry.getKey(), entry.getValue())) {
+						batch.put(entry.getKey(), entry.getValue());
+					}
+				}
+				try {
+					count += ejbCtx.getBusinessObject(LDAPProfileSyncService.class).saveProfiles(batch);
+					if (!failedAttempts.isEmpty())
+						failedAttempts.keySet().removeAll(batch.keySet());
+				} catch (RuntimeException e) {
+					logger.warning("LDAP profile sync failed for " + batch.size() + " profiles: " + e.getMessage());
+					if (batch.size() == 1) {
+						failed.putAll(batch);
+						break;
+					}
+					// save the profiles one by one to skip a failing profile
+					int saved = 0;
+					for (Map.Entry<String, LDAPUserRecord> entry : batch.entrySet()) {
+						try {
+							count += ejbCtx.getBusinessObject(LDAPProfileSyncService.class)
+									.saveProfiles(Collections.singletonMap(entry.getKey(), entry.getValue()));
+							failedAttempts.remove(entry.getKey());
+							saved++;
+						} catch (RuntimeException ex) {
+							logger.warning("LDAP profile sync failed for '" + entry.getKey() + "': " + ex.getMessage());
+							failed.put(entry.getKey(), entry.getValue());
+						}
+					}
+					// the database is not available
+					if (saved == 0)
+						break;
+				}
+			}
+
+			// the cached profiles already hold the new fingerprint, so the
+			// failed profiles are queued again. A newer entry of a user queued
+			// in the meantime is kept.
+			for (Map.Entry<String, LDAPUserRecord> entry : failed.entrySet()) {
+				Integer attempts = failedAttempts.get(entry.getKey());
+				attempts = (attempts == null) ? 1 : attempts + 1;
+				if (attempts >= MAX_ATTEMPTS) {
+					failedAttempts.remove(entry.getKey());
+					logger.severe("LDAP profile sync for '" + entry.getKey() + "' failed " + attempts
+							+ " times - profile update is dropped");
+				} else {
+					failedAttempts.put(entry.getKey(), attempts);
+					pendingUpdates.putIfAbsent(entry.getKey(), entry.getValue());
+				}
+			}
+			logger.fine("LDAP profile sync: " + count + " profiles saved in "
+					+ (System.currentTimeMillis() - lProfiler) + " ms");
+		} finally {
+			flushing.set(false);
+		}
+	}
+
+	/**
+	 * Loads and updates the profiles of a batch of users in one transaction.
+	 *
+	 * @param batch
+	 *            - user ids and the ldap attributes to be applied
+	 * @return number of saved profiles
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int saveProfiles(Map<String, LDAPUserRecord> batch) {
+		int count = 0;
+		for (Map.Entry<String, LDAPUserRecord> entry : batch.entrySet()) {
+			ItemCollection profile = profileService.findProfileById(entry.getKey());
+			if (profile != null && updateProfile(profile, entry.getValue())) {
+				logger.finest("Update user profile '" + entry.getKey() + "' with new ldap attributes....");
+				documentService.save(profile);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Applies the ldap attributes to a profile. If the profile already holds
+	 * the fingerprint of the ldap attributes, the method returns false
+	 * immediately. Otherwise all changed attributes and the new fingerprint are
+	 * set and the method returns true. In this case the profile needs to be
+	 * saved.
+	 *
+	 * @param profile
+	 * @param ldapUser
+	 * @return true if the profile was changed
+	 */
+	@SuppressWarnings("unchecked")
+	public static boolean updateProfile(ItemCollection profile, LDAPUserRecord ldapUser) {
+		long fingerprint = ldapUser.getFingerprint();
+		if (profile.getItemValueLong(ITEM_FINGERPRINT) == fingerprint) {
+			return false;
+		}
+
+		ItemCollection ldapItems = ldapUser.toItemCollection();
+		Map<String, Object> items = (Map<String, Object>) ldapItems.getItemList();
+		for (Map.Entry<String, Object> entry : items.entrySet()) {
+			String key = entry.getKey();
+			logger.finest(" ...... " + key + "=" + entry.getValue());
+			if (!profile.getItemValue(key).equals(ldapItems.getItemValue(key))) {
+				profile.replaceItemValue(key, ldapItems.getItemValue(key));
+			}
+		}
+		profile.replaceItemValue(ITEM_FINGERPRINT, fingerprint);
+		return true;
+	}
+}
@@ -0,0 +1,78 @@
+package org.imixs.workflow.ldap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * The LDAPRequestCoalescer joins concurrent lookups for the same key into one
+ * single ldap request. The first caller for a key executes the lookup, all
+ * other callers arriving while the lookup is running wait for its result
+ * instead of sending the same search to the directory.
+ *
+ * The coalescer does not cache results. After the lookup has finished, the
+ * next call for the same key starts a new lookup. The result has to be cached
+ * by the caller (see LDAPCache).
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPRequestCoalescer {
+
+	private final ConcurrentHashMap<String, FutureTask<Object>> runningLookups = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+	private static Logger logger = Logger.getLogger(LDAPRequestCoalescer.class.getName());
+
+	/**
+	 * Executes the given lookup or joins a lookup already running for the same
+	 * key.
+	 *
+	 * @param key
+	 *            - lookup key (e.g. the user id)
+	 * @param lookup
+	 *            - the lookup to be executed
+	 * @return result of the lookup
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Callable<T> lookup) {
+		FutureTask<Object> task = new FutureTask<Object>((Callable<Object>) lookup);
+		FutureTask<Object> runningTask = runningLookups.putIfAbsent(key, task);
+		if (runningTask == null) {
+			// we are the first caller - run the lookup in the current thread
+			runningTask = task;
+			try {
+				task.run();
+			} finally {
+				runningLookups.remove(key, task);
+			}
+		} else {
+			logger.finest("join running lookup for '" + key + "'");
+		}
+
+		try {
+			return (T) runningTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Returns the number of lookups currently running
+	 */
+	public int getRunningCount() {
+		return runningLookups.size();
+	}
+}
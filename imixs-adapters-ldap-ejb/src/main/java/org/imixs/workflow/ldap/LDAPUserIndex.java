@@ -0,0 +1,367 @@
+package org.imixs.workflow.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * This singleton ejb holds an in-memory prefix index over the user id and
+ * some attributes (e.g. the display name and the email address) of all user
+ * entries of the directory. The index answers the type-ahead search of a user
+ * picker without a wildcard search in the directory.
+ *
+ * The index is built by a paged scan of the directory after the deployment
+ * and optional in a fixed interval. Users removed from the cache by the
+ * LDAPInvalidationService (e.g. detected by the LDAPChangeWatcher) are read
+ * again and updated in the index periodically.
+ *
+ * Each value is indexed in lower case as a whole and by each of its words.
+ * So the display name 'Anna Maria Smith' is found by the prefixes 'ann',
+ * 'mar' and 'smi'.
+ *
+ * The index is configured by the imixs.properties:
+ *
+ * ldap.user-index = true|false (default false)
+ *
+ * ldap.user-index-attributes = ldap attributes indexed in addition to the
+ * user id (default cn,mail)
+ *
+ * ldap.user-index-interval = milliseconds between two full scans. 0 means the
+ * index is built only once after the deployment (default 0)
+ *
+ * ldap.user-index-update-interval = milliseconds between two updates of
+ * changed users (default 10000)
+ *
+ * ldap.user-index-page-size = number of entries read per page (default 500)
+ *
+ * ldap.user-index-page-delay = pause in milliseconds between two pages
+ * (default 100)
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LDAPUserIndex {
+
+	long DEFAULT_START_DELAY = 10000;
+	long DEFAULT_UPDATE_INTERVAL = 10000;
+
+	private static final String TIMER_REBUILD = "rebuild";
+	private static final String TIMER_UPDATE = "update";
+	// separates the term and the user id of an index key
+	private static final char SEPARATOR = '\u0000';
+
+	private boolean enabled = false;
+	private String[] attributes = null; // indexed ldap attributes
+	private String[] itemNames = null; // item names of a search result
+	private int pageSize;
+	private long pageDelay;
+
+	// term + SEPARATOR + user id (lower case) -> row
+	private volatile ConcurrentSkipListMap<String, String[]> terms = new ConcurrentSkipListMap<String, String[]>();
+	// user id (lower case) -> row
+	private volatile ConcurrentHashMap<String, String[]> rows = new ConcurrentHashMap<String, String[]>();
+	// user ids to be updated
+	private final Set<String> pendingUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile boolean rebuilding = false;
+
+	@EJB
+	LDAPConfigService ldapConfigService;
+
+	@EJB
+	LDAPLookupService lookupService;
+
+	@Resource
+	TimerService timerService;
+
+	private static Logger logger = Logger.getLogger(LDAPUserIndex.class.getName());
+
+	@PostConstruct
+	void init() {
+		try {
+			// the imixs.properties are read by the LDAPConfigService
+			Properties configurationProperties = ldapConfigService.getProperties();
+
+			if (!"true".equalsIgnoreCase(configurationProperties.getProperty("ldap.user-index", "false"))) {
+				return;
+			}
+
+			List<String> attributeList = new ArrayList<String>();
+			for (String attribute : configurationProperties.getProperty("ldap.user-index-attributes", "cn,mail")
+					.split(",")) {
+				if (!attribute.trim().isEmpty())
+					attributeList.add(attribute.trim());
+			}
+			attributes = attributeList.toArray(new String[attributeList.size()]);
+
+			// a search result uses the imixs item names of the user attributes
+			LDAPConfiguration configuration = ldapConfigService.getConfiguration();
+			itemNames = new String[attributes.length + 1];
+			itemNames[0] = getItemName(configuration, configuration.uidAttribute);
+			for (int i = 0; i < attributes.length; i++) {
+				itemNames[i + 1] = getItemName(configuration, attributes[i]);
+			}
+
+			pageSize = Integer
+					.parseInt(configurationProperties.getProperty("ldap.user-index-page-size", "500").trim());
+			if (pageSize <= 0)
+				pageSize = 500;
+			pageDelay = Long
+					.parseLong(configurationProperties.getProperty("ldap.user-index-page-delay", "100").trim());
+			long interval = Long
+					.parseLong(configurationProperties.getProperty("ldap.user-index-interval", "0").trim());
+			long updateInterval = Long.parseLong(configurationProperties
+					.getProperty("ldap.user-index-update-interval", "" + DEFAULT_UPDATE_INTERVAL).trim());
+			enabled = true;
+
+			if (timerService == null) {
+				return;
+			}
+			// the first scan is delayed to not slow down the deployment
+			TimerConfig rebuildConfig = new TimerConfig(TIMER_REBUILD, false);
+			if (interval > 0) {
+				timerService.createIntervalTimer(DEFAULT_START_DELAY, interval, rebuildConfig);
+			} else {
+				timerService.createSingleActionTimer(DEFAULT_START_DELAY, rebuildConfig);
+			}
+			if (updateInterval > 0) {
+				timerService.createIntervalTimer(updateInterval, updateInterval,
+						new TimerConfig(TIMER_UPDATE, false));
+			}
+			logger.info("LDAP user index scheduled - interval=" + interval + "ms");
+		} catch (Exception e) {
+			enabled = false;
+			logger.severe("LDAPUserIndex unable to initalize: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns true if the index is configured
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the number of indexed users
+	 */
+	public int getSize() {
+		return rows.size();
+	}
+
+	/**
+	 * Returns the users with a user id or an indexed attribute starting with
+	 * the given prefix (case insensitive). The users are ordered by the
+	 * matching value. Each user is returned as an ItemCollection containing
+	 * the user id and the indexed attributes. The item names are mapped by the
+	 * 'ldap.user-attributes'.
+	 *
+	 * @param prefix
+	 *            - prefix of a user id, name or email address
+	 * @param maxCount
+	 *            - max number of users returned
+	 * @return list of users, empty if no user matches or the index is not yet
+	 *         built
+	 */
+	public List<ItemCollection> searchUsers(String prefix, int maxCount) {
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		if (!enabled || prefix == null || maxCount <= 0)
+			return result;
+		String term = prefix.trim().toLowerCase();
+		if (term.isEmpty())
+			return result;
+
+		Set<String[]> found = new HashSet<String[]>();
+		for (Map.Entry<String, String[]> entry : terms.tailMap(term).entrySet()) {
+			if (!entry.getKey().startsWith(term))
+				break;
+			String[] row = entry.getValue();
+			if (found.add(row)) {
+				result.add(toItemCollection(row));
+				if (result.size() >= maxCount)
+					break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Marks a user to be updated by the next update. See
+	 * LDAPInvalidationService
+	 *
+	 * @param uid
+	 */
+	public void invalidate(String uid) {
+		if (enabled && uid != null) {
+			pendingUsers.add(uid);
+		}
+	}
+
+	/**
+	 * Rebuilds or updates the index
+	 *
+	 * @param timer
+	 */
+	@Timeout
+	public void onTimer(Timer timer) {
+		if (TIMER_UPDATE.equals(timer.getInfo())) {
+			update();
+		} else {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Reads all user entries from the directory and replaces the index. The
+	 * current index is used until the new index is complete. Users changed
+	 * during the scan are updated afterwards.
+	 *
+	 * @return number of indexed users or -1 if the scan failed
+	 */
+	public int rebuild() {
+		if (!enabled || !lookupService.isEnabled())
+			return -1;
+		long lProfiler = System.currentTimeMillis();
+		rebuilding = true;
+		try {
+			List<String[]> scan = lookupService.scanUsers(attributes, pageSize, pageDelay);
+			if (scan == null)
+				return -1;
+			ConcurrentSkipListMap<String, String[]> newTerms = new ConcurrentSkipListMap<String, String[]>();
+			ConcurrentHashMap<String, String[]> newRows = new ConcurrentHashMap<String, String[]>();
+			for (String[] row : scan) {
+				put(row, newTerms, newRows);
+			}
+			synchronized (this) {
+				terms = newTerms;
+				rows = newRows;
+			}
+			logger.info("LDAP user index: " + newRows.size() + " users indexed in "
+					+ (System.currentTimeMillis() - lProfiler) + " ms");
+		} finally {
+			rebuilding = false;
+		}
+		update();
+		return rows.size();
+	}
+
+	/**
+	 * Reads all users marked by the method invalidate() from the directory
+	 * and updates the index. Users not found are removed from the index.
+	 *
+	 * @return number of updated users
+	 */
+	public int update() {
+		if (!enabled || rebuilding || pendingUsers.isEmpty())
+			return 0;
+		List<String> uids = new ArrayList<String>(pendingUsers);
+		pendingUsers.removeAll(uids);
+		Map<String, String[]> result = lookupService.readUsers(uids, attributes);
+		if (result == null) {
+			// retry with the next update
+			pendingUsers.addAll(uids);
+			return 0;
+		}
+		synchronized (this) {
+			for (String uid : uids) {
+				String key = uid.toLowerCase();
+				remove(rows.remove(key), terms);
+				String[] row = result.get(key);
+				if (row != null) {
+					put(row, terms, rows);
+				}
+			}
+		}
+		logger.fine("LDAP user index: " + uids.size() + " users updated");
+		return uids.size();
+	}
+
+	/**
+	 * Adds a row to the index
+	 */
+	private void put(String[] row, Map<String, String[]> termMap, Map<String, String[]> rowMap) {
+		String key = row[0].toLowerCase();
+		remove(rowMap.put(key, row), termMap);
+		for (String term : getTerms(row)) {
+			termMap.put(term + SEPARATOR + key, row);
+		}
+	}
+
+	/**
+	 * Removes the terms of a row from the index
+	 */
+	private void remove(String[] row, Map<String, String[]> termMap) {
+		if (row == null)
+			return;
+		String key = row[0].toLowerCase();
+		for (String term : getTerms(row)) {
+			termMap.remove(term + SEPARATOR + key);
+		}
+	}
+
+	/**
+	 * Returns the lower case values and words of the values of a row
+	 */
+	private Set<String> getTerms(String[] row) {
+		Set<String> result = new HashSet<String>();
+		for (String value : row) {
+			if (value == null)
+				continue;
+			value = value.trim().toLowerCase();
+			if (value.isEmpty())
+				continue;
+			result.add(value);
+			for (String word : value.split("[\\s,]+")) {
+				if (!word.isEmpty())
+					result.add(word);
+			}
+		}
+		return result;
+	}
+
+	private ItemCollection toItemCollection(String[] row) {
+		ItemCollection user = new ItemCollection();
+		for (int i = 0; i < row.length; i++) {
+			if (row[i] != null)
+				user.replaceItemValue(itemNames[i], row[i]);
+		}
+		return user;
+	}
+
+	/**
+	 * Returns the imixs item name of a ldap attribute defined by the
+	 * 'ldap.user-attributes' or the attribute name
+	 */
+	private static String getItemName(LDAPConfiguration configuration, String attribute) {
+		for (int i = 0; i < configuration.userAttributesLDAP.length; i++) {
+			if (configuration.userAttributesLDAP[i].equalsIgnoreCase(attribute))
+				return configuration.userAttributesImixs[i];
+		}
+		return attribute;
+	}
+}
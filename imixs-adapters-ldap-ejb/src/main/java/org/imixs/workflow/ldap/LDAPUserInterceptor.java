@@ -1,6 +1,5 @@
 package org.imixs.workflow.ldap;
 
-import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.annotation.Resource;
@@ -56,6 +55,9 @@ import org.imixs.workflow.exceptions.PluginException;
 	</assembly-descriptor>
  * }
  * 
+ * Changed ldap attributes are applied to the returned profile. The profile is
+ * saved later by the write-behind queue of the LDAPProfileSyncService, so a
+ * profile lookup does not write into the database.
  * 
  * @version 1.0
  * @author rsoika
@@ -73,6 +75,9 @@ public class LDAPUserInterceptor {
 	@EJB
 	DocumentService documentService;
 
+	@EJB
+	LDAPProfileSyncService profileSyncService;
+
 	@Resource
 	SessionContext ejbCtx;
 
@@ -87,7 +92,6 @@ public class LDAPUserInterceptor {
 	 * @return
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	@AroundInvoke
 	public Object intercept(InvocationContext ctx) throws Exception {
 
@@ -117,30 +121,20 @@ public class LDAPUserInterceptor {
 
 				// update profile?
 				if (profile != null) {
-					// compare attributes....
-					ItemCollection ldapUser = ldapLokupService.findUser(sUserID);
-					boolean bUpdate = false;
+					// compare attributes - skipped if the fingerprint did not
+					// change
+					LDAPUserRecord ldapUser = ldapLokupService.findUserRecord(sUserID);
 					if (ldapUser != null) {
-						logger.fine("ldap entry found, verifing attributes...");
-
-						// print all
-						Map<String, Object> items = (Map<String, Object>) ldapUser.getItemList();
-
-						for (Map.Entry<String, Object> entry : items.entrySet()) {
-							String key = entry.getKey();
-							Object value = entry.getValue();
-							logger.finest(" ...... " + key + "=" + value);
-
-							if (!profile.getItemValue(key).equals(ldapUser.getItemValue(key))) {
-								profile.replaceItemValue(key, ldapUser.getItemValue(key));
-								bUpdate = true;
+						if (LDAPProfileSyncService.updateProfile(profile, ldapUser)) {
+							if (profileSyncService.isWriteBehind()) {
+								// the profile is saved by the write-behind queue
+								logger.fine("Schedule update of user profile '" + sUserID + "'");
+								profileSyncService.scheduleUpdate(sUserID, ldapUser);
+							} else {
+								logger.info("Update user profile '" + sUserID + "' with new ldap attributes....");
+								profile = documentService.save(profile);
 							}
 						}
-						// save profile?
-						if (bUpdate) {
-							logger.info("Update user profile '" + sUserID + "' with new ldap attributes....");
-							profile = documentService.save(profile);
-						}
 					} else {
 						logger.warning("userid " + sUserID + " not found!");
 					}
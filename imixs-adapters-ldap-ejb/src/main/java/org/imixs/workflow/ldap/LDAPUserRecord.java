@@ -0,0 +1,144 @@
+package org.imixs.workflow.ldap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * Immutable record of the ldap attributes of a user. The LDAPCache holds this
+ * record instead of an ItemCollection, which needs a map and a Vector for each
+ * single attribute. The item names are shared by all records of the
+ * LDAPLookupService.
+ *
+ * A single value is stored as is, multiple values are stored as an Object
+ * array. The record is converted into a new ItemCollection by the method
+ * toItemCollection().
+ *
+ * @version 1.0
+ * @author rsoika
+ *
+ */
+public class LDAPUserRecord {
+
+	private final String[] itemNames;
+	private final Object[] values;
+	private long fingerprint = 0; // computed on first access
+
+	/**
+	 * Creates a new record
+	 *
+	 * @param itemNames
+	 *            - shared item names
+	 * @param values
+	 *            - value of each item name, either null, a single value or an
+	 *            Object array
+	 */
+	LDAPUserRecord(String[] itemNames, Object[] values) {
+		this.itemNames = itemNames;
+		this.values = values;
+	}
+
+	/**
+	 * Returns the shared item names of the record
+	 */
+	String[] getItemNames() {
+		return itemNames;
+	}
+
+	/**
+	 * Returns the values of the record. The array must not be modified.
+	 */
+	Object[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the values of an item or an empty list if the item is not set
+	 */
+	public List<Object> getItemValue(String itemName) {
+		// a later attribute mapped to the same item name overrules
+		for (int i = itemNames.length - 1; i >= 0; i--) {
+			if (itemNames[i].equals(itemName) && values[i] != null) {
+				if (values[i] instanceof Object[]) {
+					return Arrays.asList((Object[]) values[i]);
+				}
+				return Arrays.asList(values[i]);
+			}
+		}
+		return Arrays.asList();
+	}
+
+	/**
+	 * Returns the first value of an item as a String or an empty string if the
+	 * item is not set
+	 */
+	public String getItemValueString(String itemName) {
+		List<Object> valueList = getItemValue(itemName);
+		return valueList.isEmpty() ? "" : String.valueOf(valueList.get(0));
+	}
+
+	/**
+	 * Returns a 64 bit FNV-1a hash of all item names and values. Two records
+	 * with the same attributes have the same fingerprint. The fingerprint is
+	 * never 0.
+	 */
+	public long getFingerprint() {
+		long hash = fingerprint;
+		if (hash == 0) {
+			hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < itemNames.length; i++) {
+				if (values[i] == null) {
+					continue;
+				}
+				hash = hash(hash, itemNames[i]);
+				if (values[i] instanceof Object[]) {
+					for (Object value : (Object[]) values[i]) {
+						hash = hash(hash, String.valueOf(value));
+					}
+				} else {
+					hash = hash(hash, String.valueOf(values[i]));
+				}
+			}
+			if (hash == 0) {
+				hash = 1;
+			}
+			// benign race - all threads compute the same value
+			fingerprint = hash;
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns a new ItemCollection containing all items of the record
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ItemCollection toItemCollection() {
+		ItemCollection user = new ItemCollection();
+		for (int i = 0; i < itemNames.length; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+			Vector valueList = new Vector();
+			if (values[i] instanceof Object[]) {
+				valueList.addAll(Arrays.asList((Object[]) values[i]));
+			} else {
+				valueList.add(values[i]);
+			}
+			user.replaceItemValue(itemNames[i], valueList);
+		}
+		return user;
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		// separator
+		hash ^= 0xff;
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+}
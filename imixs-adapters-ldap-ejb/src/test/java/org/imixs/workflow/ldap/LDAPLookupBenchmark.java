@@ -0,0 +1,169 @@
+package org.imixs.workflow.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the LDAPLookupService and the LDAPCache. The benchmarks
+ * run against the in-memory LDAPTestServer under concurrent load. The size of
+ * the directory, the nesting depth of the groups and the group resolution
+ * strategy are defined by parameters.
+ *
+ * The 'cached' benchmarks measure lookups answered by the LDAPCache, the
+ * 'uncached' benchmarks invalidate the cache entry before each lookup and so
+ * measure a full ldap roundtrip including the LDAPContextPool.
+ *
+ * The benchmarks are not executed by the maven build. They can be started by
+ * the main method with the test classpath:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.imixs.workflow.ldap.LDAPLookupBenchmark
+ * </pre>
+ *
+ * @author rsoika
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LDAPLookupBenchmark {
+
+	@Param({ "1000" })
+	public int users;
+
+	@Param({ "100" })
+	public int groups;
+
+	@Param({ "3" })
+	public int depth;
+
+	// direct | nested
+	@Param({ "direct", "nested" })
+	public String groupResolution;
+
+	@Param({ "8" })
+	public int poolSize;
+
+	private LDAPTestServer ldapTestServer;
+	private LDAPLookupService lookupService;
+	private LDAPCache ldapCache;
+	private LDAPUserRecord userRecord;
+	private LDAPUserIndex userIndex;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		ldapTestServer = new LDAPTestServer(users, groups, depth);
+		ldapTestServer.start();
+		Properties config = new Properties();
+		config.setProperty("ldap.group-nested", "" + "nested".equals(groupResolution));
+		config.setProperty("ldap.pool-max-size", "" + poolSize);
+		config.setProperty("ldap.user-index", "true");
+		lookupService = ldapTestServer.createLookupService(config);
+		ldapCache = lookupService.ldapCache;
+
+		// fill the cache
+		for (int i = 0; i < users; i++) {
+			String uid = LDAPTestServer.getUserId(i);
+			lookupService.findUser(uid);
+			lookupService.findGroups(uid);
+		}
+		userRecord = lookupService.findUserRecord(LDAPTestServer.getUserId(0));
+		userIndex = lookupService.invalidationService.userIndex;
+		userIndex.rebuild();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		ldapTestServer.shutdown();
+	}
+
+	@Benchmark
+	public ItemCollection findUserCached() {
+		return lookupService.findUser(nextUserId());
+	}
+
+	@Benchmark
+	public String[] findGroupsCached() {
+		return lookupService.findGroups(nextUserId());
+	}
+
+	@Benchmark
+	public ItemCollection findUserUncached() {
+		String uid = nextUserId();
+		ldapCache.invalidateUser(uid);
+		return lookupService.findUser(uid);
+	}
+
+	@Benchmark
+	public String[] findGroupsUncached() {
+		String uid = nextUserId();
+		ldapCache.invalidateUser(uid);
+		return lookupService.findGroups(uid);
+	}
+
+	@Benchmark
+	public Map<String, ItemCollection> findUsersUncached() {
+		List<String> uids = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			String uid = nextUserId();
+			ldapCache.invalidateUser(uid);
+			uids.add(uid);
+		}
+		return lookupService.findUsers(uids);
+	}
+
+	@Benchmark
+	public String[] cacheGetGroups() {
+		return ldapCache.getGroups(nextUserId());
+	}
+
+	@Benchmark
+	public void cachePutUser() {
+		ldapCache.putUser(nextUserId(), userRecord);
+	}
+
+	@Benchmark
+	public List<ItemCollection> searchUsersIndexed() {
+		// prefix of 10 user ids
+		String uid = nextUserId();
+		return userIndex.searchUsers(uid.substring(0, uid.length() - 1), 10);
+	}
+
+	private String nextUserId() {
+		return LDAPTestServer.getUserId(ThreadLocalRandom.current().nextInt(users));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(LDAPLookupBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
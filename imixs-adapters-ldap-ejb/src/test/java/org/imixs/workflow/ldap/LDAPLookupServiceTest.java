@@ -0,0 +1,447 @@
+package org.imixs.workflow.ldap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.ejb.SessionContext;
+
+import org.imixs.marty.ejb.ProfileService;
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.engine.DocumentService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
+/**
+ * This test class tests the LDAPLookupService against the in-memory
+ * LDAPTestServer.
+ *
+ * @author rsoika
+ *
+ */
+public class LDAPLookupServiceTest {
+
+	private LDAPTestServer ldapTestServer;
+
+	@Before
+	public void setup() throws Exception {
+		ldapTestServer = new LDAPTestServer(50, 10, 2);
+		ldapTestServer.start();
+	}
+
+	@After
+	public void teardown() {
+		ldapTestServer.shutdown();
+	}
+
+	/**
+	 * Test the lookup of the user attributes
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFindUser() throws Exception {
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		Assert.assertTrue(lookupService.isEnabled());
+
+		ItemCollection user = lookupService.findUser("user00007");
+		Assert.assertNotNull(user);
+		Assert.assertEquals("user00007", user.getItemValueString("uid"));
+		Assert.assertEquals("User 7", user.getItemValueString("cn"));
+		Assert.assertEquals("user00007@imixs.org", user.getItemValueString("txtEmail"));
+
+		// second lookup is answered by the cache
+		long hits = lookupService.ldapCache.getCacheHits();
+		Assert.assertNotNull(lookupService.findUser("user00007"));
+		Assert.assertEquals(hits + 1, lookupService.ldapCache.getCacheHits());
+	}
+
+	/**
+	 * Test the connection check if the directory is not available on the first
+	 * call. The service is enabled by the next probe.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionCheck() throws Exception {
+		ldapTestServer.getDirectoryServer().shutDown("default", false);
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		Assert.assertFalse(lookupService.isEnabled());
+		Assert.assertNull(lookupService.findUser("user00007"));
+
+		ldapTestServer.getDirectoryServer().startListening("default");
+		Assert.assertTrue(lookupService.ldapConfigService.checkConnection());
+		Assert.assertTrue(lookupService.isEnabled());
+		Assert.assertNotNull(lookupService.findUser("user00007"));
+	}
+
+	/**
+	 * Test the lookup of an unknown user
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFindUnknownUser() throws Exception {
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		Assert.assertNull(lookupService.findUser("unknown"));
+		Assert.assertTrue(lookupService.ldapCache.isUnknown("unknown"));
+		Assert.assertEquals(0, lookupService.findGroups("unknown").length);
+
+		// a wildcard in the user id is escaped
+		Assert.assertNull(lookupService.findUser("user0000*"));
+	}
+
+	/**
+	 * Test the bulk lookup of users in chunks
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFindUsers() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("ldap.bulk-chunk-size", "7");
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(config);
+		// one user is already cached
+		lookupService.findUser("user00003");
+
+		List<String> uids = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			uids.add(LDAPTestServer.getUserId(i));
+		}
+		uids.add("user00003");
+		uids.add("unknown");
+		Map<String, ItemCollection> users = lookupService.findUsers(uids);
+		Assert.assertEquals(20, users.size());
+		Assert.assertEquals("User 12", users.get("user00012").getItemValueString("cn"));
+		Assert.assertNotNull(lookupService.ldapCache.getUser("user00019"));
+		Assert.assertNotNull(lookupService.ldapCache.getDN("user00019"));
+		Assert.assertTrue(lookupService.ldapCache.isUnknown("unknown"));
+	}
+
+	/**
+	 * Test the direct group memberships
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFindGroups() throws Exception {
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		String[] groups = lookupService.findGroups("user00013");
+		Assert.assertEquals(ldapTestServer.getGroupNames(13, false),
+				new LinkedHashSet<String>(Arrays.asList(groups)));
+	}
+
+	/**
+	 * Test the group name prefix filtered by the server. The groups are read
+	 * with a page size of 1.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFindGroupsPraefix() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("ldap.group-name-praefix", "group-1");
+		config.setProperty("ldap.group-page-size", "1");
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(config);
+		Assert.assertArrayEquals(new String[] { "group-1" }, lookupService.findGroups("user00011"));
+		Assert.assertEquals(0, lookupService.findGroups("user00013").length);
+	}
+
+	/**
+	 * Test the nested group memberships resolved by the iterative expansion
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFindNestedGroups() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("ldap.group-nested", "true");
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(config);
+
+		// user 0 is member of group-0 -> group-1 -> group-2
+		String[] groups = lookupService.findGroups("user00000");
+		Assert.assertEquals(3, groups.length);
+		Assert.assertEquals(ldapTestServer.getGroupNames(0, true), new LinkedHashSet<String>(Arrays.asList(groups)));
+
+		// user 2 is member of the last group of the chain
+		groups = lookupService.findGroups("user00002");
+		Assert.assertEquals(ldapTestServer.getGroupNames(2, true), new LinkedHashSet<String>(Arrays.asList(groups)));
+		Assert.assertEquals(1, groups.length);
+	}
+
+	/**
+	 * Test writing and reloading a cache snapshot. The entries of the snapshot
+	 * are loaded as expired and revalidated on first access.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCacheSnapshot() throws Exception {
+		File snapshotFile = File.createTempFile("ldap-cache", ".snapshot");
+		try {
+			Properties config = new Properties();
+			config.setProperty("ldap.cache-snapshot-file", snapshotFile.getPath());
+			config.setProperty("ldap.cache-snapshot-interval", "0");
+			LDAPLookupService lookupService = ldapTestServer.createLookupService(config);
+			lookupService.findUser("user00005");
+			String[] groups = lookupService.findGroups("user00005");
+			Assert.assertEquals(3, lookupService.ldapCache.writeSnapshot());
+
+			// a new cache is warmed up by the snapshot
+			lookupService = ldapTestServer.createLookupService(config);
+			LDAPCache ldapCache = lookupService.ldapCache;
+			LDAPUserRecord user = ldapCache.getUser("user00005");
+			Assert.assertNotNull(user);
+			Assert.assertEquals("user00005@imixs.org", user.getItemValueString("txtEmail"));
+			Assert.assertArrayEquals(groups, ldapCache.getGroups("user00005"));
+			Assert.assertEquals(LDAPTestServer.getUserDN("user00005"), ldapCache.getDN("user00005"));
+			Assert.assertTrue(ldapCache.tryRevalidate("user00005"));
+		} finally {
+			snapshotFile.delete();
+		}
+	}
+
+	/**
+	 * Test the invalidation of cache entries on two nodes connected by the
+	 * local invalidation channel
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInvalidationLocal() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("ldap.invalidation-channel", "local");
+		verifyInvalidation(config);
+	}
+
+	/**
+	 * Test the invalidation of cache entries on two nodes connected by a
+	 * shared invalidation file
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInvalidationFile() throws Exception {
+		File invalidationFile = File.createTempFile("ldap-invalidation", ".log");
+		try {
+			Properties config = new Properties();
+			config.setProperty("ldap.invalidation-channel", "file");
+			config.setProperty("ldap.invalidation-file", invalidationFile.getPath());
+			// the second event truncates the file
+			config.setProperty("ldap.invalidation-file-max-size", "10");
+			verifyInvalidation(config);
+		} finally {
+			invalidationFile.delete();
+		}
+	}
+
+	private void verifyInvalidation(Properties config) throws Exception {
+		LDAPLookupService node1 = ldapTestServer.createLookupService(config);
+		LDAPLookupService node2 = ldapTestServer.createLookupService(config);
+		for (LDAPLookupService node : Arrays.asList(node1, node2)) {
+			node.findUser("user00001");
+			node.findGroups("user00001");
+			node.findGroups("user00002");
+		}
+
+		node1.invalidationService.invalidateUser("user00001");
+		Assert.assertNull(node1.ldapCache.getUser("user00001"));
+		Assert.assertNotNull(node2.ldapCache.getUser("user00001"));
+		Assert.assertEquals(1, node2.invalidationService.receive());
+		Assert.assertNull(node2.ldapCache.getUser("user00001"));
+		Assert.assertNull(node2.ldapCache.getGroups("user00001"));
+
+		// own events are not received
+		Assert.assertEquals(0, node1.invalidationService.receive());
+
+		node2.invalidationService.invalidateGroup(LDAPTestServer.getGroupName(2));
+		Assert.assertEquals(1, node1.invalidationService.receive());
+		Assert.assertNull(node1.ldapCache.getGroups("user00002"));
+		Assert.assertEquals(0, node2.invalidationService.receive());
+	}
+
+	/**
+	 * Test the change detection of a bulk change exceeding the size limit of
+	 * the server. The changes are read by a paged search.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPollChanges() throws Exception {
+		ldapTestServer.shutdown();
+		ldapTestServer = new LDAPTestServer(LDAPLookupService.WATCH_PAGE_SIZE * 3, 10, 0);
+		ldapTestServer.setMaxSizeLimit(LDAPLookupService.WATCH_PAGE_SIZE * 2);
+		ldapTestServer.start();
+
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		String lastUser = LDAPTestServer.getUserId(LDAPLookupService.WATCH_PAGE_SIZE * 3 - 1);
+		Assert.assertNotNull(lookupService.findUser("user00001"));
+		Assert.assertNotNull(lookupService.findUser(lastUser));
+
+		String since = "19700101000000Z";
+		String mark = lookupService.pollChanges("modifyTimestamp", "(member=*)", since, new HashSet<String>(),
+				null);
+		Assert.assertFalse(since.equals(mark));
+		Assert.assertNull(lookupService.ldapCache.getUser("user00001"));
+		Assert.assertNull(lookupService.ldapCache.getUser(lastUser));
+	}
+
+	/**
+	 * Test the prefix search of the user index and the update of changed
+	 * users
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testUserIndex() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("ldap.user-index", "true");
+		config.setProperty("ldap.user-index-page-size", "7");
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(config);
+		LDAPUserIndex userIndex = lookupService.invalidationService.userIndex;
+		Assert.assertTrue(userIndex.searchUsers("user", 10).isEmpty());
+		Assert.assertEquals(50, userIndex.rebuild());
+
+		// uid and mail of a user are returned once
+		List<ItemCollection> users = userIndex.searchUsers("USER0001", 5);
+		Assert.assertEquals(5, users.size());
+		Assert.assertEquals("user00010", users.get(0).getItemValueString("uid"));
+		Assert.assertEquals("user00014", users.get(4).getItemValueString("uid"));
+
+		users = userIndex.searchUsers("User 7", 10);
+		Assert.assertEquals(1, users.size());
+		Assert.assertEquals("User 7", users.get(0).getItemValueString("cn"));
+		Assert.assertEquals("user00007@imixs.org", users.get(0).getItemValueString("txtEmail"));
+
+		// a changed and a deleted user are updated
+		ldapTestServer.getDirectoryServer().modify(LDAPTestServer.getUserDN("user00003"),
+				new Modification(ModificationType.REPLACE, "cn", "Zelda Jones"));
+		ldapTestServer.getDirectoryServer().delete(LDAPTestServer.getUserDN("user00004"));
+		lookupService.invalidationService.invalidateUser("user00003");
+		lookupService.invalidationService.invalidateUser("user00004");
+		Assert.assertEquals(2, userIndex.update());
+		Assert.assertEquals(49, userIndex.getSize());
+		Assert.assertEquals("user00003", userIndex.searchUsers("jon", 10).get(0).getItemValueString("uid"));
+		Assert.assertEquals(1, userIndex.searchUsers("zelda j", 10).size());
+		// 'User 30' ... 'User 39'
+		Assert.assertEquals(10, userIndex.searchUsers("user 3", 20).size());
+		Assert.assertTrue(userIndex.searchUsers("user00004", 10).isEmpty());
+	}
+
+	/**
+	 * Test the fingerprint skip of a profile update and the write-behind queue.
+	 * A batch failed to save is queued again and saved by the next flush.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testProfileSync() throws Exception {
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		LDAPUserRecord ldapUser = lookupService.findUserRecord("user00003");
+		Assert.assertNotNull(ldapUser);
+
+		// the second update is skipped by the fingerprint
+		ItemCollection profile = new ItemCollection();
+		Assert.assertTrue(LDAPProfileSyncService.updateProfile(profile, ldapUser));
+		Assert.assertEquals(ldapUser.getFingerprint(),
+				profile.getItemValueLong(LDAPProfileSyncService.ITEM_FINGERPRINT));
+		Assert.assertEquals("User 3", profile.getItemValueString("cn"));
+		Assert.assertFalse(LDAPProfileSyncService.updateProfile(profile, ldapUser));
+
+		LDAPProfileSyncService syncService = new LDAPProfileSyncService();
+		syncService.batchSize = 10;
+		syncService.profileService = Mockito.mock(ProfileService.class);
+		// the failed transaction is rolled back, so the profile is loaded again
+		Mockito.when(syncService.profileService.findProfileById("user00003")).thenReturn(new ItemCollection(),
+				new ItemCollection());
+		syncService.documentService = Mockito.mock(DocumentService.class);
+		Mockito.when(syncService.documentService.save(Mockito.any(ItemCollection.class)))
+				.thenThrow(new IllegalStateException("database not available")).thenReturn(null);
+		syncService.ejbCtx = Mockito.mock(SessionContext.class);
+		Mockito.when(syncService.ejbCtx.getBusinessObject(LDAPProfileSyncService.class)).thenReturn(syncService);
+
+		syncService.scheduleUpdate("user00003", ldapUser);
+		Assert.assertEquals(1, syncService.getPendingCount());
+
+		// the failed batch stays in the queue
+		syncService.flush(null);
+		Assert.assertEquals(1, syncService.getPendingCount());
+
+		syncService.flush(null);
+		Assert.assertEquals(0, syncService.getPendingCount());
+		Mockito.verify(syncService.documentService, Mockito.times(2)).save(Mockito.any(ItemCollection.class));
+	}
+
+	/**
+	 * Test a profile which can not be saved. The other profiles of the batch
+	 * are saved one by one and the failed profile is dropped after the max
+	 * number of attempts.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testProfileSyncFailure() throws Exception {
+		LDAPLookupService lookupService = ldapTestServer.createLookupService(null);
+		final List<String> savedProfiles = new ArrayList<String>();
+
+		LDAPProfileSyncService syncService = new LDAPProfileSyncService();
+		syncService.batchSize = 10;
+		syncService.profileService = Mockito.mock(ProfileService.class);
+		Mockito.when(syncService.profileService.findProfileById(Mockito.anyString()))
+				.thenAnswer(new Answer<ItemCollection>() {
+					@Override
+					public ItemCollection answer(InvocationOnMock invocation) {
+						ItemCollection profile = new ItemCollection();
+						profile.replaceItemValue("txtname", invocation.getArguments()[0]);
+						return profile;
+					}
+				});
+		syncService.documentService = Mockito.mock(DocumentService.class);
+		Mockito.when(syncService.documentService.save(Mockito.any(ItemCollection.class)))
+				.thenAnswer(new Answer<ItemCollection>() {
+					@Override
+					public ItemCollection answer(InvocationOnMock invocation) {
+						ItemCollection profile = (ItemCollection) invocation.getArguments()[0];
+						if ("user00002".equals(profile.getItemValueString("txtname")))
+							throw new IllegalStateException("invalid profile");
+						savedProfiles.add(profile.getItemValueString("txtname"));
+						return profile;
+					}
+				});
+		syncService.ejbCtx = Mockito.mock(SessionContext.class);
+		Mockito.when(syncService.ejbCtx.getBusinessObject(LDAPProfileSyncService.class)).thenReturn(syncService);
+
+		for (String userId : new String[] { "user00001", "user00002", "user00003" }) {
+			syncService.scheduleUpdate(userId, lookupService.findUserRecord(userId));
+		}
+
+		// the failed batch is saved one by one
+		syncService.flush(null);
+		Assert.assertEquals(1, syncService.getPendingCount());
+		Assert.assertTrue(savedProfiles.contains("user00001"));
+		Assert.assertTrue(savedProfiles.contains("user00003"));
+		Assert.assertFalse(savedProfiles.contains("user00002"));
+
+		// the failed profile is dropped after the max number of attempts
+		for (int i = 1; i < syncService.MAX_ATTEMPTS; i++) {
+			Assert.assertEquals(1, syncService.getPendingCount());
+			syncService.flush(null);
+		}
+		Assert.assertEquals(0, syncService.getPendingCount());
+		Assert.assertFalse(savedProfiles.contains("user00002"));
+	}
+
+}
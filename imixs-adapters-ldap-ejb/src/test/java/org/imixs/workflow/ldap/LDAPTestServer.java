@@ -0,0 +1,358 @@
+package org.imixs.workflow.ldap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.ejb.SessionContext;
+
+import org.mockito.Mockito;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * Test fixture starting an embedded in-memory ldap server. The directory is
+ * seeded with a synthetic set of users and groups:
+ *
+ * <pre>
+ * dc=imixs,dc=org
+ *   ou=people  - uid=user00000 ... (inetOrgPerson)
+ *   ou=groups  - cn=group-0 ...    (groupOfNames)
+ * </pre>
+ *
+ * Each user is a direct member of the group 'group-(n % groups)'. If a nesting
+ * depth is defined, the groups are chained: each group is a member of the
+ * next group up to the given depth. So a user with nested groups resolved is
+ * a member of (depth + 1) groups.
+ *
+ * The method createLookupService() returns a LDAPLookupService wired with a
+ * LDAPConfigService, LDAPCache, LDAPContextPool, LDAPMetrics,
+ * LDAPInvalidationService and LDAPUserIndex connected to the server. The beans
+ * are initialized from a generated imixs.properties. Timers are not started,
+ * so invalidation events are received by calling
+ * LDAPInvalidationService.receive() and the user index is built by calling
+ * LDAPUserIndex.rebuild().
+ *
+ * @author rsoika
+ *
+ */
+public class LDAPTestServer {
+
+	public static final String BASE_DN = "dc=imixs,dc=org";
+	public static final String BIND_DN = "cn=Directory Manager";
+	public static final String BIND_PASSWORD = "secret";
+
+	private final int userCount;
+	private final int groupCount;
+	private final int nestingDepth;
+	private int maxSizeLimit = 0;
+	private InMemoryDirectoryServer server = null;
+	private int port;
+	private final List<LDAPContextPool> pools = new ArrayList<LDAPContextPool>();
+	private final List<LDAPMetrics> metrics = new ArrayList<LDAPMetrics>();
+	private final List<LDAPInvalidationService> invalidationServices = new ArrayList<LDAPInvalidationService>();
+	private final List<File> configFolders = new ArrayList<File>();
+
+	private static Logger logger = Logger.getLogger(LDAPTestServer.class.getName());
+
+	/**
+	 * Creates a new test server
+	 *
+	 * @param userCount
+	 *            - number of users
+	 * @param groupCount
+	 *            - number of groups
+	 * @param nestingDepth
+	 *            - number of parent groups of each group (0 = no nesting)
+	 */
+	public LDAPTestServer(int userCount, int groupCount, int nestingDepth) {
+		this.userCount = userCount;
+		this.groupCount = Math.max(groupCount, 1);
+		this.nestingDepth = nestingDepth;
+	}
+
+	/**
+	 * Starts the server on a free port and adds all entries. The port is kept
+	 * if the listener is stopped and started again.
+	 *
+	 * @throws LDAPException
+	 * @throws IOException
+	 */
+	public void start() throws LDAPException, IOException {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+		config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", port));
+		// groups without members are allowed
+		config.setSchema(null);
+		if (maxSizeLimit > 0)
+			config.setMaxSizeLimit(maxSizeLimit);
+		server = new InMemoryDirectoryServer(config);
+
+		long lStart = System.currentTimeMillis();
+		server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "imixs")));
+		server.add(new Entry("ou=people," + BASE_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+				new Attribute("ou", "people")));
+		server.add(new Entry("ou=groups," + BASE_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+				new Attribute("ou", "groups")));
+
+		// collect the members of each group
+		List<List<String>> members = new ArrayList<List<String>>();
+		for (int i = 0; i < groupCount; i++) {
+			members.add(new ArrayList<String>());
+		}
+		for (int i = 0; i < userCount; i++) {
+			String uid = getUserId(i);
+			server.add(new Entry(getUserDN(uid), new Attribute("objectClass", "top", "person",
+					"organizationalPerson", "inetOrgPerson"), new Attribute("uid", uid),
+					new Attribute("cn", "User " + i), new Attribute("sn", "User" + i),
+					new Attribute("mail", uid + "@imixs.org")));
+			members.get(i % groupCount).add(getUserDN(uid));
+		}
+		for (int i = 0; i < groupCount; i++) {
+			int parent = getParentGroup(i);
+			if (parent >= 0) {
+				members.get(parent).add(getGroupDN(i));
+			}
+		}
+		for (int i = 0; i < groupCount; i++) {
+			Entry group = new Entry(getGroupDN(i), new Attribute("objectClass", "top", "groupOfNames"),
+					new Attribute("cn", getGroupName(i)));
+			if (!members.get(i).isEmpty()) {
+				group.addAttribute("member", members.get(i));
+			}
+			server.add(group);
+		}
+
+		server.startListening();
+		logger.info("LDAPTestServer started on port " + getPort() + " with " + userCount + " users and "
+				+ groupCount + " groups in " + (System.currentTimeMillis() - lStart) + " ms");
+	}
+
+	/**
+	 * Closes all pools created by the server and stops the server
+	 */
+	public void shutdown() {
+		for (LDAPContextPool pool : pools) {
+			pool.destroy();
+		}
+		pools.clear();
+		for (LDAPMetrics metric : metrics) {
+			metric.destroy();
+		}
+		metrics.clear();
+		for (LDAPInvalidationService invalidationService : invalidationServices) {
+			invalidationService.destroy();
+		}
+		invalidationServices.clear();
+		for (File folder : configFolders) {
+			new File(folder, "imixs.properties").delete();
+			folder.delete();
+		}
+		configFolders.clear();
+		if (server != null) {
+			server.shutDown(true);
+			server = null;
+		}
+	}
+
+	/**
+	 * Sets the max number of entries returned by a search without paging. The
+	 * limit is applied by the next start of the server.
+	 *
+	 * @param maxSizeLimit
+	 */
+	public void setMaxSizeLimit(int maxSizeLimit) {
+		this.maxSizeLimit = maxSizeLimit;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getProviderURL() {
+		return "ldap://localhost:" + getPort();
+	}
+
+	public int getUserCount() {
+		return userCount;
+	}
+
+	public InMemoryDirectoryServer getDirectoryServer() {
+		return server;
+	}
+
+	/**
+	 * Returns the user id of the n-th user
+	 */
+	public static String getUserId(int n) {
+		return String.format("user%05d", n);
+	}
+
+	public static String getUserDN(String uid) {
+		return "uid=" + uid + ",ou=people," + BASE_DN;
+	}
+
+	public static String getGroupName(int n) {
+		return "group-" + n;
+	}
+
+	public static String getGroupDN(int n) {
+		return "cn=" + getGroupName(n) + ",ou=groups," + BASE_DN;
+	}
+
+	/**
+	 * Returns the names of all groups of the n-th user
+	 *
+	 * @param n
+	 * @param nested
+	 *            - true if the parent groups should be included
+	 */
+	public Set<String> getGroupNames(int n, boolean nested) {
+		Set<String> result = new LinkedHashSet<String>();
+		int group = n % groupCount;
+		result.add(getGroupName(group));
+		if (nested) {
+			for (group = getParentGroup(group); group >= 0; group = getParentGroup(group)) {
+				result.add(getGroupName(group));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the default configuration connecting the LDAPLookupService to
+	 * the test server
+	 */
+	public Properties getConfiguration() {
+		Properties config = new Properties();
+		config.setProperty("ldap.disable-jndi", "true");
+		config.setProperty("java.naming.provider.url", getProviderURL());
+		config.setProperty("java.naming.security.principal", BIND_DN);
+		config.setProperty("java.naming.security.credentials", BIND_PASSWORD);
+		config.setProperty("ldap.search-context", BASE_DN);
+		config.setProperty("ldap.dn-search-filter", "(uid=%u)");
+		config.setProperty("ldap.group-search-filter", "(&(objectClass=groupOfNames)(member=%d))");
+		config.setProperty("ldap.user-attributes", "uid,sn,cn,mail|txtEmail");
+		// the connection is verified on first use
+		config.setProperty("ldap.health-check-interval", "0");
+		config.setProperty("ldap.cache-size", "" + Math.max(userCount, 100));
+		config.setProperty("ldap.group-cache-size", "" + Math.max(groupCount, 100));
+		return config;
+	}
+
+	/**
+	 * Creates a new LDAPLookupService connected to the test server. The
+	 * configuration is merged with the default configuration. Asynchronous
+	 * calls of the service are executed synchronously.
+	 *
+	 * @param properties
+	 *            - additional imixs.properties or null
+	 * @return initialized LDAPLookupService
+	 * @throws IOException
+	 */
+	public LDAPLookupService createLookupService(Properties properties) throws IOException {
+		Properties config = getConfiguration();
+		if (properties != null) {
+			for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+				config.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// the beans read the imixs.properties from the context class loader
+		File folder = File.createTempFile("imixs-ldap-test", "");
+		folder.delete();
+		folder.mkdirs();
+		configFolders.add(folder);
+		OutputStream out = new FileOutputStream(new File(folder, "imixs.properties"));
+		try {
+			config.store(out, "LDAPTestServer");
+		} finally {
+			out.close();
+		}
+
+		Thread thread = Thread.currentThread();
+		ClassLoader contextClassLoader = thread.getContextClassLoader();
+		URLClassLoader configClassLoader = new URLClassLoader(new URL[] { folder.toURI().toURL() },
+				contextClassLoader);
+		thread.setContextClassLoader(configClassLoader);
+		try {
+			LDAPConfigService ldapConfigService = new LDAPConfigService();
+			ldapConfigService.init();
+
+			LDAPCache ldapCache = new LDAPCache();
+			ldapCache.ldapConfigService = ldapConfigService;
+			ldapCache.init();
+
+			LDAPContextPool ldapContextPool = new LDAPContextPool();
+			ldapContextPool.ldapConfigService = ldapConfigService;
+			ldapContextPool.init();
+			ldapConfigService.ldapContextPool = ldapContextPool;
+			pools.add(ldapContextPool);
+
+			LDAPMetrics ldapMetrics = new LDAPMetrics();
+			ldapMetrics.ldapCache = ldapCache;
+			ldapMetrics.ldapContextPool = ldapContextPool;
+			ldapMetrics.init();
+			metrics.add(ldapMetrics);
+
+			LDAPLookupService lookupService = new LDAPLookupService();
+
+			LDAPUserIndex userIndex = new LDAPUserIndex();
+			userIndex.ldapConfigService = ldapConfigService;
+			userIndex.lookupService = lookupService;
+			userIndex.init();
+
+			LDAPInvalidationService invalidationService = new LDAPInvalidationService();
+			invalidationService.ldapConfigService = ldapConfigService;
+			invalidationService.ldapCache = ldapCache;
+			invalidationService.userIndex = userIndex;
+			invalidationService.init();
+			invalidationServices.add(invalidationService);
+
+			lookupService.ldapConfigService = ldapConfigService;
+			lookupService.invalidationService = invalidationService;
+			lookupService.ldapCache = ldapCache;
+			lookupService.ldapContextPool = ldapContextPool;
+			lookupService.ldapMetrics = ldapMetrics;
+			SessionContext ejbCtx = Mockito.mock(SessionContext.class);
+			Mockito.when(ejbCtx.getBusinessObject(LDAPLookupService.class)).thenReturn(lookupService);
+			lookupService.ejbCtx = ejbCtx;
+			lookupService.init();
+			return lookupService;
+		} finally {
+			thread.setContextClassLoader(contextClassLoader);
+		}
+	}
+
+	/**
+	 * Returns the index of the parent group or -1 if the group has no parent.
+	 * The groups are chained in blocks of (depth + 1) groups.
+	 */
+	private int getParentGroup(int group) {
+		if (nestingDepth <= 0)
+			return -1;
+		int parent = group + 1;
+		if (parent >= groupCount || parent % (nestingDepth + 1) == 0)
+			return -1;
+		return parent;
+	}
+}